@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task.benchmark;
+
+import ch.ymc.task.AbstractTask;
+import ch.ymc.task.TaskResult;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Task used by the benchmarks. It performs a {@link Workload} and optionally
+ * signals it's start and waits for a gate to be opened before completing.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class BenchmarkTask extends AbstractTask {
+
+    private static final TaskResult SUCCESS = new TaskResult(TaskResult.SUCCESS);
+
+    private final Workload workload;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch gate;
+
+    public BenchmarkTask(final Workload workload) {
+        this(workload, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param workload the work to perform
+     * @param gated    when true, the task doesn't complete before {@link #open()}
+     *                 has been called
+     */
+    public BenchmarkTask(final Workload workload, final boolean gated) {
+        super();
+        this.workload = workload;
+        this.gate = gated ? new CountDownLatch(1) : null;
+    }
+
+    @Override
+    protected TaskResult run() {
+        started.countDown();
+        try {
+            workload.perform();
+            if (gate != null) {
+                gate.await();
+            }
+        } catch (final InterruptedException e) {
+            return new TaskResult(TaskResult.ERROR, e);
+        }
+        return SUCCESS;
+    }
+
+    @Override
+    protected void cancel() {
+        if (gate != null) {
+            gate.countDown();
+        }
+    }
+
+    /**
+     * Wait until the run-method of this task has been entered.
+     *
+     * @throws InterruptedException when the current thread got interrupted
+     */
+    public void awaitStart() throws InterruptedException {
+        started.await();
+    }
+
+    /**
+     * Let a gated task complete.
+     */
+    public void open() {
+        if (gate != null) {
+            gate.countDown();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shape of {@link TaskRunnerBenchmark#executeBatchAndJoinEach()} on a raw
+ * {@link ForkJoinPool}, as a lower bound for the per-task overhead of the
+ * {@link RunnerType#WORK_STEALING} runner. Compare both with:
+ * <pre>
+ * java -jar target/benchmarks.jar "ForkJoinBaselineBenchmark|TaskRunnerBenchmark.executeBatchAndJoinEach" \
+ *     -p runnerType=WORK_STEALING -p workload=EMPTY,SHORT
+ * </pre>
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForkJoinBaselineBenchmark {
+
+    @Param({"EMPTY", "SHORT", "SLEEPING"})
+    public Workload workload;
+
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TaskRunnerBenchmark.BATCH_SIZE)
+    public ForkJoinTask<?>[] submitBatchAndJoinEach() {
+        final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[TaskRunnerBenchmark.BATCH_SIZE];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        workload.perform();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        for (final ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task.benchmark;
+
+import ch.ymc.task.QueuedTaskRunner;
+import ch.ymc.task.TaskException;
+import ch.ymc.task.TaskJournal;
+import ch.ymc.task.TaskSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a {@link QueuedTaskRunner} writing it's tasks to a
+ * {@link TaskJournal}, forcing every task to disk on it's own or every batch
+ * at once. {@code NONE} runs without journal, as the baseline.
+ * <p>
+ * The numbers depend on the disk far more than on the framework, run it on
+ * the disk the journal is going to use; {@code -Djournal.dir=...} selects the
+ * directory, by default a temporary one.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    public static final int BATCH_SIZE = 100;
+
+    @Param({"NONE", "PER_TASK", "BATCH"})
+    public String syncMode;
+
+    private QueuedTaskRunner<BenchmarkTask> taskRunner;
+    private File directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, TaskException, InterruptedException {
+        final String parent = System.getProperty("journal.dir");
+        directory = File.createTempFile("journal", "", parent == null ? null : new File(parent));
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("could not create " + directory);
+        }
+        taskRunner = new QueuedTaskRunner<BenchmarkTask>();
+        if (!"NONE".equals(syncMode)) {
+            taskRunner.setJournal(new TaskJournal<BenchmarkTask>(directory, new WorkloadSerializer(),
+                    TaskJournal.SyncMode.valueOf(syncMode), 64 * 1024 * 1024));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws TaskException, InterruptedException {
+        taskRunner.dispose();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Submit 100 tasks one by one and wait for them, tasks per second.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void executeAndJoin() throws TaskException, InterruptedException {
+        final List<BenchmarkTask> tasks = newTasks();
+        for (final BenchmarkTask task : tasks) {
+            taskRunner.execute(task);
+        }
+        taskRunner.join(tasks);
+    }
+
+    /**
+     * Submit 100 tasks with a single {@code executeAll} and wait for them,
+     * tasks per second.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void executeAllAndJoin() throws TaskException, InterruptedException {
+        final List<BenchmarkTask> tasks = newTasks();
+        taskRunner.executeAll(tasks);
+        taskRunner.join(tasks);
+    }
+
+    private static List<BenchmarkTask> newTasks() {
+        final List<BenchmarkTask> tasks = new ArrayList<BenchmarkTask>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            tasks.add(new BenchmarkTask(Workload.EMPTY));
+        }
+        return tasks;
+    }
+
+    /**
+     * The benchmark-tasks have no state, a task is written as a single byte.
+     */
+    private static class WorkloadSerializer implements TaskSerializer<BenchmarkTask> {
+
+        private static final byte[] DATA = {0};
+
+        @Override
+        public byte[] serialize(final BenchmarkTask task) {
+            return DATA;
+        }
+
+        @Override
+        public BenchmarkTask deserialize(final byte[] data) {
+            return new BenchmarkTask(Workload.EMPTY);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task.benchmark;
+
+import ch.ymc.task.QueuedTaskRunner;
+import ch.ymc.task.TaskException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the operations of the {@link QueuedTaskRunner} that look up a
+ * single queued task, depending on the number of tasks waiting in the queue.
+ * No task is ever dispatched, so the backlog stays the same during a trial.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBacklogBenchmark {
+
+    @Param({"1000", "100000", "500000"})
+    public int backlog;
+
+    private QueuedTaskRunner<BenchmarkTask> taskRunner;
+    private BenchmarkTask[] tasks;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws TaskException, InterruptedException {
+        taskRunner = new QueuedTaskRunner<BenchmarkTask>(new Comparator<BenchmarkTask>() {
+            @Override
+            public int compare(final BenchmarkTask task1, final BenchmarkTask task2) {
+                return 0;
+            }
+        });
+        taskRunner.setNumberOfConcurrentTasks(0);
+        tasks = new BenchmarkTask[backlog];
+        for (int i = 0; i < backlog; i++) {
+            tasks[i] = new BenchmarkTask(Workload.EMPTY);
+        }
+        taskRunner.executeAll(Arrays.asList(tasks));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws TaskException, InterruptedException {
+        for (final BenchmarkTask task : tasks) {
+            taskRunner.cancel(task);
+        }
+        taskRunner.dispose();
+    }
+
+    /**
+     * Cancel a task from the middle of the backlog and replace it with a new
+     * one, the time per operation covers both.
+     */
+    @Benchmark
+    public BenchmarkTask cancelAndResubmit() throws TaskException, InterruptedException {
+        final int index = nextIndex();
+        taskRunner.cancel(tasks[index]);
+        final BenchmarkTask task = new BenchmarkTask(Workload.EMPTY);
+        taskRunner.execute(task);
+        tasks[index] = task;
+        return task;
+    }
+
+    /**
+     * Ask whether a queued task has started, which has to look it up in the
+     * queue.
+     */
+    @Benchmark
+    public boolean hasStarted() throws TaskException, InterruptedException {
+        return taskRunner.hasStarted(tasks[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        next = (next + 7919) % backlog;
+        return next;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task.benchmark;
+
+import ch.ymc.task.ConcurrentTaskRunner;
+import ch.ymc.task.QueuedTaskRunner;
+import ch.ymc.task.TaskRunner;
+import ch.ymc.task.WorkStealingTaskRunner;
+
+/**
+ * The {@link TaskRunner}-configurations measured by the
+ * {@link TaskRunnerBenchmark}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public enum RunnerType {
+
+    CONCURRENT {
+        @Override
+        TaskRunner<BenchmarkTask> createTaskRunner() {
+            return new ConcurrentTaskRunner<BenchmarkTask>();
+        }
+    },
+
+    CONCURRENT_ASYNC {
+        @Override
+        TaskRunner<BenchmarkTask> createTaskRunner() {
+            return new ConcurrentTaskRunner<BenchmarkTask>(true);
+        }
+    },
+
+    CONCURRENT_BOUNDED {
+        @Override
+        TaskRunner<BenchmarkTask> createTaskRunner() {
+            return new ConcurrentTaskRunner<BenchmarkTask>(Runtime.getRuntime().availableProcessors(), "benchmark", true, true);
+        }
+    },
+
+    /**
+     * Requires Java 21, fails during setup on older JVMs.
+     */
+    CONCURRENT_VIRTUAL {
+        @Override
+        TaskRunner<BenchmarkTask> createTaskRunner() {
+            return ConcurrentTaskRunner.withVirtualThreads("benchmark");
+        }
+    },
+
+    WORK_STEALING {
+        @Override
+        TaskRunner<BenchmarkTask> createTaskRunner() {
+            return new WorkStealingTaskRunner<BenchmarkTask>(Runtime.getRuntime().availableProcessors(), "benchmark");
+        }
+    },
+
+    QUEUED_4 {
+        @Override
+        TaskRunner<BenchmarkTask> createTaskRunner() {
+            return createQueuedTaskRunner(4);
+        }
+    },
+
+    QUEUED_50 {
+        @Override
+        TaskRunner<BenchmarkTask> createTaskRunner() {
+            return createQueuedTaskRunner(50);
+        }
+    };
+
+    abstract TaskRunner<BenchmarkTask> createTaskRunner();
+
+    private static QueuedTaskRunner<BenchmarkTask> createQueuedTaskRunner(final int numberOfConcurrentTasks) {
+        final QueuedTaskRunner<BenchmarkTask> taskRunner = new QueuedTaskRunner<BenchmarkTask>();
+        taskRunner.setNumberOfConcurrentTasks(numberOfConcurrentTasks);
+        return taskRunner;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task.benchmark;
+
+import ch.ymc.task.TaskException;
+import ch.ymc.task.TaskRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for all {@link TaskRunner}-implementations, the runner under test
+ * is selected by the {@link RunnerType}-parameter.
+ * <p>
+ * Throughput-benchmarks report tasks per second, the latency-benchmarks
+ * sample single submissions. Run with {@code -t N} to measure N submitting
+ * threads and with {@code -prof gc} to see the allocation per task.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskRunnerBenchmark {
+
+    public static final int BATCH_SIZE = 100;
+
+    @Param
+    public RunnerType runnerType;
+
+    @Param({"EMPTY", "SHORT", "SLEEPING"})
+    public Workload workload;
+
+    private TaskRunner<BenchmarkTask> taskRunner;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        taskRunner = runnerType.createTaskRunner();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws TaskException, InterruptedException {
+        taskRunner.dispose();
+    }
+
+    public TaskRunner<BenchmarkTask> getTaskRunner() {
+        return taskRunner;
+    }
+
+    /**
+     * A task that has been submitted in the setup of an invocation and is
+     * joined after it, so latency-benchmarks only measure a single transition.
+     */
+    @State(Scope.Thread)
+    public static class SubmittedTask {
+
+        BenchmarkTask task;
+
+        @Setup(Level.Invocation)
+        public void submit(final TaskRunnerBenchmark benchmark) throws TaskException, InterruptedException {
+            task = new BenchmarkTask(benchmark.workload, true);
+            benchmark.getTaskRunner().execute(task);
+            task.awaitStart();
+        }
+
+        @TearDown(Level.Invocation)
+        public void join(final TaskRunnerBenchmark benchmark) throws TaskException, InterruptedException {
+            task.open();
+            benchmark.getTaskRunner().join(task);
+        }
+    }
+
+    /**
+     * A task that is created in the setup of an invocation but is submitted by
+     * the benchmark itself.
+     */
+    @State(Scope.Thread)
+    public static class PreparedTask {
+
+        BenchmarkTask task;
+
+        @Setup(Level.Invocation)
+        public void prepare(final TaskRunnerBenchmark benchmark) {
+            task = new BenchmarkTask(benchmark.workload);
+        }
+
+        @TearDown(Level.Invocation)
+        public void join(final TaskRunnerBenchmark benchmark) throws TaskException, InterruptedException {
+            benchmark.getTaskRunner().join(task);
+        }
+    }
+
+    @Benchmark
+    public BenchmarkTask executeAndJoin() throws TaskException, InterruptedException {
+        final BenchmarkTask task = new BenchmarkTask(workload);
+        taskRunner.execute(task);
+        taskRunner.join(task);
+        return task;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<BenchmarkTask> executeBatchAndJoinEach() throws TaskException, InterruptedException {
+        final List<BenchmarkTask> tasks = executeBatch();
+        for (final BenchmarkTask task : tasks) {
+            taskRunner.join(task);
+        }
+        return tasks;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<BenchmarkTask> executeBatchAndJoinIterable() throws TaskException, InterruptedException {
+        final List<BenchmarkTask> tasks = executeBatch();
+        taskRunner.join(tasks);
+        return tasks;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<BenchmarkTask> executeBatchAndJoinAll() throws TaskException, InterruptedException {
+        final List<BenchmarkTask> tasks = executeBatch();
+        taskRunner.join();
+        return tasks;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<BenchmarkTask> executeAllAndJoinIterable() throws TaskException, InterruptedException {
+        final List<BenchmarkTask> tasks = new ArrayList<BenchmarkTask>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            tasks.add(new BenchmarkTask(workload));
+        }
+        taskRunner.executeAll(tasks);
+        taskRunner.join(tasks);
+        return tasks;
+    }
+
+    /**
+     * Time from calling execute until the run-method of the task has been
+     * entered.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public BenchmarkTask submitToStartLatency(final PreparedTask prepared) throws TaskException, InterruptedException {
+        taskRunner.execute(prepared.task);
+        prepared.task.awaitStart();
+        return prepared.task;
+    }
+
+    /**
+     * Time from letting a running task finish until a thread waiting in join
+     * has been woken up.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public BenchmarkTask completionToJoinLatency(final SubmittedTask submitted) throws TaskException, InterruptedException {
+        submitted.task.open();
+        taskRunner.join(submitted.task);
+        return submitted.task;
+    }
+
+    private List<BenchmarkTask> executeBatch() throws TaskException, InterruptedException {
+        final List<BenchmarkTask> tasks = new ArrayList<BenchmarkTask>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            final BenchmarkTask task = new BenchmarkTask(workload);
+            taskRunner.execute(task);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+}
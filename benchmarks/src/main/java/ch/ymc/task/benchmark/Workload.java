@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task.benchmark;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The kinds of work a {@link BenchmarkTask} performs in it's run-method.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public enum Workload {
+
+    /**
+     * Returns immediately, measures the pure management overhead.
+     */
+    EMPTY {
+        @Override
+        void perform() {
+        }
+    },
+
+    /**
+     * Burns a few microseconds of CPU, the kind of task the README warns
+     * about.
+     */
+    SHORT {
+        @Override
+        void perform() {
+            Blackhole.consumeCPU(1000);
+        }
+    },
+
+    /**
+     * Blocks for one millisecond, like a task waiting for I/O.
+     */
+    SLEEPING {
+        @Override
+        void perform() throws InterruptedException {
+            Thread.sleep(1);
+        }
+    };
+
+    abstract void perform() throws InterruptedException;
+}
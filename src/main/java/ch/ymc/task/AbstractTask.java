@@ -3,20 +3,50 @@
  */
 package ch.ymc.task;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 /**
  * A Task holds a piece of code in it's {@link #run()}-method, that is executed
  * in a separate thread by a {@link TaskRunner}. Tasks can be requested for
  * cancellation through the {@link TaskRunner}, it is up to the concrete
  * implementation of {@link #cancel()} to cancel the execution.
+ * <p>
+ * The state of a task is changed with atomic compare-and-set transitions, so
+ * it can be queried without holding a lock of the {@link TaskRunner}.
  *
  * @author nkuebler, YMC AG
  * @since 2.0.0
  */
 public abstract class AbstractTask {
 
-    private Thread thread;
-    private TaskState state = TaskState.INITIALIZED;
-    private TaskResult result;
+    private static final AtomicReferenceFieldUpdater<AbstractTask, TaskState> STATE_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(AbstractTask.class, TaskState.class, "state");
+    private static final AtomicIntegerFieldUpdater<AbstractTask> RUN_PHASE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(AbstractTask.class, "runPhase");
+    private static final int NOT_RUNNING = 0;
+    private static final int IN_RUN = 1;
+    private static final int INTERRUPTING = 2;
+
+    private volatile Thread thread;
+    private volatile TaskState state = TaskState.INITIALIZED;
+    private volatile TaskResult result;
+    private volatile long queuedTime;
+    private volatile long startTime;
+    private volatile long completionTime;
+    private volatile long timeout;
+    private volatile HashedTimerWheel.Timeout pendingTimeout;
+    private volatile int runPhase;
+    private volatile int generation;
+    private volatile int attempt = 1;
+    private volatile boolean cancelRequested;
+    private volatile long journalId;
+    private volatile List<AbstractTask> dependencies = Collections.emptyList();
+    private volatile TaskFuture future = new TaskFuture();
 
     /**
      * Main Method for the task. The logic for the task has to be implemented
@@ -31,6 +61,128 @@ public abstract class AbstractTask {
      */
     protected abstract void cancel();
 
+    /**
+     * The key of the partition this task belongs to, a {@link QueuedTaskRunner}
+     * limits the number of running tasks per partition when
+     * {@link QueuedTaskRunner#setNumberOfConcurrentTasksPerPartition} has been
+     * set. Tasks of a web-crawler could for instance use their host as key.
+     * The key must not change while the task is queued.
+     *
+     * @return the partition key, null when the task doesn't belong to a partition
+     */
+    protected Object getPartitionKey() {
+        return null;
+    }
+
+    /**
+     * The time the run-method may take before the {@link TaskRunner} cancels
+     * the task.
+     *
+     * @param unit the unit of the result
+     * @return the timeout, 0 when the default timeout of the runner applies
+     */
+    public final long getTimeout(final TimeUnit unit) {
+        return unit.convert(timeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time the run-method may take, overriding the default timeout
+     * of the {@link ConcurrentTaskRunner}. When it has passed, the task is
+     * canceled like with {@link TaskRunner#cancel(AbstractTask)}. Has to be
+     * set before the task is executed.
+     *
+     * @param timeout the timeout, 0 for the default timeout of the runner
+     * @param unit    the unit of the timeout
+     */
+    public final void setTimeout(final long timeout, final TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        this.timeout = unit.toNanos(timeout);
+    }
+
+    final HashedTimerWheel.Timeout getPendingTimeout() {
+        return pendingTimeout;
+    }
+
+    final void setPendingTimeout(final HashedTimerWheel.Timeout pendingTimeout) {
+        this.pendingTimeout = pendingTimeout;
+    }
+
+    /**
+     * Package-Private method called by the {@link TaskRunner} on the thread of
+     * the task before the run-method, from now on the thread may be
+     * {@link #interrupt() interrupted}.
+     */
+    final void runStarted() {
+        runPhase = IN_RUN;
+    }
+
+    /**
+     * Package-Private method called by the {@link TaskRunner} on the thread of
+     * the task after the run-method. An interrupt that is being delivered
+     * right now is awaited and cleared, so it doesn't hit the next task of the
+     * thread.
+     */
+    final void runFinished() {
+        if (!RUN_PHASE_UPDATER.compareAndSet(this, IN_RUN, NOT_RUNNING)) {
+            while (runPhase == INTERRUPTING) {
+                Thread.yield();
+            }
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Package-Private method to interrupt the thread of the task, but only
+     * while it is in the run-method.
+     *
+     * @return true when the thread has been interrupted
+     */
+    final boolean interrupt() {
+        if (!RUN_PHASE_UPDATER.compareAndSet(this, IN_RUN, INTERRUPTING)) {
+            return false;
+        }
+        try {
+            thread.interrupt();
+        } finally {
+            runPhase = NOT_RUNNING;
+        }
+        return true;
+    }
+
+    /**
+     * Declares tasks this task depends on. A {@link QueuedTaskRunner} queues
+     * this task once all of them have completed with
+     * {@link TaskResult#SUCCESS}; when one of them fails or is canceled, this
+     * task is canceled as well, and so are the tasks depending on it. The
+     * dependencies may run on any runner, but they have to be executed for
+     * this task to run; a dependency that is never executed, or a cycle of
+     * dependencies, keeps the task waiting until it is canceled. Has to be
+     * called before the task is executed.
+     *
+     * @param tasks the tasks that have to complete before this task
+     */
+    public final synchronized void dependsOn(final AbstractTask... tasks) {
+        final List<AbstractTask> allDependencies = new ArrayList<AbstractTask>(dependencies);
+        for (final AbstractTask task : tasks) {
+            if (task == null || task == this) {
+                throw new IllegalArgumentException("a task can't depend on '" + task + "'");
+            }
+            allDependencies.add(task);
+        }
+        dependencies = Collections.unmodifiableList(allDependencies);
+    }
+
+    /**
+     * The tasks this task depends on.
+     *
+     * @return the dependencies, empty when there are none
+     */
+    public final List<AbstractTask> getDependencies() {
+        return dependencies;
+    }
+
     /**
      * Each Task runs in it's own Thread-instance.
      *
@@ -70,6 +222,19 @@ public abstract class AbstractTask {
         this.state = state;
     }
 
+    /**
+     * Package-Private method called by the {@link TaskRunner} to atomically
+     * change the state of the task.
+     *
+     * @param expect the state the task is expected to be in
+     * @param update the new state
+     * @return true when the task was in the expected state and has been
+     *         changed, false when another thread changed the state before
+     */
+    final boolean compareAndSetState(final TaskState expect, final TaskState update) {
+        return STATE_UPDATER.compareAndSet(this, expect, update);
+    }
+
     /**
      * Result of the task after completed.
      *
@@ -79,6 +244,17 @@ public abstract class AbstractTask {
         return result;
     }
 
+    /**
+     * The completion handle of this task, it can be used to wait for the
+     * result or to register callbacks. A periodic task gets a new handle
+     * for every run.
+     *
+     * @return the completion handle
+     */
+    final public TaskFuture getFuture() {
+        return future;
+    }
+
     /**
      * Package-Private method called by the {@link TaskRunner} when the task is
      * completed.
@@ -89,4 +265,123 @@ public abstract class AbstractTask {
         this.result = result;
     }
 
+    /**
+     * The {@link System#nanoTime()} when the task has been handed to a
+     * {@link TaskRunner}.
+     *
+     * @return the time, 0 when the task hasn't been executed yet
+     */
+    final public long getQueuedTime() {
+        return queuedTime;
+    }
+
+    final void setQueuedTime(final long queuedTime) {
+        this.queuedTime = queuedTime;
+    }
+
+    /**
+     * The {@link System#nanoTime()} when the run-method has been entered.
+     *
+     * @return the time, 0 when the task hasn't been started yet
+     */
+    final public long getStartTime() {
+        return startTime;
+    }
+
+    final void setStartTime(final long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * The {@link System#nanoTime()} when the task has been completed.
+     *
+     * @return the time, 0 when the task hasn't been completed yet
+     */
+    final public long getCompletionTime() {
+        return completionTime;
+    }
+
+    final void setCompletionTime(final long completionTime) {
+        this.completionTime = completionTime;
+    }
+
+    /**
+     * The number of the current attempt to run this task, a
+     * {@link RetryPolicy} may run a failed task again.
+     *
+     * @return the attempt, starting with 1
+     */
+    public final int getAttempt() {
+        return attempt;
+    }
+
+    final void setAttempt(final int attempt) {
+        this.attempt = attempt;
+    }
+
+    /**
+     * Package-Private id of the task in a {@link TaskJournal}.
+     *
+     * @return the id, 0 when the task hasn't been journaled
+     */
+    final long getJournalId() {
+        return journalId;
+    }
+
+    final void setJournalId(final long journalId) {
+        this.journalId = journalId;
+    }
+
+    /**
+     * Package-Private method telling whether cancellation has been requested
+     * through a {@link QueuedTaskRunner}, a canceled task isn't retried.
+     *
+     * @return true when the task has been asked to cancel
+     */
+    final boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    final void setCancelRequested(final boolean cancelRequested) {
+        this.cancelRequested = cancelRequested;
+    }
+
+    /**
+     * Package-Private method to tell the runs of a periodic or retried task
+     * apart, it is incremented by {@link #reset(boolean)}. A runner only
+     * completes the future of a task when it's generation hasn't changed
+     * while the listeners were notified.
+     *
+     * @return the number of times the task has been reset
+     */
+    final int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Package-Private method called by the {@link QueuedTaskRunner} to run a
+     * completed task again. The task is initialized again; the state is set
+     * last, so a thread that sees the task initialized also sees the rest.
+     * A requested cancel is kept when the handle is kept, so it also stops
+     * the attempts after a retry.
+     *
+     * @param newFuture true to give the task a new completion handle for the
+     *                  next run, false to keep the handle for the final result
+     */
+    final void reset(final boolean newFuture) {
+        generation++;
+        thread = null;
+        result = null;
+        queuedTime = 0;
+        startTime = 0;
+        completionTime = 0;
+        pendingTimeout = null;
+        runPhase = NOT_RUNNING;
+        if (newFuture) {
+            cancelRequested = false;
+            future = new TaskFuture();
+        }
+        state = TaskState.INITIALIZED;
+    }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ConcurrencyLimit} that adapts itself with additive increase and
+ * multiplicative decrease (AIMD).
+ * <p>
+ * Every successful task raises the limit by {@code 1 / limit}, so the limit
+ * grows by one after a limit's worth of successful tasks. It only grows while
+ * at least half of the limit is in use, otherwise a low load would drive it up
+ * without ever testing it. A task completing with {@link TaskResult#ERROR} or
+ * {@link TaskResult#FATAL}, or running longer than the
+ * {@link #setMaximumRunTime maximum run time}, multiplies the limit with the
+ * {@link #setBackoffRatio backoff-ratio}. Tasks dispatched before the last
+ * decrease don't decrease it again, so a burst of failures only backs off once.
+ * Canceled tasks are ignored.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class AdaptiveConcurrencyLimit implements ConcurrencyLimit {
+
+    private final int minimumLimit;
+    private final int maximumLimit;
+    private volatile double backoffRatio = 0.9;
+    private volatile long maximumRunTime = Long.MAX_VALUE;
+    private double estimatedLimit;
+    private long lastDecrease = System.nanoTime();
+    private volatile int limit;
+
+    /**
+     * Default Constructor, starts with 20 and adapts between 1 and 1000.
+     */
+    public AdaptiveConcurrencyLimit() {
+        this(20, 1, 1000);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param initialLimit the limit to start with
+     * @param minimumLimit the limit never drops below this, at least 1
+     * @param maximumLimit the limit never grows above this
+     */
+    public AdaptiveConcurrencyLimit(final int initialLimit, final int minimumLimit, final int maximumLimit) {
+        if (minimumLimit < 1 || maximumLimit < minimumLimit || initialLimit < minimumLimit
+                || initialLimit > maximumLimit) {
+            throw new IllegalArgumentException("invalid limits: initial=" + initialLimit + ", minimum="
+                    + minimumLimit + ", maximum=" + maximumLimit);
+        }
+        this.minimumLimit = minimumLimit;
+        this.maximumLimit = maximumLimit;
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized void taskComplete(final long startTime, final long runTime, final int numberOfRunningTasks,
+                                          final TaskResult result) {
+        if (result == null || result.getStatus() == TaskResult.CANCEL) {
+            // a task without a result says nothing about the load
+            return;
+        }
+        final byte status = result.getStatus();
+        if (status == TaskResult.ERROR || status == TaskResult.FATAL || runTime > maximumRunTime) {
+            if (startTime - lastDecrease < 0) {
+                return;
+            }
+            estimatedLimit = Math.max(minimumLimit, estimatedLimit * backoffRatio);
+            lastDecrease = System.nanoTime();
+        } else if (numberOfRunningTasks * 2 >= limit) {
+            estimatedLimit = Math.min(maximumLimit, estimatedLimit + 1.0 / estimatedLimit);
+        } else {
+            return;
+        }
+        limit = (int) estimatedLimit;
+    }
+
+    public int getMinimumLimit() {
+        return minimumLimit;
+    }
+
+    public int getMaximumLimit() {
+        return maximumLimit;
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * Sets the factor the limit is multiplied with when the runner is
+     * overloaded, defaults to 0.9.
+     *
+     * @param backoffRatio a factor between 0 and 1 (exclusive)
+     */
+    public void setBackoffRatio(final double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1: " + backoffRatio);
+        }
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Sets the run time above which a successful task counts as a sign of
+     * overload, by default there is none.
+     *
+     * @param maximumRunTime the maximum run time
+     * @param unit           the unit of the run time
+     */
+    public void setMaximumRunTime(final long maximumRunTime, final TimeUnit unit) {
+        this.maximumRunTime = unit.toNanos(maximumRunTime);
+    }
+}
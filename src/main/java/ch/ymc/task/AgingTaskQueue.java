@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Package-Private priority queue for the {@link QueuedTaskRunner} that
+ * prevents the starvation of low-priority tasks: a task that has waited
+ * longer than the maximum wait time is dispatched before all tasks queued
+ * after it, whatever their priority.
+ * <p>
+ * Besides the order of the comparator, the tasks are grouped into buckets by
+ * the time they were queued, every bucket covers a sixteenth of the maximum
+ * wait time. Once the oldest bucket has waited for the maximum wait time,
+ * it's tasks are aged: they are polled before all others, by priority among
+ * themselves, until the bucket is empty. The priority of a task never has to
+ * be computed again and nothing is re-sorted; polling only compares the age
+ * of the oldest bucket, so it costs O(1) on top of the O(log n) of the
+ * priority order.
+ * <p>
+ * A task waits at most the maximum wait time plus the time to dispatch the
+ * aged tasks queued before it.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+final class AgingTaskQueue<T extends AbstractTask> implements TaskQueue<T> {
+
+    private static final int BUCKETS_PER_WAIT_TIME = 16;
+
+    private final Comparator<Entry<T>> entryComparator;
+    private final Lock lock = new ReentrantLock();
+    // guarded by the lock
+    private final TreeSet<Entry<T>> entries;
+    private final Map<T, Entry<T>> index = new HashMap<T, Entry<T>>();
+    private final ArrayDeque<Bucket<T>> buckets = new ArrayDeque<Bucket<T>>();
+    private long sequence;
+    private long numberOfAgedTasks;
+    private volatile long maximumWaitTime;
+    private volatile int size;
+
+    /**
+     * Default Constructor.
+     *
+     * @param comparator      describes the order of the tasks
+     * @param maximumWaitTime the nanoseconds after which a task is aged, at least 1
+     */
+    AgingTaskQueue(final Comparator<? super T> comparator, final long maximumWaitTime) {
+        setMaximumWaitTime(maximumWaitTime);
+        this.entryComparator = new Comparator<Entry<T>>() {
+            @Override
+            public int compare(final Entry<T> entry1, final Entry<T> entry2) {
+                final int result = comparator.compare(entry1.task, entry2.task);
+                if (result != 0) {
+                    return result;
+                }
+                return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence == entry2.sequence ? 0 : 1);
+            }
+        };
+        this.entries = new TreeSet<Entry<T>>(entryComparator);
+    }
+
+    long getMaximumWaitTime() {
+        return maximumWaitTime;
+    }
+
+    /**
+     * Changes the maximum wait time, buckets that already exist keep their
+     * length.
+     *
+     * @param maximumWaitTime the nanoseconds after which a task is aged, at least 1
+     */
+    void setMaximumWaitTime(final long maximumWaitTime) {
+        if (maximumWaitTime <= 0) {
+            throw new IllegalArgumentException("invalid maximum wait time: " + maximumWaitTime);
+        }
+        this.maximumWaitTime = maximumWaitTime;
+    }
+
+    @Override
+    public boolean add(final T task) {
+        lock.lock();
+        try {
+            if (index.containsKey(task)) {
+                return false;
+            }
+            addEntry(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean addAll(final Collection<T> tasks) {
+        lock.lock();
+        try {
+            for (final T task : tasks) {
+                if (index.containsKey(task)) {
+                    return false;
+                }
+            }
+            for (final T task : tasks) {
+                addEntry(task);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll() {
+        lock.lock();
+        try {
+            while (!buckets.isEmpty() && buckets.peekFirst().entries.isEmpty()) {
+                buckets.pollFirst();
+            }
+            final Bucket<T> oldest = buckets.peekFirst();
+            final Entry<T> entry;
+            if (oldest != null && System.nanoTime() - oldest.startTime >= maximumWaitTime) {
+                entry = oldest.entries.pollFirst();
+                entries.remove(entry);
+                numberOfAgedTasks++;
+            } else {
+                entry = entries.pollFirst();
+                if (entry == null) {
+                    return null;
+                }
+                entry.bucket.entries.remove(entry);
+            }
+            index.remove(entry.task);
+            size--;
+            return entry.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The queued task with the lowest priority, it may be polled earlier
+     * when it has waited long enough.
+     */
+    @Override
+    public T peekLast() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : entries.last().task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release(final T task) {
+        // tasks are not limited by the queue
+    }
+
+    @Override
+    public boolean remove(final T task) {
+        lock.lock();
+        try {
+            final Entry<T> entry = index.remove(task);
+            if (entry == null) {
+                return false;
+            }
+            entries.remove(entry);
+            entry.bucket.entries.remove(entry);
+            size--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(final T task) {
+        lock.lock();
+        try {
+            return index.containsKey(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+        return size != 0;
+    }
+
+    @Override
+    public long getThrottleDelay() {
+        return -1;
+    }
+
+    @Override
+    public List<T> toList() {
+        lock.lock();
+        try {
+            final List<T> tasks = new ArrayList<T>(entries.size());
+            for (final Entry<T> entry : entries) {
+                tasks.add(entry.task);
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of tasks that have been polled before tasks of a higher
+     * priority because they had waited too long.
+     *
+     * @return the number of aged tasks
+     */
+    long getNumberOfAgedTasks() {
+        lock.lock();
+        try {
+            return numberOfAgedTasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a task to the newest bucket, or starts a new one when the newest
+     * is older than it's length. A task queued with an older time than the
+     * newest bucket, e.g. by a concurrent submitter, joins the newest bucket
+     * and ages a little later.
+     */
+    private void addEntry(final T task) {
+        final long queuedTime = task.getQueuedTime() != 0 ? task.getQueuedTime() : System.nanoTime();
+        Bucket<T> bucket = buckets.peekLast();
+        if (bucket == null || queuedTime - bucket.startTime >= Math.max(1, maximumWaitTime / BUCKETS_PER_WAIT_TIME)) {
+            bucket = new Bucket<T>(queuedTime, entryComparator);
+            buckets.addLast(bucket);
+        }
+        final Entry<T> entry = new Entry<T>(task, sequence++, bucket);
+        index.put(task, entry);
+        entries.add(entry);
+        bucket.entries.add(entry);
+        size++;
+    }
+
+    /**
+     * A queued task with it's insertion-order as tie-breaker.
+     */
+    private static final class Entry<T> {
+        private final T task;
+        private final long sequence;
+        private final Bucket<T> bucket;
+
+        Entry(final T task, final long sequence, final Bucket<T> bucket) {
+            this.task = task;
+            this.sequence = sequence;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * The tasks queued within the length of a bucket, by priority.
+     */
+    private static final class Bucket<T> {
+        private final long startTime;
+        private final TreeSet<Entry<T>> entries;
+
+        Bucket(final long startTime, final Comparator<Entry<T>> entryComparator) {
+            this.startTime = startTime;
+            this.entries = new TreeSet<Entry<T>>(entryComparator);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+/**
+ * Decides how many tasks a {@link QueuedTaskRunner} may run at once. The
+ * runner reports every completed task, so an implementation can adapt the
+ * limit to the observed run times and results.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public interface ConcurrencyLimit {
+
+    /**
+     * The number of tasks that may currently run at once. Called on every
+     * dispatch, so it should be cheap.
+     *
+     * @return the current limit, at least 1
+     */
+    int getLimit();
+
+    /**
+     * Called for every completed task that has been dispatched by the runner,
+     * possibly by several threads at once. The permit of the task has been
+     * released already, an exception is logged and otherwise ignored.
+     *
+     * @param startTime            the {@link System#nanoTime()} when the task got dispatched
+     * @param runTime              nanoseconds from dispatch until completion
+     * @param numberOfRunningTasks the number of dispatched tasks including this one
+     * @param result               the result of the task, null when the task returned none
+     */
+    void taskComplete(long startTime, long runTime, int numberOfRunningTasks, TaskResult result);
+}
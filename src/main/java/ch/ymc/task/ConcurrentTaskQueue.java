@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Package-Private priority queue for the {@link QueuedTaskRunner}, backed by a
+ * concurrent skip-list so tasks can be added, polled and removed by several
+ * threads without a global lock.
+ * <p>
+ * Tasks the comparator considers equal are kept in the order they were added.
+ * An index from each task to it's entry makes {@link #contains} O(1) and
+ * {@link #remove} O(log n); a task can only be queued once at a time.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+class ConcurrentTaskQueue<T extends AbstractTask> implements TaskQueue<T> {
+
+    private final ConcurrentSkipListSet<Entry<T>> entries;
+    private final ConcurrentMap<T, Entry<T>> index = new ConcurrentHashMap<T, Entry<T>>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Default Constructor.
+     *
+     * @param comparator describes the order of the tasks
+     */
+    ConcurrentTaskQueue(final Comparator<? super T> comparator) {
+        entries = new ConcurrentSkipListSet<Entry<T>>(new Comparator<Entry<T>>() {
+            @Override
+            public int compare(final Entry<T> entry1, final Entry<T> entry2) {
+                final int result = comparator.compare(entry1.task, entry2.task);
+                if (result != 0) {
+                    return result;
+                }
+                return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence == entry2.sequence ? 0 : 1);
+            }
+        });
+    }
+
+    @Override
+    public boolean add(final T task) {
+        final Entry<T> entry = new Entry<T>(task, sequence.getAndIncrement());
+        if (index.putIfAbsent(task, entry) != null) {
+            return false;
+        }
+        size.incrementAndGet();
+        entries.add(entry);
+        return true;
+    }
+
+    @Override
+    public boolean addAll(final Collection<T> tasks) {
+        final List<Entry<T>> added = new ArrayList<Entry<T>>(tasks.size());
+        long taskSequence = sequence.getAndAdd(tasks.size());
+        for (final T task : tasks) {
+            final Entry<T> entry = new Entry<T>(task, taskSequence++);
+            if (index.putIfAbsent(task, entry) != null) {
+                for (final Entry<T> addedEntry : added) {
+                    index.remove(addedEntry.task, addedEntry);
+                }
+                return false;
+            }
+            added.add(entry);
+        }
+        size.addAndGet(added.size());
+        entries.addAll(added);
+        return true;
+    }
+
+    @Override
+    public T poll() {
+        final Entry<T> entry = entries.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        index.remove(entry.task, entry);
+        size.decrementAndGet();
+        return entry.task;
+    }
+
+    @Override
+    public T peekLast() {
+        try {
+            return entries.last().task;
+        } catch (final NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean remove(final T task) {
+        final Entry<T> entry = index.get(task);
+        if (entry != null && entries.remove(entry)) {
+            index.remove(task, entry);
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(final T task) {
+        return index.containsKey(task);
+    }
+
+    @Override
+    public void release(final T task) {
+        // tasks are not limited by the queue
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public boolean isReady() {
+        return !entries.isEmpty();
+    }
+
+    @Override
+    public long getThrottleDelay() {
+        return -1;
+    }
+
+    @Override
+    public List<T> toList() {
+        final List<T> tasks = new ArrayList<T>(size());
+        for (final Entry<T> entry : entries) {
+            tasks.add(entry.task);
+        }
+        return tasks;
+    }
+
+    /**
+     * A queued task with it's insertion-order as tie-breaker.
+     */
+    private static final class Entry<T> {
+        private final T task;
+        private final long sequence;
+
+        Entry(final T task, final long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+        }
+    }
+}
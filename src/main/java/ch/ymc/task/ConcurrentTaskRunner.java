@@ -3,17 +3,56 @@
  */
 package ch.ymc.task;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@link TaskRunner} that uses the Executor-Framework of J2SE to run
  * tasks in parallel.
+ * <p>
+ * By default {@link #execute(AbstractTask)} waits until the task has been
+ * picked up by a thread of the pool. With asynchronous submission enabled it
+ * returns as soon as the task has been handed to the pool, the thread of the
+ * task is published when it actually starts.
+ * <p>
+ * The runner doesn't hold a lock on the hot path, the state of the tasks is
+ * changed with atomic transitions and the running tasks are kept in a
+ * concurrent set.
+ * <p>
+ * The runner stamps every task with the time it was queued, started and
+ * completed; with {@link #setMetrics(TaskMetrics) metrics} set, the resulting
+ * latencies are recorded when the task completes.
+ * <p>
+ * The {@link TaskEventListener}s are notified by the thread that ran the task,
+ * unless an {@link #setEventQueueCapacity event queue} is set; then a single
+ * thread notifies them and the task's thread only queues the event.
+ * {@link TaskLifecycleListener}s are also told when a task has been handed to
+ * the pool, has started and is asked to cancel.
+ * <p>
+ * Tasks whose run-method takes longer than their
+ * {@link AbstractTask#setTimeout timeout} or the
+ * {@link #setDefaultTimeout default timeout} of the runner are canceled and,
+ * with {@link #setInterruptOnTimeout}, interrupted. The deadlines of all
+ * runners are kept by a single timer-thread, which expires them in ticks of
+ * 10 milliseconds. The timer-thread only marks the task canceling and
+ * interrupts it; the cancel-method of the task and the listeners are called
+ * on a separate pool of daemon threads, so a slow cancel doesn't hold up the
+ * deadlines of other tasks.
  *
  * @param <T> The concrete {@link AbstractTask}-Type
  * @author nkuebler, YMC AG
@@ -21,124 +60,352 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class ConcurrentTaskRunner<T extends AbstractTask> implements TaskRunner<T> {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentTaskRunner.class);
+
     private transient final Set<T> runningTasks;
+    private transient final AtomicInteger numberOfExecutingTasks = new AtomicInteger();
     private transient final ExecutorService threadPool;
-    private TaskEventListener<T> taskEventListener;
-    private final transient Lock runningTasksLock = new ReentrantLock();
-    private final transient Condition taskDoneCondition = runningTasksLock.newCondition();
-    private final transient Condition taskStartCondition = runningTasksLock.newCondition();
+    private transient final boolean sharedThreadPool;
+    private final TaskEventDispatcher<T> events = new TaskEventDispatcher<T>("task-events");
+    private volatile boolean asynchronousSubmission;
+    private volatile TaskMetrics metrics;
+    private volatile long defaultTimeout;
+    private volatile boolean interruptOnTimeout;
+    private volatile HashedTimerWheel timer;
 
     /**
      * Constructor.
      */
     public ConcurrentTaskRunner() {
-        threadPool = Executors.newCachedThreadPool();
-        runningTasks = new HashSet<T>();
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param asynchronousSubmission when true, {@link #execute(AbstractTask)}
+     *                               doesn't wait for the task to be started
+     */
+    public ConcurrentTaskRunner(final boolean asynchronousSubmission) {
+        this(Executors.newCachedThreadPool(), false, asynchronousSubmission);
+    }
+
+    /**
+     * Constructor for a runner using a given thread pool, for instance one
+     * created by {@link TaskExecutors#newBoundedThreadPool}. The pool may be
+     * shared by several runners, it is not shut down when this runner is
+     * disposed.
+     * <p>
+     * With a bounded pool, consider asynchronous submission: a synchronous
+     * {@link #execute(AbstractTask)} waits until a thread becomes free.
+     *
+     * @param threadPool             the pool executing the tasks
+     * @param asynchronousSubmission when true, {@link #execute(AbstractTask)}
+     *                               doesn't wait for the task to be started
+     */
+    public ConcurrentTaskRunner(final ExecutorService threadPool, final boolean asynchronousSubmission) {
+        this(threadPool, true, asynchronousSubmission);
+    }
+
+    /**
+     * Constructor for a runner using a given thread pool, see
+     * {@link #ConcurrentTaskRunner(ExecutorService, boolean)}.
+     *
+     * @param threadPool the pool executing the tasks
+     */
+    public ConcurrentTaskRunner(final ExecutorService threadPool) {
+        this(threadPool, true, false);
+    }
+
+    /**
+     * Constructor for a runner with it's own bounded pool of threads named by a
+     * {@link TaskThreadFactory}.
+     *
+     * @param maximumPoolSize        the maximum number of threads
+     * @param namePrefix             the prefix for the thread names
+     * @param daemon                 whether the threads are daemon threads
+     * @param asynchronousSubmission when true, {@link #execute(AbstractTask)}
+     *                               doesn't wait for the task to be started
+     */
+    public ConcurrentTaskRunner(final int maximumPoolSize, final String namePrefix, final boolean daemon,
+                                final boolean asynchronousSubmission) {
+        this(TaskExecutors.newBoundedThreadPool(maximumPoolSize, namePrefix, daemon), false, asynchronousSubmission);
+    }
+
+    /**
+     * Creates a runner that executes every task on it's own virtual thread,
+     * see {@link TaskExecutors#newVirtualThreadPerTaskExecutor(String)}.
+     * Submission is asynchronous.
+     *
+     * @param namePrefix the prefix for the thread names
+     * @param <T>        The concrete {@link AbstractTask}-Type
+     * @return the runner
+     * @throws UnsupportedOperationException when the JVM doesn't support virtual threads
+     */
+    public static <T extends AbstractTask> ConcurrentTaskRunner<T> withVirtualThreads(final String namePrefix) {
+        return new ConcurrentTaskRunner<T>(TaskExecutors.newVirtualThreadPerTaskExecutor(namePrefix), false, true);
+    }
+
+    /**
+     * Constructor for subclasses bringing their own thread pool.
+     *
+     * @param threadPool             the pool executing the tasks
+     * @param sharedThreadPool       when true, the pool is not shut down when this runner is disposed
+     * @param asynchronousSubmission when true, {@link #execute(AbstractTask)}
+     *                               doesn't wait for the task to be started
+     */
+    protected ConcurrentTaskRunner(final ExecutorService threadPool, final boolean sharedThreadPool,
+                                   final boolean asynchronousSubmission) {
+        if (threadPool == null) {
+            throw new IllegalArgumentException("threadPool must not be null");
+        }
+        this.threadPool = threadPool;
+        this.sharedThreadPool = sharedThreadPool;
+        this.runningTasks = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+        this.asynchronousSubmission = asynchronousSubmission;
     }
 
 
     @Override
     public void execute(final T task) throws TaskException, InterruptedException {
-        if (task.getState() != TaskState.INITIALIZED) {
+        if (!task.compareAndSetState(TaskState.INITIALIZED, TaskState.RUNNING)) {
             throw new TaskException("Task '" + task + "' is not in initialzed state, state is: '" + task.getState() + "'.");
         }
-        runningTasksLock.lock();
-        try {
-            final Runnable runnable = new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        runningTasksLock.lock();
-                        task.setThread(Thread.currentThread());
-                        taskStartCondition.signal();
-                    } finally {
-                        runningTasksLock.unlock();
-                    }
-                    TaskResult result = null;
-                    try {
-                        result = task.run();
-                    } catch (final Throwable t) {
-                        result = new TaskResult(TaskResult.FATAL, t);
-                    } finally {
-                        complete(task, result);
+        final CountDownLatch started = isAsynchronousSubmission() ? null : new CountDownLatch(1);
+        submit(task, started);
+        if (started != null) {
+            started.await();
+        }
+    }
+
+    /**
+     * Submits the whole batch after validating it. When the pool rejects a
+     * task, the tasks before it keep running, the rejected task and the
+     * following ones are set back to initialized and the
+     * {@link RejectedExecutionException} is thrown.
+     */
+    @Override
+    public void executeAll(final Collection<T> tasks) throws TaskException, InterruptedException {
+        validateBatch(tasks);
+        final List<T> claimed = new ArrayList<T>(tasks.size());
+        for (final T task : tasks) {
+            if (!task.compareAndSetState(TaskState.INITIALIZED, TaskState.RUNNING)) {
+                for (final T claimedTask : claimed) {
+                    claimedTask.setState(TaskState.INITIALIZED);
+                }
+                throw new TaskException("Task '" + task + "' is not in initialzed state, state is: '" + task.getState() + "'.");
+            }
+            claimed.add(task);
+        }
+        final CountDownLatch started = isAsynchronousSubmission() ? null : new CountDownLatch(claimed.size());
+        for (int i = 0; i < claimed.size(); i++) {
+            try {
+                submit(claimed.get(i), started);
+            } catch (final RejectedExecutionException e) {
+                for (final T notSubmitted : claimed.subList(i + 1, claimed.size())) {
+                    notSubmitted.setState(TaskState.INITIALIZED);
+                    if (started != null) {
+                        started.countDown();
                     }
                 }
-            };
+                throw e;
+            }
+        }
+        if (started != null) {
+            started.await();
+        }
+    }
+
+    /**
+     * Package-Private check shared by the runners: all tasks of a batch have
+     * to be initialized and may only be contained once.
+     *
+     * @param tasks the batch to validate
+     * @param <T>   The concrete {@link AbstractTask}-Type
+     * @throws TaskException when a task has a wrong state or is contained twice
+     */
+    static <T extends AbstractTask> void validateBatch(final Collection<T> tasks) throws TaskException {
+        final Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>(tasks.size()));
+        for (final T task : tasks) {
+            if (task.getState() != TaskState.INITIALIZED) {
+                throw new TaskException("Task '" + task + "' is not in initialzed state, state is: '" + task.getState() + "'.");
+            }
+            if (!seen.add(task)) {
+                throw new TaskException("Task '" + task + "' is contained twice in the batch.");
+            }
+        }
+    }
 
-            runningTasks.add(task);
-            task.setState(TaskState.RUNNING);
+    /**
+     * Hands a task that has already been set to running to the pool.
+     *
+     * @param task    the task to run
+     * @param started counted down when the task has been picked up, may be null
+     */
+    private void submit(final T task, final CountDownLatch started) {
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                task.setThread(Thread.currentThread());
+                task.setStartTime(System.nanoTime());
+                events.taskStarted(task);
+                if (started != null) {
+                    started.countDown();
+                }
+                task.runStarted();
+                TaskResult result = null;
+                try {
+                    startTimeout(task);
+                    result = task.run();
+                } catch (final Throwable t) {
+                    result = new TaskResult(TaskResult.FATAL, t);
+                } finally {
+                    task.runFinished();
+                    complete(task, result);
+                }
+            }
+        };
+
+        // a task dispatched by a QueuedTaskRunner keeps the time it was queued there
+        final boolean stamped = task.getQueuedTime() == 0;
+        if (stamped) {
+            task.setQueuedTime(System.nanoTime());
+        }
+        runningTasks.add(task);
+        numberOfExecutingTasks.incrementAndGet();
+        // before handing it over, the task may start right away
+        events.taskQueued(task);
+        try {
             threadPool.execute(runnable);
-            taskStartCondition.await();
-        } finally {
-            runningTasksLock.unlock();
+        } catch (final RejectedExecutionException e) {
+            runningTasks.remove(task);
+            numberOfExecutingTasks.decrementAndGet();
+            if (stamped) {
+                task.setQueuedTime(0);
+            }
+            task.setState(TaskState.INITIALIZED);
+            throw e;
+        }
+        final TaskMetrics taskMetrics = metrics;
+        if (taskMetrics != null) {
+            taskMetrics.tasksQueued(1);
         }
     }
 
     @Override
     public void cancel(final T task) throws TaskException {
-        runningTasksLock.lock();
-        try {
-            if (!this.runningTasks.contains(task) && task.getState() != TaskState.COMPLETE) {
+        if (!this.runningTasks.contains(task)) {
+            if (task.getState() != TaskState.COMPLETE) {
                 throw new TaskException("Task doesn't belong to this TaskRunner");
-            } else if (task.getState() == TaskState.RUNNING) {
-                task.setState(TaskState.CANCELING);
-                task.cancel();
             }
-        } finally {
-            runningTasksLock.unlock();
+        } else {
+            requestCancel(task);
+        }
+    }
+
+    private boolean requestCancel(final T task) {
+        if (!task.compareAndSetState(TaskState.RUNNING, TaskState.CANCELING)) {
+            return false;
+        }
+        notifyCancelRequested(task);
+        return true;
+    }
+
+    /**
+     * Tells the listeners and the task itself that it has been asked to
+     * cancel, after it has been set to canceling.
+     *
+     * @param task the canceling task
+     */
+    private void notifyCancelRequested(final T task) {
+        events.taskCancelRequested(task);
+        task.cancel();
+    }
+
+    /**
+     * Schedules the timeout of a task that is about to run, if it has one.
+     *
+     * @param task the task
+     */
+    private void startTimeout(final T task) {
+        long timeout = task.getTimeout(TimeUnit.NANOSECONDS);
+        if (timeout == 0) {
+            timeout = defaultTimeout;
+            if (timeout == 0) {
+                return;
+            }
+        }
+        final int generation = task.getGeneration();
+        task.setPendingTimeout(getTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                timeout(task, generation);
+            }
+        }, timeout));
+    }
+
+    /**
+     * Called by the timer-thread when the run-method of a task has taken too
+     * long. The task may complete at the same time, then it isn't canceled
+     * anymore; it is only interrupted while it is in it's run-method. The
+     * timer-thread is shared by all runners, so it only sets the state and
+     * interrupts; the task and the listeners are told on a cancel-thread,
+     * unless the task has completed by then.
+     *
+     * @param task       the task that has timed out
+     * @param generation the generation of the run that has timed out, a
+     *                   periodic task may already run again
+     */
+    private void timeout(final T task, final int generation) {
+        if (task.getGeneration() != generation || !runningTasks.contains(task)
+                || !task.compareAndSetState(TaskState.RUNNING, TaskState.CANCELING)) {
+            return;
+        }
+        LOG.warn("task '{}' timed out after {}ms", task,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.getStartTime()));
+        if (interruptOnTimeout) {
+            task.interrupt();
         }
+        CancelExecutorHolder.EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (task.getGeneration() != generation || task.getState() != TaskState.CANCELING
+                        || !runningTasks.contains(task)) {
+                    return;
+                }
+                try {
+                    notifyCancelRequested(task);
+                } catch (final RuntimeException e) {
+                    LOG.error("could not cancel timed out task '" + task + "'", e);
+                }
+            }
+        });
     }
 
     @Override
     public boolean isExecuting(final T task) {
-        runningTasksLock.lock();
-        try {
-            return task.getState() == TaskState.RUNNING || task.getState() == TaskState.CANCELING;
-        } finally {
-            runningTasksLock.unlock();
-        }
+        final TaskState state = task.getState();
+        return state == TaskState.RUNNING || state == TaskState.CANCELING;
     }
 
     @Override
     public boolean isComplete(final T task) {
-        runningTasksLock.lock();
-        try {
-            return task.getState() == TaskState.COMPLETE;
-        } finally {
-            runningTasksLock.unlock();
-        }
+        return task.getState() == TaskState.COMPLETE;
     }
 
     @Override
     public boolean hasStarted(final T task) {
-        runningTasksLock.lock();
-        try {
-            return task.getState() != TaskState.INITIALIZED;
-        } finally {
-            runningTasksLock.unlock();
-        }
+        return task.getState() != TaskState.INITIALIZED;
     }
 
     @Override
     public int getNumberOfExecutingTasks() {
-        try {
-            runningTasksLock.lock();
-            return getRunningTasks().size();
-        } finally {
-            runningTasksLock.unlock();
-        }
+        return numberOfExecutingTasks.get();
     }
 
     @Override
     public void join() throws InterruptedException, TaskException {
-        HashSet<T> set = null;
-        try {
-            runningTasksLock.lock();
-            set = new HashSet<T>(getRunningTasks());
-        } finally {
-            runningTasksLock.unlock();
-        }
-        join(set);
+        join(new HashSet<T>(getRunningTasks()));
     }
 
     @Override
@@ -153,67 +420,210 @@ public class ConcurrentTaskRunner<T extends AbstractTask> implements TaskRunner<
         if (task.getState() == TaskState.INITIALIZED) {
             throw new TaskException("Task '" + task + "' has not yet been started.");
         }
-        while (task.getState() != TaskState.COMPLETE) {
-            try {
-                runningTasksLock.lock();
-                if (task.getState() != TaskState.COMPLETE) {
-                    taskDoneCondition.await();
-                }
-            } finally {
-                runningTasksLock.unlock();
-            }
-        }
+        task.getFuture().await();
     }
 
     /**
      * Package-Private method which is called when a task has completed it's
-     * execution.
+     * execution. The task is marked complete before it is removed from the
+     * running tasks, so a task that is not running anymore is always seen
+     * complete.
      *
      * @param task   the task that completed execution
      * @param result the execution-result
      */
     private void complete(final T task, final TaskResult result) {
+        // a listener may reset the task to run it again, it then completes the future itself
+        final TaskFuture future = task.getFuture();
+        final int generation = task.getGeneration();
         TaskResult taskResult = result;
-        runningTasksLock.lock();
-        try {
-            if (!runningTasks.remove(task)) {
-                taskResult = new TaskResult(TaskResult.FATAL, new TaskException("couldn't remove Task from runningTasks"));
-            }
-            task.setResult(taskResult);
-            task.setState(TaskState.COMPLETE);
-        } finally {
-            runningTasksLock.unlock();
+        if (!runningTasks.contains(task)) {
+            taskResult = new TaskResult(TaskResult.FATAL, new TaskException("couldn't remove Task from runningTasks"));
         }
-        // TODO: SIDE-EFFECTS MAY HAPPEN, IF DEADLOCK OCCUR MOVE
-        // TASK-DONE-CONDITION BACK BEFORE THIS
-        if (this.taskEventListener != null) {
-            this.taskEventListener.taskComplete(task, taskResult);
+        final HashedTimerWheel.Timeout pendingTimeout = task.getPendingTimeout();
+        if (pendingTimeout != null) {
+            pendingTimeout.cancel();
+            task.setPendingTimeout(null);
+        }
+        task.setCompletionTime(System.nanoTime());
+        task.setResult(taskResult);
+        task.setState(TaskState.COMPLETE);
+        if (runningTasks.remove(task)) {
+            numberOfExecutingTasks.decrementAndGet();
         }
-        runningTasksLock.lock();
         try {
-            taskDoneCondition.signalAll();
+            final TaskMetrics taskMetrics = metrics;
+            if (taskMetrics != null) {
+                taskMetrics.taskComplete(task, taskResult);
+            }
+            events.taskComplete(task, taskResult);
         } finally {
-            runningTasksLock.unlock();
+            if (task.getGeneration() == generation) {
+                future.complete(taskResult);
+            }
         }
     }
 
+    /**
+     * Whether {@link #execute(AbstractTask)} returns without waiting for the
+     * task to be started by a thread of the pool.
+     *
+     * @return true when submission is asynchronous
+     */
+    public boolean isAsynchronousSubmission() {
+        return asynchronousSubmission;
+    }
+
+    /**
+     * Enable or disable asynchronous submission. When enabled,
+     * {@link AbstractTask#getThread()} may still be null right after
+     * {@link #execute(AbstractTask)} returned.
+     *
+     * @param asynchronousSubmission true to return from execute without waiting
+     *                               for the task to start
+     */
+    public void setAsynchronousSubmission(final boolean asynchronousSubmission) {
+        this.asynchronousSubmission = asynchronousSubmission;
+    }
+
+    public TaskMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records the tasks of this runner in the given metrics, which may be
+     * shared with other runners. Null turns recording off.
+     *
+     * @param metrics the metrics to record to
+     */
+    public void setMetrics(final TaskMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The time the run-method of a task may take when the task has no
+     * timeout of it's own.
+     *
+     * @param unit the unit of the result
+     * @return the timeout, 0 when tasks without a timeout may run forever
+     */
+    public long getDefaultTimeout(final TimeUnit unit) {
+        return unit.convert(defaultTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time the run-method of a task may take when the task has no
+     * {@link AbstractTask#setTimeout timeout} of it's own. Applies to tasks
+     * started afterwards.
+     *
+     * @param timeout the timeout, 0 (the default) to let the tasks run forever
+     * @param unit    the unit of the timeout
+     */
+    public void setDefaultTimeout(final long timeout, final TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        this.defaultTimeout = unit.toNanos(timeout);
+    }
+
+    public boolean isInterruptOnTimeout() {
+        return interruptOnTimeout;
+    }
+
+    /**
+     * Whether the thread of a timed out task is interrupted after
+     * {@link AbstractTask#cancel()} has been called, for tasks that block
+     * without checking for cancellation. The thread is only interrupted while
+     * the task is in it's run-method; an interrupt the task doesn't handle is
+     * cleared before the thread runs another task.
+     *
+     * @param interruptOnTimeout true to interrupt timed out tasks
+     */
+    public void setInterruptOnTimeout(final boolean interruptOnTimeout) {
+        this.interruptOnTimeout = interruptOnTimeout;
+    }
+
+    private HashedTimerWheel getTimer() {
+        final HashedTimerWheel currentTimer = timer;
+        return currentTimer != null ? currentTimer : HashedTimerWheel.getShared();
+    }
+
+    /**
+     * Package-Private method to use another timer than the shared one.
+     *
+     * @param timer the timer for the timeouts, null for the shared timer
+     */
+    void setTimer(final HashedTimerWheel timer) {
+        this.timer = timer;
+    }
+
     public Set<T> getRunningTasks() {
         return runningTasks;
     }
 
+    /**
+     * The first registered listener.
+     *
+     * @return the listener or null when there is none
+     */
     @Override
     public TaskEventListener<T> getTaskEventListener() {
-        return taskEventListener;
+        return events.getListener();
     }
 
     @Override
     public void setTaskEventListener(final TaskEventListener<T> taskEventListener) {
-        this.taskEventListener = taskEventListener;
+        events.setListener(taskEventListener);
+    }
+
+    @Override
+    public void addTaskEventListener(final TaskEventListener<T> taskEventListener) {
+        events.addListener(taskEventListener);
     }
 
+    @Override
+    public void removeTaskEventListener(final TaskEventListener<T> taskEventListener) {
+        events.removeListener(taskEventListener);
+    }
+
+    public int getEventQueueCapacity() {
+        return events.getQueueCapacity();
+    }
+
+    /**
+     * Delivers the events to the listeners from a single thread through a
+     * queue of the given capacity, events queued up are delivered at once.
+     * When the queue is full, completing tasks wait for space. The futures of
+     * the tasks are completed right away, so a thread joining a task may
+     * return before the listeners have been notified.
+     *
+     * @param capacity the capacity of the event queue, 0 (the default) to
+     *                 notify the listeners from the thread of the task
+     */
+    public void setEventQueueCapacity(final int capacity) {
+        events.setQueueCapacity(capacity);
+    }
+
+    /**
+     * Waits for all tasks, shuts down the thread pool unless it is shared and
+     * delivers the queued events.
+     */
     @Override
     public void dispose() throws TaskException, InterruptedException {
         join();
-        threadPool.shutdown();
+        if (!sharedThreadPool) {
+            threadPool.shutdown();
+        }
+        events.shutdown();
+    }
+
+    /**
+     * Holds the daemon threads that cancel timed out tasks, created with the
+     * first timeout. A blocking cancel takes a thread of it's own instead of
+     * holding up the others, idle threads end after a minute.
+     */
+    private static final class CancelExecutorHolder {
+        private static final ExecutorService EXECUTOR =
+                Executors.newCachedThreadPool(new TaskThreadFactory("task-cancel", true));
     }
 }
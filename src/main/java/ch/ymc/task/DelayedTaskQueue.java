@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Package-Private set of the tasks a {@link QueuedTaskRunner} has been asked
+ * to run later, ordered by the time they are due.
+ * <p>
+ * The runner moves the due tasks into it's priority queue while dispatching
+ * and lets it's timer-thread dispatch again when the next task is due, so
+ * scheduled tasks don't need a thread of their own. Adding, removing and
+ * taking the due tasks is O(log n) under a single lock; {@link #contains}
+ * doesn't take the lock while nothing is scheduled.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+final class DelayedTaskQueue<T extends AbstractTask> {
+
+    private final Lock lock = new ReentrantLock();
+    private final TreeSet<Entry<T>> entries = new TreeSet<Entry<T>>(new Comparator<Entry<T>>() {
+        @Override
+        public int compare(final Entry<T> entry1, final Entry<T> entry2) {
+            final long difference = entry1.dueTime - entry2.dueTime;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence == entry2.sequence ? 0 : 1);
+        }
+    });
+    private final Map<T, Entry<T>> index = new HashMap<T, Entry<T>>();
+    private long sequence;
+    private volatile int size;
+
+    /**
+     * Adds a task.
+     *
+     * @param task    the task to add
+     * @param dueTime the {@link System#nanoTime()} the task is due at
+     * @return false when the task is already scheduled
+     */
+    boolean add(final T task, final long dueTime) {
+        lock.lock();
+        try {
+            if (index.containsKey(task)) {
+                return false;
+            }
+            final Entry<T> entry = new Entry<T>(task, dueTime, sequence++);
+            index.put(task, entry);
+            entries.add(entry);
+            size = index.size();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a task before it is due.
+     *
+     * @param task the task to remove
+     * @return false when the task isn't scheduled
+     */
+    boolean remove(final T task) {
+        if (size == 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            final Entry<T> entry = index.remove(task);
+            if (entry == null) {
+                return false;
+            }
+            entries.remove(entry);
+            size = index.size();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean contains(final T task) {
+        if (size == 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return index.containsKey(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the tasks that are due, in the order they are due.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return the due tasks, empty when there is none
+     */
+    List<T> pollDue(final long now) {
+        final List<T> due = new ArrayList<T>();
+        if (size == 0) {
+            return due;
+        }
+        lock.lock();
+        try {
+            while (!entries.isEmpty() && entries.first().dueTime - now <= 0) {
+                final Entry<T> entry = entries.pollFirst();
+                index.remove(entry.task);
+                due.add(entry.task);
+            }
+            size = index.size();
+            return due;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The time until the next task is due.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return the nanoseconds until the next task is due, 0 when it is due,
+     *         -1 when nothing is scheduled
+     */
+    long getDelay(final long now) {
+        if (size == 0) {
+            return -1;
+        }
+        lock.lock();
+        try {
+            if (entries.isEmpty()) {
+                return -1;
+            }
+            return Math.max(0, entries.first().dueTime - now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    List<T> toList() {
+        lock.lock();
+        try {
+            final List<T> tasks = new ArrayList<T>(entries.size());
+            for (final Entry<T> entry : entries) {
+                tasks.add(entry.task);
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A scheduled task, tasks due at the same time are kept in the order they
+     * were added.
+     */
+    private static final class Entry<T> {
+        private final T task;
+        private final long dueTime;
+        private final long sequence;
+
+        Entry(final T task, final long dueTime, final long sequence) {
+            this.task = task;
+            this.dueTime = dueTime;
+            this.sequence = sequence;
+        }
+    }
+}
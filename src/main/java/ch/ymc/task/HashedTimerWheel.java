@@ -0,0 +1,306 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Package-Private timer for the timeouts of tasks, all timeouts share a single
+ * daemon thread.
+ * <p>
+ * Timeouts are kept in a ring of buckets, one bucket per tick. Every tick the
+ * thread expires the timeouts of the next bucket; a timeout further away than
+ * one round of the ring waits for the according number of rounds. Adding and
+ * canceling a timeout only puts it into a concurrent queue, the thread
+ * moves it into it's bucket or unlinks it with its next tick. So each
+ * operation is O(1) and many timeouts cost a few objects each; in return a
+ * timeout expires up to one tick late. Without timeouts the thread sleeps
+ * instead of ticking.
+ * <p>
+ * The actions of expired timeouts are run by the thread of the timer and
+ * should return quickly.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+final class HashedTimerWheel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HashedTimerWheel.class);
+    private static final long DEFAULT_TICK_DURATION = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> canceledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger numberOfTimeouts = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean stopped;
+    // only used by the thread of the timer
+    private long startTime;
+    private long tick;
+
+    /**
+     * Constructor, starts the thread of the timer.
+     *
+     * @param threadName    the name of the thread
+     * @param tickDuration  the duration of a tick in nanoseconds
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    HashedTimerWheel(final String threadName, final long tickDuration, final int ticksPerWheel) {
+        if (tickDuration <= 0 || ticksPerWheel < 1) {
+            throw new IllegalArgumentException("invalid wheel: tickDuration=" + tickDuration
+                    + ", ticksPerWheel=" + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.thread = new TaskThreadFactory(threadName, true).newThread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        });
+        this.thread.start();
+    }
+
+    /**
+     * The timer shared by all runners, it ticks every 10 milliseconds.
+     *
+     * @return the shared timer
+     */
+    static HashedTimerWheel getShared() {
+        return SharedTimer.INSTANCE;
+    }
+
+    /**
+     * Schedules an action.
+     *
+     * @param action the action to run when the timeout expires
+     * @param delay  the nanoseconds until the timeout expires
+     * @return the timeout, to cancel it
+     */
+    Timeout newTimeout(final Runnable action, final long delay) {
+        if (stopped) {
+            throw new IllegalStateException("the timer has been stopped");
+        }
+        final Timeout timeout = new Timeout(this, action, System.nanoTime() + Math.max(0, delay));
+        // counted before it is queued, so the thread doesn't go to sleep with a pending timeout
+        if (numberOfTimeouts.getAndIncrement() == 0) {
+            LockSupport.unpark(thread);
+        }
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * The number of timeouts that have neither expired nor been removed after
+     * they have been canceled.
+     *
+     * @return the number of timeouts
+     */
+    int getNumberOfTimeouts() {
+        return numberOfTimeouts.get();
+    }
+
+    /**
+     * Stops the thread, pending timeouts don't expire anymore.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void work() {
+        startTime = System.nanoTime();
+        while (!stopped) {
+            if (numberOfTimeouts.get() == 0) {
+                LockSupport.park(this);
+                // all buckets are empty, start counting ticks again
+                startTime = System.nanoTime();
+                tick = 0;
+                continue;
+            }
+            waitForNextTick();
+            if (stopped) {
+                break;
+            }
+            transferPendingTimeouts();
+            removeCanceledTimeouts();
+            wheel[(int) (tick & mask)].expire(this);
+            tick++;
+        }
+    }
+
+    private void waitForNextTick() {
+        final long deadline = startTime + tickDuration * (tick + 1);
+        while (true) {
+            final long now = System.nanoTime();
+            if (now - deadline >= 0 || stopped) {
+                return;
+            }
+            LockSupport.parkNanos(this, deadline - now);
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) {
+                numberOfTimeouts.decrementAndGet();
+                continue;
+            }
+            final long elapsed = timeout.deadline - startTime;
+            // the bucket of a tick is expired at the end of the tick, so it never expires early
+            final long expiryTick = Math.max(elapsed > 0 ? elapsed / tickDuration : 0, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void removeCanceledTimeouts() {
+        Timeout timeout;
+        while ((timeout = canceledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                numberOfTimeouts.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A scheduled action.
+     */
+    static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedTimerWheel timer;
+        private final Runnable action;
+        private final long deadline;
+        private volatile int state;
+        // only used by the thread of the timer
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        Timeout(final HashedTimerWheel timer, final Runnable action, final long deadline) {
+            this.timer = timer;
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout unless it has already expired.
+         *
+         * @return true when the action won't be run
+         */
+        boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, PENDING, CANCELED)) {
+                return false;
+            }
+            timer.canceledTimeouts.add(this);
+            return true;
+        }
+
+        boolean isCanceled() {
+            return state == CANCELED;
+        }
+
+        boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                action.run();
+            } catch (final RuntimeException e) {
+                LOG.error("timeout action failed", e);
+            }
+        }
+    }
+
+    /**
+     * The doubly linked timeouts of a tick, only used by the thread of the
+     * timer.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(final Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(final Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = null;
+            timeout.next = null;
+            timeout.previous = null;
+        }
+
+        void expire(final HashedTimerWheel timer) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timer.numberOfTimeouts.decrementAndGet();
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Holder of the shared timer, it is created on first use.
+     */
+    private static final class SharedTimer {
+        private static final HashedTimerWheel INSTANCE =
+                new HashedTimerWheel("task-timeout", DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL);
+    }
+}
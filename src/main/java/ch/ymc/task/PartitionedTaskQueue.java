@@ -0,0 +1,433 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Package-Private {@link TaskQueue} that limits the number of running tasks
+ * per {@link AbstractTask#getPartitionKey() partition}.
+ * <p>
+ * Every partition has it's own priority queue. Partitions that have queued
+ * tasks and free slots are kept in a ready-set ordered by their first task,
+ * so {@link #poll()} takes the highest-priority task that may run without
+ * looking at partitions that are at their limit. A partition leaves the
+ * ready-set when it reaches it's limit and comes back when one of it's tasks
+ * is {@link #release(AbstractTask) released}. Tasks without a partition key
+ * share a partition without a limit.
+ * <p>
+ * With a rate per partition, every partition has it's own {@link RateLimiter}.
+ * A partition whose bucket is empty is parked in a queue ordered by the time
+ * it gets a token again, and returns to the ready-set when that time has come.
+ * Idle partitions are only forgotten when their bucket is full, otherwise a
+ * key could start more tasks than allowed.
+ * <p>
+ * Unlike the {@link ConcurrentTaskQueue}, all operations take a single lock.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+class PartitionedTaskQueue<T extends AbstractTask> implements TaskQueue<T> {
+
+    private static final Object NO_PARTITION = new Object();
+
+    private final Lock lock = new ReentrantLock();
+    private final Comparator<Entry<T>> entryComparator;
+    private final TreeSet<Partition<T>> readyPartitions;
+    private final Map<Object, Partition<T>> partitions = new HashMap<Object, Partition<T>>();
+    private final Map<T, Entry<T>> index = new HashMap<T, Entry<T>>();
+    private final Map<T, Partition<T>> polledTasks = new HashMap<T, Partition<T>>();
+    private final PriorityQueue<Partition<T>> throttledPartitions = new PriorityQueue<Partition<T>>(16,
+            new Comparator<Partition<T>>() {
+                @Override
+                public int compare(final Partition<T> partition1, final Partition<T> partition2) {
+                    final long difference = partition1.readyAt - partition2.readyAt;
+                    return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+                }
+            });
+    private int numberOfConcurrentTasksPerPartition;
+    private double permitsPerSecondPerPartition;
+    private int burstPerPartition;
+    private int sweepThreshold = 64;
+    private long sequence;
+
+    /**
+     * Default Constructor.
+     *
+     * @param comparator                          describes the order of the tasks
+     * @param numberOfConcurrentTasksPerPartition the number of tasks per partition that may run at once
+     */
+    PartitionedTaskQueue(final Comparator<? super T> comparator, final int numberOfConcurrentTasksPerPartition) {
+        this.numberOfConcurrentTasksPerPartition = numberOfConcurrentTasksPerPartition;
+        entryComparator = new Comparator<Entry<T>>() {
+            @Override
+            public int compare(final Entry<T> entry1, final Entry<T> entry2) {
+                final int result = comparator.compare(entry1.task, entry2.task);
+                if (result != 0) {
+                    return result;
+                }
+                return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence == entry2.sequence ? 0 : 1);
+            }
+        };
+        readyPartitions = new TreeSet<Partition<T>>(new Comparator<Partition<T>>() {
+            @Override
+            public int compare(final Partition<T> partition1, final Partition<T> partition2) {
+                return entryComparator.compare(partition1.entries.first(), partition2.entries.first());
+            }
+        });
+    }
+
+    @Override
+    public boolean add(final T task) {
+        lock.lock();
+        try {
+            if (index.containsKey(task)) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean addAll(final Collection<T> tasks) {
+        lock.lock();
+        try {
+            for (final T task : tasks) {
+                if (index.containsKey(task)) {
+                    return false;
+                }
+            }
+            for (final T task : tasks) {
+                enqueue(task);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll() {
+        lock.lock();
+        try {
+            final long now = System.nanoTime();
+            readyThrottledPartitions(now);
+            Partition<T> partition;
+            while (true) {
+                partition = readyPartitions.pollFirst();
+                if (partition == null) {
+                    return null;
+                }
+                if (partition.rateLimiter == null) {
+                    break;
+                }
+                final long waitTime = partition.rateLimiter.getWaitTime(now);
+                if (waitTime == 0) {
+                    partition.rateLimiter.acquire(now);
+                    break;
+                }
+                partition.throttled = true;
+                partition.readyAt = now + waitTime;
+                throttledPartitions.add(partition);
+            }
+            final Entry<T> entry = partition.entries.pollFirst();
+            index.remove(entry.task);
+            partition.running++;
+            polledTasks.put(entry.task, partition);
+            if (isReady(partition)) {
+                readyPartitions.add(partition);
+            }
+            return entry.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release(final T task) {
+        lock.lock();
+        try {
+            final Partition<T> partition = polledTasks.remove(task);
+            if (partition == null) {
+                return;
+            }
+            final boolean wasReady = isReady(partition);
+            partition.running--;
+            if (!wasReady && isReady(partition)) {
+                readyPartitions.add(partition);
+            }
+            removeIfUnused(partition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Looks at the last task of every partition, so it is O(partitions).
+     */
+    @Override
+    public T peekLast() {
+        lock.lock();
+        try {
+            Entry<T> last = null;
+            for (final Partition<T> partition : partitions.values()) {
+                if (!partition.entries.isEmpty()
+                        && (last == null || entryComparator.compare(partition.entries.last(), last) > 0)) {
+                    last = partition.entries.last();
+                }
+            }
+            return last == null ? null : last.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final T task) {
+        lock.lock();
+        try {
+            final Entry<T> entry = index.remove(task);
+            if (entry == null) {
+                return false;
+            }
+            final Partition<T> partition = entry.partition;
+            final boolean wasReady = readyPartitions.remove(partition);
+            partition.entries.remove(entry);
+            if (wasReady && isReady(partition)) {
+                readyPartitions.add(partition);
+            }
+            removeIfUnused(partition);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(final T task) {
+        lock.lock();
+        try {
+            return index.containsKey(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+        lock.lock();
+        try {
+            readyThrottledPartitions(System.nanoTime());
+            return !readyPartitions.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getThrottleDelay() {
+        lock.lock();
+        try {
+            final Partition<T> partition = throttledPartitions.peek();
+            if (partition == null) {
+                return -1;
+            }
+            return Math.max(0, partition.readyAt - System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<T> toList() {
+        lock.lock();
+        try {
+            return new ArrayList<T>(index.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getNumberOfConcurrentTasksPerPartition() {
+        lock.lock();
+        try {
+            return numberOfConcurrentTasksPerPartition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the limit of all partitions, running tasks are not affected.
+     *
+     * @param numberOfConcurrentTasksPerPartition the number of tasks per partition that may run at once
+     */
+    void setNumberOfConcurrentTasksPerPartition(final int numberOfConcurrentTasksPerPartition) {
+        lock.lock();
+        try {
+            this.numberOfConcurrentTasksPerPartition = numberOfConcurrentTasksPerPartition;
+            readyPartitions.clear();
+            for (final Partition<T> partition : partitions.values()) {
+                if (isReady(partition)) {
+                    readyPartitions.add(partition);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limits the number of tasks started per partition and second, replacing
+     * the buckets of all known partitions.
+     *
+     * @param permitsPerSecond the number of tasks per partition that may be started per second
+     * @param burst            the number of tasks per partition that may be started at once
+     */
+    void setRateLimitPerPartition(final double permitsPerSecond, final int burst) {
+        lock.lock();
+        try {
+            this.permitsPerSecondPerPartition = permitsPerSecond;
+            this.burstPerPartition = burst;
+            for (final Partition<T> partition : partitions.values()) {
+                if (partition.key != NO_PARTITION) {
+                    partition.rateLimiter = new RateLimiter(permitsPerSecond, burst);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(final T task) {
+        Object key = task.getPartitionKey();
+        if (key == null) {
+            key = NO_PARTITION;
+        }
+        Partition<T> partition = partitions.get(key);
+        if (partition == null) {
+            if (partitions.size() >= sweepThreshold) {
+                sweep();
+            }
+            partition = new Partition<T>(key, entryComparator);
+            if (key != NO_PARTITION && permitsPerSecondPerPartition > 0) {
+                partition.rateLimiter = new RateLimiter(permitsPerSecondPerPartition, burstPerPartition);
+            }
+            partitions.put(key, partition);
+        }
+        final Entry<T> entry = new Entry<T>(task, partition, sequence++);
+        index.put(task, entry);
+        // the position of a partition depends on it's first task
+        final boolean wasReady = !partition.entries.isEmpty() && readyPartitions.remove(partition);
+        partition.entries.add(entry);
+        if (wasReady || isReady(partition)) {
+            readyPartitions.add(partition);
+        }
+    }
+
+    private boolean isReady(final Partition<T> partition) {
+        return !partition.entries.isEmpty() && !partition.throttled
+                && (partition.key == NO_PARTITION || partition.running < numberOfConcurrentTasksPerPartition);
+    }
+
+    private void readyThrottledPartitions(final long now) {
+        Partition<T> partition;
+        while ((partition = throttledPartitions.peek()) != null && partition.readyAt - now <= 0) {
+            throttledPartitions.poll();
+            partition.throttled = false;
+            if (isReady(partition)) {
+                readyPartitions.add(partition);
+            } else {
+                removeIfUnused(partition);
+            }
+        }
+    }
+
+    private boolean isUnused(final Partition<T> partition) {
+        return partition.entries.isEmpty() && partition.running == 0 && !partition.throttled
+                && (partition.rateLimiter == null || partition.rateLimiter.isFull(System.nanoTime()));
+    }
+
+    private void removeIfUnused(final Partition<T> partition) {
+        if (isUnused(partition)) {
+            partitions.remove(partition.key);
+        }
+    }
+
+    /**
+     * Forgets idle partitions that have been kept because their bucket wasn't
+     * full. Runs when the number of partitions has doubled since the last
+     * sweep, so it's cost is spread over the added partitions.
+     */
+    private void sweep() {
+        final Iterator<Partition<T>> iterator = partitions.values().iterator();
+        while (iterator.hasNext()) {
+            if (isUnused(iterator.next())) {
+                iterator.remove();
+            }
+        }
+        sweepThreshold = Math.max(64, partitions.size() * 2);
+    }
+
+    /**
+     * The queued tasks of a partition and the number of it's running tasks.
+     */
+    private static final class Partition<T> {
+        private final Object key;
+        private final TreeSet<Entry<T>> entries;
+        private int running;
+        private RateLimiter rateLimiter;
+        private boolean throttled;
+        private long readyAt;
+
+        Partition(final Object key, final Comparator<Entry<T>> comparator) {
+            this.key = key;
+            this.entries = new TreeSet<Entry<T>>(comparator);
+        }
+    }
+
+    /**
+     * A queued task with it's insertion-order as tie-breaker.
+     */
+    private static final class Entry<T> {
+        private final T task;
+        private final Partition<T> partition;
+        private final long sequence;
+
+        Entry(final T task, final Partition<T> partition, final long sequence) {
+            this.task = task;
+            this.partition = partition;
+            this.sequence = sequence;
+        }
+    }
+}
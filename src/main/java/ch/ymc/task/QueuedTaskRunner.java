@@ -6,7 +6,21 @@ package ch.ymc.task;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,20 +28,161 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * A {@link TaskRunner} ensures that a maximum of {@link #numberOfConcurrentTasks}
  * may be executed at once.
+ * <p>
+ * Waiting tasks are kept in a concurrent priority queue, so submitters don't
+ * contend on a lock. Only one thread dispatches tasks from the queue at a
+ * time; a thread that finds another one dispatching leaves the work to it.
+ * <p>
+ * The limit is enforced with an atomic counter of permits: dispatching a task
+ * acquires a permit and it's completion releases it, so the inner
+ * {@link TaskRunner} isn't asked how many tasks it executes.
+ * <p>
+ * Instead of a fixed number, the limit may be given by a
+ * {@link ConcurrencyLimit}, for instance an {@link AdaptiveConcurrencyLimit}
+ * that follows the run times and results of the completed tasks.
+ * <p>
+ * With {@link #setNumberOfConcurrentTasksPerPartition} the runner also limits
+ * the running tasks per {@link AbstractTask#getPartitionKey() partition}, the
+ * queue then dispatches the highest-priority task whose partition has a free
+ * slot.
+ * <p>
+ * A {@link RateLimiter} limits the number of tasks started per second, in
+ * total or per partition. Tasks waiting for a token stay in the queue; a
+ * single daemon timer-thread dispatches them once tokens are available, so
+ * no thread blocks while waiting.
+ * <p>
+ * Tasks can be {@link #schedule scheduled} to be queued after a delay, or
+ * {@link #scheduleWithFixedDelay periodically}. They wait in a set ordered by
+ * the time they are due and are moved into the queue by the dispatching
+ * thread; the timer-thread dispatches again when the next one is due.
+ * <p>
+ * Tasks with {@link AbstractTask#dependsOn dependencies} are held back until
+ * all their dependencies have completed successfully. Every such task counts
+ * it's pending dependencies down from a callback on their futures, so a
+ * completed dependency costs O(1) per dependent task and nothing is scanned;
+ * a failed or canceled dependency cancels the tasks depending on it.
+ * <p>
+ * With a {@link RetryPolicy}, failed tasks are run again after a backoff.
+ * The task is scheduled like a delayed task, so no thread waits for the
+ * backoff; the listeners and the future only get the result of the last
+ * attempt.
+ * <p>
+ * With a {@link #setMaximumWaitTime maximum wait time}, tasks age: a task
+ * that has waited that long is dispatched before the tasks queued after it,
+ * so low-priority tasks are not starved by a steady stream of high-priority
+ * ones.
+ * <p>
+ * With {@link #enableSpilling spilling} turned on, only a bounded number of
+ * queued tasks is kept in memory, the rest is written to disk in sorted runs
+ * that are read back as the queue is drained.
+ * <p>
+ * With a {@link #setQueueCapacity queue capacity}, a full queue pushes back
+ * on the submitters by the {@link OverflowPolicy}: they are blocked, their
+ * tasks rejected, the lowest-priority task dropped or the task run on the
+ * submitting thread.
+ * <p>
+ * With a {@link TaskJournal}, the runner writes queued, dispatched and
+ * completed tasks ahead to disk and runs the tasks that hadn't completed
+ * again after a restart.
+ * <p>
+ * The time a task is queued here is kept when it is dispatched, so the
+ * {@link #setMetrics(TaskMetrics) metrics} of this runner include the time
+ * spent in the queue.
+ * <p>
+ * This runner handles the completion of a task on the thread that ran it, so
+ * the next queued task is dispatched right away. It's own listeners can be
+ * notified from a separate thread with {@link #setEventQueueCapacity}, so a
+ * slow listener doesn't hold up the dispatching.
+ * <p>
+ * {@link TaskLifecycleListener}s of this runner are told when a task is
+ * queued here, dispatched to the inner runner, started by it and asked to
+ * cancel. To see the start, this runner subscribes to the start-events of the
+ * inner runner while it has lifecycle listeners of it's own, otherwise the
+ * inner runner is only told to report completions and creates no lifecycle
+ * events.
  *
  * @param <T> The concrete {@link AbstractTask}-Type
  * @author nkuebler, YMC AG
  * @since 2.0.0
  */
-public class QueuedTaskRunner<T extends AbstractTask> implements TaskRunner<T>, TaskEventListener<T> {
+public class QueuedTaskRunner<T extends AbstractTask> implements TaskRunner<T>, TaskLifecycleListener<T> {
+
+    /**
+     * What {@link #execute} does with a task when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The submitter waits until a queued task has been dispatched, at
+         * most for the {@link #setMaximumBlockTime maximum block time}, and
+         * gets a {@link TaskRejectedException} when it has passed.
+         */
+        BLOCK,
+        /**
+         * The submitter gets a {@link TaskRejectedException} right away.
+         */
+        REJECT,
+        /**
+         * The queued task that would run last is canceled to make room for
+         * a task that comes before it, otherwise the new task is canceled.
+         */
+        DROP_LOWEST,
+        /**
+         * The task is run on the submitting thread, which returns once the
+         * task has completed.
+         */
+        CALLER_RUNS
+    }
 
     private static final Logger LOG = LoggerFactory.getLogger(QueuedTaskRunner.class);
-    private final Queue<T> queue;
-    private TaskRunner<T> taskRunner = new ConcurrentTaskRunner<T>();
+    private static final int MAXIMUM_LOOKUPS = 64;
+    private final Comparator<T> comparator;
+    private volatile TaskQueue<T> queue;
+    private TaskRunner<T> taskRunner;
+    private final Lock dispatchLock = new ReentrantLock();
+    private final AtomicInteger numberOfJoiningThreads = new AtomicInteger();
+    private final AtomicInteger numberOfRunningTasks = new AtomicInteger();
+    private final ConcurrentMap<T, Long> dispatchedTasks = new ConcurrentHashMap<T, Long>();
+    // counts the moves of tasks between the queues and the inner runner, it
+    // is odd while a task is between two places; written under the dispatch-lock
+    private volatile long numberOfMoves;
     private Lock queueLock = new ReentrantLock();
     private Condition taskStartCondition = getQueueLock().newCondition();
-    private int numberOfConcurrentTasks = 50;
-    private TaskEventListener<T> taskEventListener;
+    private volatile int numberOfConcurrentTasks = 50;
+    private volatile ConcurrencyLimit concurrencyLimit;
+    private volatile RateLimiter rateLimiter;
+    private volatile RetryPolicy retryPolicy;
+    private volatile TaskMetrics metrics;
+    private volatile TaskJournal<T> journal;
+    private ScheduledExecutorService timer;
+    private boolean flushScheduled;
+    private long scheduledFlushTime;
+    private final TaskEventDispatcher<T> events = new TaskEventDispatcher<T>("task-events");
+    private final DelayedTaskQueue<T> delayedTasks = new DelayedTaskQueue<T>();
+    private final ConcurrentMap<T, Long> periodicTasks = new ConcurrentHashMap<T, Long>();
+    private final ConcurrentMap<T, AtomicInteger> blockedTasks = new ConcurrentHashMap<T, AtomicInteger>();
+    private final Lock capacityLock = new ReentrantLock();
+    private final Condition notFullCondition = capacityLock.newCondition();
+    private final AtomicInteger numberOfBlockedSubmitters = new AtomicInteger();
+    private volatile int queueCapacity;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile long maximumBlockTime;
+    private volatile ConcurrentTaskRunner<T> callerRunner;
+    private final TaskEventListener<T> completionListener = new TaskEventListener<T>() {
+        @Override
+        public void taskComplete(final T task, final TaskResult result) {
+            QueuedTaskRunner.this.taskComplete(task, result);
+        }
+    };
+    private final TaskLifecycleListener<T> startListener = new TaskLifecycleAdapter<T>() {
+        @Override
+        public void taskStarted(final T task) {
+            QueuedTaskRunner.this.taskStarted(task);
+        }
+    };
+    // guarded by the startListener
+    private boolean startListenerSubscribed;
+    private volatile boolean scheduleChanged;
+    private volatile boolean disposed;
 
     /**
      * Default Constructor.
@@ -47,205 +202,1634 @@ public class QueuedTaskRunner<T extends AbstractTask> implements TaskRunner<T>,
      * @param comperator describes the order to run the tasks
      */
     public QueuedTaskRunner(final Comparator<T> comperator) {
-        queue = new PriorityQueue<T>(10, comperator);
-        taskRunner.setTaskEventListener(this);
+        this(comperator, new ConcurrentTaskRunner<T>(true));
+    }
+
+    /**
+     * Constructor for a queue in front of a given {@link TaskRunner}, for
+     * instance a {@link ConcurrentTaskRunner} with a bounded or shared thread
+     * pool. This runner registers a listener for the completions with the given
+     * runner.
+     * <p>
+     * When the given runner has a bounded pool, it should use asynchronous
+     * submission, otherwise dispatching from a completing thread may wait for
+     * a free thread forever.
+     *
+     * @param comperator describes the order to run the tasks
+     * @param taskRunner the runner executing the dequeued tasks
+     */
+    public QueuedTaskRunner(final Comparator<T> comperator, final TaskRunner<T> taskRunner) {
+        this.comparator = comperator;
+        queue = new ConcurrentTaskQueue<T>(comperator);
+        this.taskRunner = taskRunner;
+        taskRunner.setTaskEventListener(completionListener);
     }
 
     @Override
     public void execute(final T task) throws TaskException, InterruptedException {
-        getQueueLock().lock();
-        try {
-            getQueue().add(task);
-            flush();
-        } finally {
-            getQueueLock().unlock();
+        if (delayedTasks.contains(task) || blockedTasks.containsKey(task)) {
+            throw new TaskException("Task '" + task + "' is already scheduled.");
         }
+        if (!task.getDependencies().isEmpty()) {
+            awaitDependencies(task);
+            return;
+        }
+        if (queueCapacity > 0) {
+            executeBounded(task);
+            return;
+        }
+        final long journalId = task.getJournalId();
+        final TaskJournal<T> currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.appendQueued(Collections.singletonList(task));
+        }
+        final long queuedTime = task.getQueuedTime();
+        task.setQueuedTime(System.nanoTime());
+        if (!getQueue().add(task)) {
+            task.setQueuedTime(queuedTime);
+            journalRejected(task, journalId);
+            throw new TaskException("Task '" + task + "' is already queued.");
+        }
+        tasksQueued(1);
+        events.taskQueued(task);
+        flush();
     }
 
+    /**
+     * Enqueues the whole batch and dispatches it with a single flush. Tasks
+     * of the batch may depend on each other, the tasks with dependencies are
+     * held back like with {@link #execute(AbstractTask)}. With a
+     * {@link #setQueueCapacity queue capacity}, the tasks are admitted one
+     * by one, so a part of the batch may be queued when a task is rejected.
+     */
     @Override
-    public boolean isExecuting(final T task) {
-        getQueueLock().lock();
-        try {
-            return getTaskRunner().isExecuting(task) || getQueue().contains(task);
-        } finally {
-            getQueueLock().unlock();
+    public void executeAll(final Collection<T> batch) throws TaskException, InterruptedException {
+        ConcurrentTaskRunner.validateBatch(batch);
+        Collection<T> tasks = batch;
+        List<T> dependentTasks = null;
+        for (final T task : batch) {
+            if (delayedTasks.contains(task) || blockedTasks.containsKey(task)) {
+                throw new TaskException("Task '" + task + "' is already scheduled.");
+            }
+            if (!task.getDependencies().isEmpty()) {
+                if (dependentTasks == null) {
+                    dependentTasks = new ArrayList<T>();
+                }
+                dependentTasks.add(task);
+            }
+        }
+        if (dependentTasks != null) {
+            tasks = new ArrayList<T>(batch);
+            tasks.removeAll(dependentTasks);
+        }
+        if (queueCapacity > 0) {
+            for (final T task : tasks) {
+                executeBounded(task);
+            }
+        } else {
+            enqueueAll(tasks);
         }
+        if (dependentTasks != null) {
+            for (final T task : dependentTasks) {
+                awaitDependencies(task);
+            }
+        }
+        flush();
     }
 
-    public boolean isRunning(final T task) {
-        getQueueLock().lock();
+    private void enqueueAll(final Collection<T> tasks) throws TaskException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        final long[] journalIds = new long[tasks.size()];
+        int i = 0;
+        for (final T task : tasks) {
+            journalIds[i++] = task.getJournalId();
+        }
+        final TaskJournal<T> currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.appendQueued(tasks);
+        }
+        final long now = System.nanoTime();
+        final long[] queuedTimes = new long[tasks.size()];
+        i = 0;
+        for (final T task : tasks) {
+            queuedTimes[i++] = task.getQueuedTime();
+            task.setQueuedTime(now);
+        }
+        if (!getQueue().addAll(tasks)) {
+            i = 0;
+            for (final T task : tasks) {
+                task.setQueuedTime(queuedTimes[i]);
+                journalRejected(task, journalIds[i++]);
+            }
+            throw new TaskException("A task of the batch is already queued.");
+        }
+        tasksQueued(tasks.size());
+        if (events.hasLifecycleListeners()) {
+            for (final T task : tasks) {
+                events.taskQueued(task);
+            }
+        }
+    }
+
+    /**
+     * Queues a task unless the queue is full, otherwise it is handled by the
+     * {@link OverflowPolicy}. The submitters are admitted one at a time under
+     * the capacity-lock, so the queue never grows above it's capacity by
+     * submissions; tasks queued by the runner itself, like scheduled, retried
+     * or dependent tasks, are not limited.
+     *
+     * @param task the task to queue
+     * @throws TaskException        when the task is rejected or already queued
+     * @throws InterruptedException the current thread got interrupted while blocked
+     */
+    private void executeBounded(final T task) throws TaskException, InterruptedException {
+        T droppedTask = null;
+        boolean callerRuns = false;
+        capacityLock.lock();
         try {
-            return getTaskRunner().isExecuting(task);
+            final int capacity = queueCapacity;
+            if (capacity > 0 && getQueue().size() >= capacity) {
+                switch (overflowPolicy) {
+                    case BLOCK:
+                        awaitCapacity(task);
+                        break;
+                    case REJECT:
+                        throw new TaskRejectedException("the queue is full, Task '" + task + "' has been rejected");
+                    case DROP_LOWEST:
+                        final T lowestTask = getQueue().peekLast();
+                        if (lowestTask != null && comparator.compare(task, lowestTask) < 0
+                                && getQueue().remove(lowestTask)) {
+                            droppedTask = lowestTask;
+                        } else {
+                            droppedTask = task;
+                        }
+                        break;
+                    case CALLER_RUNS:
+                        callerRuns = true;
+                        if (callerRunner == null) {
+                            final ConcurrentTaskRunner<T> runner =
+                                    new ConcurrentTaskRunner<T>(TaskExecutors.newCallerThreadExecutor(), true);
+                            runner.setTaskEventListener(completionListener);
+                            synchronized (startListener) {
+                                if (startListenerSubscribed) {
+                                    runner.addTaskEventListener(startListener);
+                                }
+                                callerRunner = runner;
+                            }
+                        }
+                        break;
+                }
+            }
+            if (!callerRuns && droppedTask != task) {
+                enqueueAll(Collections.singletonList(task));
+            }
         } finally {
-            getQueueLock().unlock();
+            capacityLock.unlock();
+        }
+        if (droppedTask != null) {
+            LOG.debug("the queue is full, dropped Task '{}'", droppedTask);
+            if (droppedTask == task) {
+                task.setQueuedTime(System.nanoTime());
+                markCanceled(task);
+                notifyCanceled(task);
+            } else {
+                cancelWaitingTask(droppedTask);
+            }
         }
+        if (callerRuns) {
+            runOnCallerThread(task);
+        }
+        flush();
     }
 
-    @Override
-    public boolean isComplete(final T task) {
-        getQueueLock().lock();
+    /**
+     * Waits until the queue has room for a task, must be called while
+     * holding the capacity-lock. The blocked submitter is counted before the
+     * queue is checked, a dispatching thread that polled a task signals it
+     * when it sees the count.
+     */
+    private void awaitCapacity(final T task) throws TaskException, InterruptedException {
+        numberOfBlockedSubmitters.incrementAndGet();
         try {
-            return getTaskRunner().isComplete(task);
+            final long blockTime = maximumBlockTime;
+            long remaining = blockTime;
+            while (queueCapacity > 0 && getQueue().size() >= queueCapacity) {
+                if (blockTime == 0) {
+                    notFullCondition.await();
+                } else if (remaining <= 0) {
+                    throw new TaskRejectedException("the queue is still full after "
+                            + TimeUnit.NANOSECONDS.toMillis(blockTime) + "ms, Task '" + task + "' has been rejected");
+                } else {
+                    remaining = notFullCondition.awaitNanos(remaining);
+                }
+            }
         } finally {
-            getQueueLock().unlock();
+            numberOfBlockedSubmitters.decrementAndGet();
         }
     }
 
-    @Override
-    public boolean hasStarted(final T task) {
-        getQueueLock().lock();
+    /**
+     * Runs a task that didn't fit into the queue on the current thread. It
+     * bypasses the limit of concurrent tasks, that is the point: the
+     * submitter is busy and can't submit more. The completion is handled by
+     * {@link #taskComplete} like the one of a dispatched task.
+     *
+     * @param task the task to run
+     * @throws TaskException        when the task can't be journaled or has a wrong state
+     * @throws InterruptedException the current thread got interrupted
+     */
+    private void runOnCallerThread(final T task) throws TaskException, InterruptedException {
+        final long journalId = task.getJournalId();
+        final TaskJournal<T> currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.appendQueued(Collections.singletonList(task));
+        }
+        events.taskQueued(task);
+        events.taskDispatched(task);
+        boolean handedOver = false;
         try {
-            return getTaskRunner().hasStarted(task) || getQueue().contains(task);
+            callerRunner.execute(task);
+            handedOver = true;
         } finally {
-            getQueueLock().unlock();
+            if (!handedOver) {
+                journalRejected(task, journalId);
+            }
         }
     }
 
-    @Override
-    public void cancel(final T task) throws TaskException {
-        boolean canceledBeforeExecution = false;
-        getQueueLock().lock();
-        try {
-            if (!taskRunner.isExecuting(task) && task.getState() == TaskState.INITIALIZED) {
-                if (getQueue().remove(task)) {
-                    task.setState(TaskState.COMPLETE);
-                    task.setResult(new TaskResult(TaskResult.CANCEL));
-                    canceledBeforeExecution = true;
-                } else {
-                    throw new TaskException("Task doesn't belong to this TaskRunner");
+    /**
+     * Holds a task back until it's dependencies have completed. The task gets
+     * a counter of it's pending dependencies, which a callback on the future
+     * of each dependency counts down; the callback of the last one queues the
+     * task.
+     *
+     * @param task the task with dependencies
+     * @throws TaskException when the task is not initialized or already queued
+     */
+    private void awaitDependencies(final T task) throws TaskException {
+        if (task.getState() != TaskState.INITIALIZED) {
+            throw new TaskException("Task '" + task + "' is not in initialzed state, state is: '" + task.getState() + "'.");
+        }
+        final List<AbstractTask> dependencies = task.getDependencies();
+        final AtomicInteger pendingDependencies = new AtomicInteger(dependencies.size());
+        if (getQueue().contains(task) || blockedTasks.putIfAbsent(task, pendingDependencies) != null) {
+            throw new TaskException("Task '" + task + "' is already queued.");
+        }
+        for (final AbstractTask dependency : dependencies) {
+            final TaskFuture future = dependency.getFuture();
+            future.addCallback(new Runnable() {
+                @Override
+                public void run() {
+                    dependencyComplete(task, pendingDependencies, future.getCompletedResult());
                 }
-            }
-        } finally {
-            getQueueLock().unlock();
+            });
         }
+    }
 
-        if (canceledBeforeExecution) {
-            if (this.getTaskEventListener() != null) {
-                this.getTaskEventListener().taskComplete(task, task.getResult());
+    /**
+     * Called when a dependency of a held back task has completed. The task is
+     * queued when it was the last one, or canceled when it failed. The task
+     * is moved from the held back tasks into the queue as a move under the
+     * dispatch-lock, so a concurrent cancel finds it either there or in the
+     * queue.
+     *
+     * @param task                the held back task
+     * @param pendingDependencies the counter of the task
+     * @param result              the result of the dependency
+     */
+    private void dependencyComplete(final T task, final AtomicInteger pendingDependencies, final TaskResult result) {
+        final boolean succeeded = result != null && result.getStatus() == TaskResult.SUCCESS;
+        if (succeeded && pendingDependencies.decrementAndGet() > 0) {
+            return;
+        }
+        if (succeeded) {
+            // written before the task can be dispatched, the journal may force it to disk
+            final TaskJournal<T> currentJournal = journal;
+            if (currentJournal != null) {
+                try {
+                    currentJournal.appendQueued(Collections.singletonList(task));
+                } catch (final TaskException e) {
+                    LOG.error("could not journal Task '" + task + "'", e);
+                }
             }
-        } else {
-            if (taskRunner.isExecuting(task)) {
-                getTaskRunner().cancel(task);
+        }
+        dispatchLock.lock();
+        startMove();
+        try {
+            if (!blockedTasks.remove(task, pendingDependencies)) {
+                if (succeeded) {
+                    // canceled meanwhile, maybe before it had been journaled
+                    journalCompleted(task);
+                }
+                return;
+            }
+            if (!succeeded) {
+                markCanceled(task);
             } else {
-                LOG.error("could not cancel Task: '{}'", task);
+                final long now = System.nanoTime();
+                task.setQueuedTime(now);
+                if (!getQueue().add(task)) {
+                    LOG.error("Task '{}' has already been queued", task);
+                    journalCompleted(task);
+                    return;
+                }
+                scheduleChanged = true;
             }
+        } finally {
+            endMove();
+            dispatchLock.unlock();
+        }
+        if (!succeeded) {
+            LOG.debug("a dependency of Task '{}' didn't succeed, canceling it", task);
+            notifyCanceled(task);
+            return;
+        }
+        tasksQueued(1);
+        events.taskQueued(task);
+        try {
+            flush();
+        } catch (final TaskException e) {
+            LOG.error("could not dispatch Task '" + task + "'", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Polls jobs from the queue and starts them until the number of currently
-     * executed tasks reaches {@link #getNumberOfEnqueuedTasks()}.
+     * Queues a task once the given delay has passed, it then waits for a
+     * permit like an executed task. Until then the task counts as executing.
      *
-     * @throws TaskException        when the task has a wrong state or doesn't belong to this
-     *                              {@link TaskRunner}-Instance
+     * @param task  the task to run
+     * @param delay the time until the task is queued
+     * @param unit  the unit of the delay
+     * @throws TaskException        when the task is not initialized or already queued
      * @throws InterruptedException the current thread got interrupted
      */
-    protected void flush() throws TaskException, InterruptedException {
-        getQueueLock().lock();
+    public void schedule(final T task, final long delay, final TimeUnit unit)
+            throws TaskException, InterruptedException {
+        if (!task.getDependencies().isEmpty()) {
+            throw new TaskException("Task '" + task + "' has dependencies, it can't be scheduled.");
+        }
+        if (task.getState() != TaskState.INITIALIZED) {
+            throw new TaskException("Task '" + task + "' is not in initialzed state, state is: '" + task.getState() + "'.");
+        }
+        if (getQueue().contains(task)
+                || !delayedTasks.add(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)))) {
+            throw new TaskException("Task '" + task + "' is already queued.");
+        }
+        scheduleChanged = true;
+        flush();
+    }
+
+    /**
+     * Runs a task periodically: after the initial delay, and again the given
+     * delay after each run has completed with {@link TaskResult#SUCCESS}.
+     * Between the runs the task is initialized again and gets a new
+     * {@link AbstractTask#getFuture() future}; the listeners are notified of
+     * every run. The schedule ends when a run doesn't succeed, when the task
+     * is canceled or when this runner is disposed.
+     * <p>
+     * As the task is reused, listeners should take the result of a run from
+     * the event, not from the task.
+     *
+     * @param task         the task to run
+     * @param initialDelay the time until the first run is queued
+     * @param delay        the time between the completion of a run and the next run
+     * @param unit         the unit of the delays
+     * @throws TaskException        when the task is not initialized or already queued
+     * @throws InterruptedException the current thread got interrupted
+     */
+    public void scheduleWithFixedDelay(final T task, final long initialDelay, final long delay,
+                                       final TimeUnit unit) throws TaskException, InterruptedException {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive: " + delay);
+        }
+        if (periodicTasks.putIfAbsent(task, unit.toNanos(delay)) != null) {
+            throw new TaskException("Task '" + task + "' is already scheduled.");
+        }
+        boolean scheduled = false;
         try {
-            while (getTaskRunner().getNumberOfExecutingTasks() < getNumberOfConcurrentTasks() && !getQueue().isEmpty()) {
-                getTaskRunner().execute(getQueue().poll());
-            }
-            getTaskStartedCondition().signalAll();
+            schedule(task, initialDelay, unit);
+            scheduled = true;
         } finally {
-            getQueueLock().unlock();
+            if (!scheduled) {
+                periodicTasks.remove(task);
+            }
         }
     }
 
     @Override
-    public void join() throws InterruptedException, TaskException {
-        HashSet<T> set = null;
-        try {
-            queueLock.lock();
-            set = new HashSet<T>(queue);
-        } finally {
-            queueLock.unlock();
+    public boolean isExecuting(final T task) {
+        final ConcurrentTaskRunner<T> runner = callerRunner;
+        if (getTaskRunner().isExecuting(task) || isWaiting(task) || runner != null && runner.isExecuting(task)) {
+            return true;
         }
-        join(set);
-        taskRunner.join();
+        if (task.getState() == TaskState.INITIALIZED && lookUp(task)) {
+            final TaskState state = task.getState();
+            return state == TaskState.RUNNING || state == TaskState.CANCELING || isWaiting(task)
+                    || dispatchedTasks.containsKey(task);
+        }
+        return false;
+    }
+
+    /**
+     * Tests whether a task is queued or scheduled.
+     */
+    private boolean isWaiting(final T task) {
+        return getQueue().contains(task) || delayedTasks.contains(task) || blockedTasks.containsKey(task);
+    }
+
+    public boolean isRunning(final T task) {
+        return getTaskRunner().isExecuting(task);
     }
 
     @Override
-    public void join(final Iterable<T> tasks) throws InterruptedException, TaskException {
-        for (final T task : tasks) {
-            join(task);
+    public boolean isComplete(final T task) {
+        return getTaskRunner().isComplete(task);
+    }
+
+    @Override
+    public boolean hasStarted(final T task) {
+        if (getTaskRunner().hasStarted(task) || isWaiting(task)) {
+            return true;
         }
+        return task.getState() == TaskState.INITIALIZED && lookUp(task);
     }
 
     @Override
-    public void join(final T task) throws InterruptedException, TaskException {
-        while (task.getState() == TaskState.INITIALIZED) {
-            try {
-                this.getQueueLock().lock();
-                if (task.getState() == TaskState.INITIALIZED) {
-                    if (!this.getQueue().contains(task)) {
-                        throw new TaskException("Task doesn't belong to this taskRunner");
-                    }
-                    this.getTaskStartedCondition().await();
-                }
-            } finally {
-                this.getQueueLock().unlock();
+    public void cancel(final T task) throws TaskException {
+        // set first, a task that has just completed an attempt sees it before it is retried
+        task.setCancelRequested(true);
+        // ends the schedule of a periodic task, also when it is running or between two runs
+        final boolean periodic = periodicTasks.remove(task) != null;
+        if (blockedTasks.remove(task) != null || delayedTasks.remove(task) || getQueue().remove(task)) {
+            cancelWaitingTask(task);
+            return;
+        }
+        if (task.getState() == TaskState.INITIALIZED && lookUp(task)) {
+            // a scheduled task may just have been moved into the queue, a failed one rescheduled
+            if (delayedTasks.remove(task) || getQueue().remove(task)) {
+                cancelWaitingTask(task);
+                return;
             }
+            awaitHandOver(task);
+        }
+        final ConcurrentTaskRunner<T> runner = callerRunner;
+        if (getTaskRunner().isExecuting(task)) {
+            events.taskCancelRequested(task);
+            getTaskRunner().cancel(task);
+        } else if (runner != null && runner.isExecuting(task)) {
+            events.taskCancelRequested(task);
+            runner.cancel(task);
+        } else if (periodic) {
+            LOG.debug("periodic Task '{}' has been canceled between two runs", task);
+        } else if (task.getState() == TaskState.INITIALIZED) {
+            task.setCancelRequested(false);
+            throw new TaskException("Task doesn't belong to this TaskRunner");
+        } else {
+            LOG.error("could not cancel Task: '{}'", task);
         }
-        getTaskRunner().join(task);
     }
 
-    @Override
-    public void taskComplete(final T task, final TaskResult result) {
+    /**
+     * Completes a task that has been removed from the queue, the scheduled or
+     * the held back tasks as canceled.
+     *
+     * @param task the canceled task
+     */
+    private void cancelWaitingTask(final T task) {
+        markCanceled(task);
+        signalNotFull();
+        notifyCanceled(task);
+    }
+
+    private void markCanceled(final T task) {
+        task.setCompletionTime(System.nanoTime());
+        task.setResult(new TaskResult(TaskResult.CANCEL));
+        task.compareAndSetState(TaskState.INITIALIZED, TaskState.COMPLETE);
+    }
+
+    /**
+     * Notifies the listeners about a task canceled before it was dispatched,
+     * wakes up threads joining it and completes it's future, which cancels
+     * the tasks depending on it.
+     *
+     * @param task the canceled task
+     */
+    private void notifyCanceled(final T task) {
+        events.taskCancelRequested(task);
+        signalTaskStarted();
+        journalCompleted(task);
+        final TaskMetrics taskMetrics = metrics;
+        if (taskMetrics != null) {
+            taskMetrics.taskComplete(task, task.getResult());
+        }
         try {
-            flush();
-            if (this.getTaskEventListener() != null) {
-                getTaskEventListener().taskComplete(task, result);
+            events.taskComplete(task, task.getResult());
+        } finally {
+            task.getFuture().complete(task.getResult());
+        }
+    }
+
+    /**
+     * Polls jobs from the queue and starts them as long as permits are left,
+     * there are {@link #getNumberOfConcurrentTasks()} permits.
+     * <p>
+     * When another thread is already dispatching, this method returns
+     * immediately; the dispatching thread checks the queue again after it has
+     * finished.
+     *
+     * @throws TaskException        when the task has a wrong state or doesn't belong to this
+     *                              {@link TaskRunner}-Instance
+     * @throws InterruptedException the current thread got interrupted
+     */
+    protected void flush() throws TaskException, InterruptedException {
+        do {
+            if (!dispatchLock.tryLock()) {
+                return;
             }
-        } catch (final TaskException e) {
-            if (this.getTaskEventListener() != null) {
-                getTaskEventListener().taskComplete(task, new TaskResult(TaskResult.FATAL, e));
+        } while (dispatchQueuedTasks());
+    }
+
+    /**
+     * Dispatches tasks while holding the dispatch-lock and releases it
+     * afterwards. When tasks are held back by a {@link RateLimiter}, a flush
+     * is scheduled for the time the next token is available.
+     *
+     * @return true when more tasks could be dispatched right away
+     * @throws TaskException        when a task couldn't be dispatched
+     * @throws InterruptedException the current thread got interrupted
+     */
+    private boolean dispatchQueuedTasks() throws TaskException, InterruptedException {
+        boolean dispatched = false;
+        boolean throttled = false;
+        try {
+            promoteDueTasks();
+            while (getQueue().isReady() && tryAcquirePermit()) {
+                final RateLimiter limiter = rateLimiter;
+                if (limiter != null) {
+                    final long waitTime = limiter.getWaitTime(System.nanoTime());
+                    if (waitTime > 0) {
+                        releasePermit();
+                        scheduleFlush(waitTime);
+                        throttled = true;
+                        break;
+                    }
+                }
+                final T task;
+                startMove();
+                try {
+                    task = getQueue().poll();
+                    if (task != null) {
+                        dispatchedTasks.put(task, System.nanoTime());
+                    }
+                } finally {
+                    endMove();
+                }
+                if (task == null) {
+                    releasePermit();
+                    break;
+                }
+                if (limiter != null) {
+                    limiter.acquire(System.nanoTime());
+                }
+                dispatched = true;
+                dispatch(task);
             }
-        } catch (final InterruptedException e) {
-            if (this.getTaskEventListener() != null) {
-                getTaskEventListener().taskComplete(task, new TaskResult(TaskResult.FATAL, e));
+            final long throttleDelay = getQueue().getThrottleDelay();
+            if (throttleDelay >= 0) {
+                scheduleFlush(throttleDelay);
+            }
+        } finally {
+            dispatchLock.unlock();
+            if (dispatched) {
+                signalTaskStarted();
+                signalNotFull();
             }
         }
+        return scheduleChanged
+                || !throttled && getQueue().isReady() && numberOfRunningTasks.get() < getNumberOfConcurrentTasks();
     }
 
-    public int getNumberOfConcurrentTasks() {
-        return numberOfConcurrentTasks;
+    /**
+     * Moves the scheduled tasks that are due into the queue and schedules a
+     * flush for the time the next one is due. Must be called while holding
+     * the dispatch-lock.
+     */
+    private void promoteDueTasks() {
+        scheduleChanged = false;
+        if (delayedTasks.size() == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final List<T> queuedTasks = new ArrayList<T>();
+        startMove();
+        try {
+            for (final T task : delayedTasks.pollDue(now)) {
+                task.setQueuedTime(now);
+                if (addInMemory(task)) {
+                    queuedTasks.add(task);
+                } else {
+                    LOG.error("scheduled Task '{}' has already been queued", task);
+                }
+            }
+        } finally {
+            endMove();
+        }
+        tasksQueued(queuedTasks.size());
+        for (final T task : queuedTasks) {
+            events.taskQueued(task);
+        }
+        final long delay = delayedTasks.getDelay(System.nanoTime());
+        if (delay >= 0) {
+            scheduleFlush(Math.max(1, delay));
+        }
     }
 
-    public void setNumberOfConcurrentTasks(final int maximumNumberOfConcurrentTasks) {
-        this.numberOfConcurrentTasks = maximumNumberOfConcurrentTasks;
+    /**
+     * Adds a task that has to keep it's identity, like a periodic or retried
+     * task, to the queue; a spilling queue never writes it to disk.
+     */
+    private boolean addInMemory(final T task) {
+        final TaskQueue<T> taskQueue = getQueue();
+        if (taskQueue instanceof SpillingTaskQueue) {
+            return ((SpillingTaskQueue<T>) taskQueue).add(task, false);
+        }
+        return taskQueue.add(task);
     }
 
-    @Override
-    public int getNumberOfExecutingTasks() {
-        return getNumberOfRunningTasks() + getNumberOfEnqueuedTasks();
+    /**
+     * Schedules a flush on the timer-thread, unless one is already scheduled
+     * for an earlier time. Must be called while holding the dispatch-lock.
+     *
+     * @param delay nanoseconds until the flush
+     */
+    private void scheduleFlush(final long delay) {
+        final long flushTime = System.nanoTime() + delay;
+        if (flushScheduled && scheduledFlushTime - flushTime <= 0) {
+            return;
+        }
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new TaskThreadFactory("task-rate-limiter", true));
+        }
+        flushScheduled = true;
+        scheduledFlushTime = flushTime;
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduledFlush(flushTime);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
     }
 
-    public int getNumberOfEnqueuedTasks() {
-        return this.getQueue().size();
+    private void scheduledFlush(final long flushTime) {
+        try {
+            // wait for the lock, a thread dispatching right now may have
+            // relied on this flush
+            dispatchLock.lock();
+            if (flushScheduled && scheduledFlushTime == flushTime) {
+                flushScheduled = false;
+            }
+            if (dispatchQueuedTasks()) {
+                flush();
+            }
+        } catch (final TaskException e) {
+            LOG.error("could not dispatch rate limited tasks", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    public int getNumberOfRunningTasks() {
-        return getTaskRunner().getNumberOfExecutingTasks();
+    private void dispatch(final T task) throws TaskException, InterruptedException {
+        events.taskDispatched(task);
+        final TaskJournal<T> currentJournal = journal;
+        if (currentJournal != null) {
+            try {
+                currentJournal.appendStarted(task);
+            } catch (final TaskException e) {
+                LOG.error("could not journal the dispatch of Task '" + task + "'", e);
+            }
+        }
+        boolean handedOver = false;
+        try {
+            getTaskRunner().execute(task);
+            handedOver = true;
+        } finally {
+            if (!handedOver && dispatchedTasks.remove(task) != null) {
+                getQueue().release(task);
+                releasePermit();
+                // the task is dropped, it must not be recovered either
+                journalCompleted(task);
+            }
+        }
     }
 
-    @Override
-    public TaskEventListener<T> getTaskEventListener() {
-        return taskEventListener;
+    private boolean tryAcquirePermit() {
+        while (true) {
+            final int running = numberOfRunningTasks.get();
+            if (running >= getNumberOfConcurrentTasks()) {
+                return false;
+            }
+            if (numberOfRunningTasks.compareAndSet(running, running + 1)) {
+                return true;
+            }
+        }
     }
 
-    @Override
-    public void setTaskEventListener(final TaskEventListener<T> taskEventListener) {
-        this.taskEventListener = taskEventListener;
+    private void releasePermit() {
+        numberOfRunningTasks.decrementAndGet();
     }
 
-    @Override
-    public void dispose() throws TaskException, InterruptedException {
-        this.join();
-        if(this.getTaskRunner() != null) {
-            this.getTaskRunner().dispose();;
+    /**
+     * Wakes up threads waiting in {@link #join(AbstractTask)} for a queued task
+     * to be started. The queue-lock is only taken when there are such threads.
+     */
+    private void signalTaskStarted() {
+        if (numberOfJoiningThreads.get() > 0) {
+            getQueueLock().lock();
+            try {
+                getTaskStartedCondition().signalAll();
+            } finally {
+                getQueueLock().unlock();
+            }
         }
-        this.taskRunner = null;
+    }
+
+    /**
+     * Wakes up submitters waiting for room in a full queue, the capacity-lock
+     * is only taken when there are such threads.
+     */
+    private void signalNotFull() {
+        if (numberOfBlockedSubmitters.get() > 0) {
+            capacityLock.lock();
+            try {
+                notFullCondition.signalAll();
+            } finally {
+                capacityLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Looks for a task that is neither queued nor started, the dispatching
+     * thread may be moving it right now. Instead of waiting for the
+     * dispatch-lock, which is held during a whole dispatch, the lookup is
+     * repeated until no move has been in progress or ended meanwhile; only
+     * when tasks keep moving it falls back to the lock.
+     *
+     * @param task the task to look for
+     * @return true when the task is waiting, dispatched or not initialized
+     */
+    private boolean lookUp(final T task) {
+        for (int i = 0; i < MAXIMUM_LOOKUPS; i++) {
+            final long moves = numberOfMoves;
+            if ((moves & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            if (isKnown(task)) {
+                return true;
+            }
+            if (numberOfMoves == moves) {
+                return false;
+            }
+        }
+        dispatchLock.lock();
+        try {
+            return isKnown(task);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    private boolean isKnown(final T task) {
+        return task.getState() != TaskState.INITIALIZED || isWaiting(task) || dispatchedTasks.containsKey(task);
+    }
+
+    /**
+     * Waits until a dispatched task has been handed to the inner runner, the
+     * dispatching thread only has to tell the listeners and the journal.
+     *
+     * @param task the task that may be dispatched
+     */
+    private void awaitHandOver(final T task) {
+        while (task.getState() == TaskState.INITIALIZED && dispatchedTasks.containsKey(task)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Starts moving a task between two places, must be called while holding
+     * the dispatch-lock.
+     */
+    private void startMove() {
+        numberOfMoves++;
+    }
+
+    /**
+     * Ends the move of a task, once it is in it's new place.
+     */
+    private void endMove() {
+        numberOfMoves++;
+    }
+
+    /**
+     * Waits for the queued, scheduled and running tasks. Periodic tasks are
+     * only waited for when they are queued or running, not while they wait
+     * for their next run. Tasks spilled to disk are waited for until none is
+     * left.
+     */
+    @Override
+    public void join() throws InterruptedException, TaskException {
+        while (true) {
+            final Set<T> tasks = new HashSet<T>(getQueue().toList());
+            tasks.addAll(blockedTasks.keySet());
+            for (final T task : delayedTasks.toList()) {
+                if (!periodicTasks.containsKey(task)) {
+                    tasks.add(task);
+                }
+            }
+            join(tasks);
+            taskRunner.join();
+            if (getNumberOfSpilledTasks() == 0) {
+                return;
+            }
+            awaitSpilledTasks();
+        }
+    }
+
+    /**
+     * Waits until a task has been dispatched, or for a short while; the
+     * spilled tasks are read back as new instances, so they can't be joined.
+     */
+    private void awaitSpilledTasks() throws InterruptedException {
+        numberOfJoiningThreads.incrementAndGet();
+        try {
+            getQueueLock().lock();
+            try {
+                getTaskStartedCondition().await(10, TimeUnit.MILLISECONDS);
+            } finally {
+                getQueueLock().unlock();
+            }
+        } finally {
+            numberOfJoiningThreads.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void join(final Iterable<T> tasks) throws InterruptedException, TaskException {
+        for (final T task : tasks) {
+            join(task);
+        }
+    }
+
+    @Override
+    public void join(final T task) throws InterruptedException, TaskException {
+        numberOfJoiningThreads.incrementAndGet();
+        try {
+            while (task.getState() == TaskState.INITIALIZED) {
+                if (!isWaiting(task)) {
+                    if (!lookUp(task)) {
+                        throw new TaskException("Task doesn't belong to this taskRunner");
+                    }
+                    awaitHandOver(task);
+                    continue;
+                }
+                this.getQueueLock().lock();
+                try {
+                    if (task.getState() == TaskState.INITIALIZED && isWaiting(task)) {
+                        this.getTaskStartedCondition().await();
+                    }
+                } finally {
+                    this.getQueueLock().unlock();
+                }
+            }
+        } finally {
+            numberOfJoiningThreads.decrementAndGet();
+        }
+        try {
+            getTaskRunner().join(task);
+        } catch (final TaskException e) {
+            if (task.getState() != TaskState.INITIALIZED) {
+                throw e;
+            }
+            // the run of a periodic task has completed and it waits for the next run
+            if (periodicTasks.containsKey(task)) {
+                return;
+            }
+            // a failed attempt is retried, the future gets the final result
+            if (!lookUp(task)) {
+                throw e;
+            }
+            task.getFuture().await();
+        }
+    }
+
+    @Override
+    public void taskComplete(final T task, final TaskResult result) {
+        final Long dispatchedAt = dispatchedTasks.remove(task);
+        if (dispatchedAt != null) {
+            final int runningTasks = numberOfRunningTasks.get();
+            try {
+                getQueue().release(task);
+            } finally {
+                releasePermit();
+            }
+            final ConcurrencyLimit limit = concurrencyLimit;
+            if (limit != null) {
+                try {
+                    limit.taskComplete(dispatchedAt, System.nanoTime() - dispatchedAt, runningTasks, result);
+                } catch (final RuntimeException e) {
+                    LOG.error("concurrency limit '" + limit + "' failed for Task '" + task + "'", e);
+                }
+            }
+            final TaskMetrics taskMetrics = metrics;
+            if (taskMetrics != null) {
+                taskMetrics.taskComplete(task, result);
+            }
+        }
+        try {
+            flush();
+            if (retry(task, result)) {
+                return;
+            }
+            journalCompleted(task);
+            events.taskComplete(task, result);
+            scheduleNextRun(task, result);
+        } catch (final TaskException e) {
+            events.taskComplete(task, new TaskResult(TaskResult.FATAL, e));
+        } catch (final InterruptedException e) {
+            events.taskComplete(task, new TaskResult(TaskResult.FATAL, e));
+        }
+    }
+
+    /**
+     * Writes the completion of a journaled task, a task that can't be
+     * journaled is run again after a restart.
+     *
+     * @param task the completed task
+     */
+    private void journalCompleted(final T task) {
+        final TaskJournal<T> currentJournal = journal;
+        if (currentJournal != null && task.getJournalId() != 0) {
+            try {
+                currentJournal.appendCompleted(task);
+            } catch (final TaskException e) {
+                LOG.error("could not journal the completion of Task '" + task + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the completion of a task that has just been journaled but was
+     * not accepted after all, so it's record doesn't keep the segment and
+     * the task isn't recovered. A task that had been journaled before keeps
+     * it's record, the id belongs to the accepted submission.
+     *
+     * @param task      the refused task
+     * @param journalId the journal id of the task before it was journaled
+     */
+    private void journalRejected(final T task, final long journalId) {
+        if (journalId == 0) {
+            journalCompleted(task);
+            task.setJournalId(0);
+        }
+    }
+
+    /**
+     * Schedules the next attempt of a failed task, when the
+     * {@link RetryPolicy} allows it. A task without a result hasn't failed
+     * and is not retried. The task is reset as a move under the
+     * dispatch-lock, so a concurrent cancel or dispatch never sees it half
+     * way. A cancel sets the cancel-request before it looks for the task, so
+     * either the cancel finds the scheduled attempt or the check after
+     * scheduling it sees the request.
+     *
+     * @param task   the completed task
+     * @param result the result of the attempt, may be null
+     * @return true when the task will be run again
+     * @throws TaskException        when tasks couldn't be dispatched
+     * @throws InterruptedException the current thread got interrupted
+     */
+    private boolean retry(final T task, final TaskResult result) throws TaskException, InterruptedException {
+        final RetryPolicy policy = retryPolicy;
+        if (policy == null || result == null || result.getStatus() == TaskResult.CANCEL || task.isCancelRequested()
+                || task.getAttempt() >= policy.getMaximumAttempts() || !policy.isRetryable(task, result)) {
+            return false;
+        }
+        final int attempt = task.getAttempt();
+        final long backoff = policy.getBackoff(attempt, TimeUnit.NANOSECONDS);
+        LOG.debug("attempt {} of Task '{}' failed, retrying in {}ms",
+                new Object[]{attempt, task, TimeUnit.NANOSECONDS.toMillis(backoff)});
+        dispatchLock.lock();
+        try {
+            if (task.isCancelRequested()) {
+                return false;
+            }
+            startMove();
+            try {
+                task.reset(false);
+                task.setAttempt(attempt + 1);
+                delayedTasks.add(task, System.nanoTime() + backoff);
+            } finally {
+                endMove();
+            }
+            scheduleChanged = true;
+        } finally {
+            dispatchLock.unlock();
+        }
+        // canceled while it was reset, cancel didn't find it
+        if (task.isCancelRequested() && delayedTasks.remove(task)) {
+            cancelWaitingTask(task);
+            return true;
+        }
+        flush();
+        return true;
+    }
+
+    /**
+     * Schedules the next run of a periodic task that has completed, or ends
+     * it's schedule when the run didn't succeed; a run without a result
+     * didn't succeed either.
+     *
+     * @param task   the completed task
+     * @param result the result of the run, may be null
+     * @throws TaskException        when tasks couldn't be dispatched
+     * @throws InterruptedException the current thread got interrupted
+     */
+    private void scheduleNextRun(final T task, final TaskResult result) throws TaskException, InterruptedException {
+        final Long period = periodicTasks.get(task);
+        if (period == null) {
+            return;
+        }
+        if (result == null || result.getStatus() != TaskResult.SUCCESS || disposed) {
+            periodicTasks.remove(task);
+            return;
+        }
+        // the inner runner doesn't complete the future of a task that has been reset
+        task.getFuture().complete(result);
+        task.reset(true);
+        task.setAttempt(1);
+        delayedTasks.add(task, System.nanoTime() + period);
+        // canceled while it was reset, cancel didn't find it
+        if (!periodicTasks.containsKey(task) && delayedTasks.remove(task)) {
+            cancelWaitingTask(task);
+            return;
+        }
+        scheduleChanged = true;
+        flush();
+    }
+
+    /**
+     * Queued-events of the inner runner are not passed on, this runner has
+     * reported the task when it was queued here.
+     */
+    @Override
+    public void taskQueued(final T task) {
+    }
+
+    /**
+     * Dispatched-events of the inner runner are not passed on.
+     */
+    @Override
+    public void taskDispatched(final T task) {
+    }
+
+    /**
+     * Passes the start of a task by the inner runner on to the lifecycle
+     * listeners of this runner.
+     */
+    @Override
+    public void taskStarted(final T task) {
+        events.taskStarted(task);
+    }
+
+    /**
+     * Cancel-requests of the inner runner are not passed on, this runner has
+     * reported them in {@link #cancel(AbstractTask)}.
+     */
+    @Override
+    public void taskCancelRequested(final T task) {
+    }
+
+    /**
+     * The number of tasks that may currently run at once, given by the
+     * {@link ConcurrencyLimit} when there is one.
+     *
+     * @return the current limit
+     */
+    public int getNumberOfConcurrentTasks() {
+        final ConcurrencyLimit limit = concurrencyLimit;
+        return limit != null ? limit.getLimit() : numberOfConcurrentTasks;
+    }
+
+    /**
+     * Sets a fixed limit, replacing a {@link ConcurrencyLimit} that has been
+     * set before.
+     *
+     * @param maximumNumberOfConcurrentTasks the number of tasks that may run at once
+     */
+    public void setNumberOfConcurrentTasks(final int maximumNumberOfConcurrentTasks) {
+        this.numberOfConcurrentTasks = maximumNumberOfConcurrentTasks;
+        this.concurrencyLimit = null;
+    }
+
+    /**
+     * The number of tasks per partition that may run at once.
+     *
+     * @return the limit per partition, 0 when tasks are not limited per partition
+     */
+    public int getNumberOfConcurrentTasksPerPartition() {
+        final TaskQueue<T> taskQueue = queue;
+        if (taskQueue instanceof PartitionedTaskQueue) {
+            final int limit = ((PartitionedTaskQueue<T>) taskQueue).getNumberOfConcurrentTasksPerPartition();
+            return limit == Integer.MAX_VALUE ? 0 : limit;
+        }
+        return 0;
+    }
+
+    /**
+     * Limits the number of running tasks per
+     * {@link AbstractTask#getPartitionKey() partition} in addition to the
+     * global limit, tasks without a partition key are only limited by the
+     * global limit. Partitioning has to be turned on before the first task is
+     * executed, afterwards only the limit may be changed.
+     *
+     * @param numberOfConcurrentTasksPerPartition the number of tasks per partition that may run at once
+     * @throws IllegalStateException when partitioning is turned on after tasks have been executed
+     */
+    public void setNumberOfConcurrentTasksPerPartition(final int numberOfConcurrentTasksPerPartition) {
+        if (numberOfConcurrentTasksPerPartition < 1) {
+            throw new IllegalArgumentException("at least one task per partition has to be allowed");
+        }
+        dispatchLock.lock();
+        try {
+            getPartitionedQueue().setNumberOfConcurrentTasksPerPartition(numberOfConcurrentTasksPerPartition);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * Limits the number of tasks started per
+     * {@link AbstractTask#getPartitionKey() partition} and second, every
+     * partition gets it's own token-bucket. Tasks without a partition key are
+     * only limited by the global {@link #setRateLimiter rate limiter}. Like
+     * {@link #setNumberOfConcurrentTasksPerPartition}, this has to be set
+     * before the first task is executed, afterwards only the rate may be
+     * changed.
+     *
+     * @param permitsPerSecond the number of tasks per partition that may be started per second
+     * @param burst            the number of tasks per partition that may be started at once
+     * @throws IllegalStateException when partitioning is turned on after tasks have been executed
+     */
+    public void setRateLimitPerPartition(final double permitsPerSecond, final int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid rate: permitsPerSecond=" + permitsPerSecond
+                    + ", burst=" + burst);
+        }
+        dispatchLock.lock();
+        try {
+            getPartitionedQueue().setRateLimitPerPartition(permitsPerSecond, burst);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Limits the number of queued tasks, what happens to a task submitted to
+     * a full queue is decided by the policy. Tasks queued by the runner
+     * itself, like scheduled, retried, dependent or recovered tasks, may
+     * still exceed the capacity. With spilling turned on, the capacity
+     * includes the tasks on disk and {@link OverflowPolicy#DROP_LOWEST} only
+     * drops tasks in memory.
+     *
+     * @param capacity the maximum number of queued tasks, 0 for an unbounded queue
+     * @param policy   what to do with a task when the queue is full
+     */
+    public void setQueueCapacity(final int capacity, final OverflowPolicy policy) {
+        if (capacity < 0 || policy == null) {
+            throw new IllegalArgumentException("invalid capacity: capacity=" + capacity + ", policy=" + policy);
+        }
+        capacityLock.lock();
+        try {
+            this.overflowPolicy = policy;
+            this.queueCapacity = capacity;
+            // blocked submitters check the new capacity
+            notFullCondition.signalAll();
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * The time a submitter waits for room in the queue with
+     * {@link OverflowPolicy#BLOCK}.
+     *
+     * @param unit the unit of the result
+     * @return the maximum time, 0 when submitters wait as long as it takes
+     */
+    public long getMaximumBlockTime(final TimeUnit unit) {
+        return unit.convert(maximumBlockTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long a submitter waits for room in the queue with
+     * {@link OverflowPolicy#BLOCK} before it's task is rejected.
+     *
+     * @param time the maximum time, 0 to wait as long as it takes
+     * @param unit the unit of the time
+     */
+    public void setMaximumBlockTime(final long time, final TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException("invalid block time: " + time);
+        }
+        this.maximumBlockTime = unit.toNanos(time);
+    }
+
+    public TaskJournal<T> getJournal() {
+        return journal;
+    }
+
+    /**
+     * Writes the tasks of this runner ahead to the given journal and runs the
+     * tasks the journal recovers from an earlier run. Has to be called once,
+     * before tasks are executed; the journal is closed by {@link #dispose()}.
+     *
+     * @param journal the journal, it must not be used by another runner
+     * @throws TaskException        when the journal can't be read or the recovered tasks can't be queued
+     * @throws InterruptedException the current thread got interrupted
+     */
+    public void setJournal(final TaskJournal<T> journal) throws TaskException, InterruptedException {
+        if (this.journal != null) {
+            throw new IllegalStateException("the journal has already been set");
+        }
+        final List<T> recoveredTasks = journal.recover();
+        this.journal = journal;
+        if (!recoveredTasks.isEmpty()) {
+            // queued again with their old ids, so the segments they were in can be deleted; not limited by the capacity
+            enqueueAll(recoveredTasks);
+            flush();
+        }
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Runs tasks that failed again, as the given policy allows. Only the
+     * result of the last attempt is passed to the listeners; the
+     * {@link #setMetrics metrics} count every attempt. The inner runner has to
+     * notify this runner synchronously, without an event queue. Null turns
+     * retrying off.
+     *
+     * @param retryPolicy the policy deciding about another attempt
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limits the number of tasks this runner starts per second, null removes
+     * the limit.
+     *
+     * @param rateLimiter the token-bucket to take a token from for every started task
+     */
+    public void setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Switches to a {@link PartitionedTaskQueue} unless it is already used.
+     * Must be called while holding the dispatch-lock.
+     */
+    private PartitionedTaskQueue<T> getPartitionedQueue() {
+        final TaskQueue<T> taskQueue = queue;
+        if (taskQueue instanceof PartitionedTaskQueue) {
+            return (PartitionedTaskQueue<T>) taskQueue;
+        }
+        if (taskQueue instanceof SpillingTaskQueue) {
+            throw new IllegalStateException("partitioning can't be combined with spilling");
+        }
+        if (taskQueue instanceof AgingTaskQueue) {
+            throw new IllegalStateException("partitioning can't be combined with aging");
+        }
+        if (!taskQueue.isEmpty() || !dispatchedTasks.isEmpty()) {
+            throw new IllegalStateException("partitioning has to be turned on before tasks are executed");
+        }
+        final PartitionedTaskQueue<T> partitionedQueue = new PartitionedTaskQueue<T>(comparator, Integer.MAX_VALUE);
+        queue = partitionedQueue;
+        return partitionedQueue;
+    }
+
+    /**
+     * Keeps at most the given number of queued tasks in memory and writes
+     * the others to disk. Has to be turned on before the first task is
+     * executed and can't be combined with partitioning.
+     * <p>
+     * A spilled task is read back as a new instance created by the
+     * serializer, so spilling suits large backlogs of tasks nobody holds on
+     * to: listeners get the new instance, while the original one, it's future
+     * and {@link #cancel}, {@link #hasStarted} or {@link #join(AbstractTask)}
+     * don't see it anymore. Tasks that have to keep their identity are never
+     * spilled: scheduled, periodic and retried tasks, and tasks other tasks
+     * already {@link AbstractTask#dependsOn depend on}.
+     *
+     * @param directory            the directory of the run files, created when missing
+     * @param serializer           writes and reads the tasks
+     * @param maximumTasksInMemory the number of queued tasks kept in memory, at least 2
+     * @throws TaskException         when the directory can't be created
+     * @throws IllegalStateException when tasks have already been executed or partitioning is turned on
+     */
+    public void enableSpilling(final File directory, final TaskSerializer<T> serializer,
+                               final int maximumTasksInMemory) throws TaskException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new TaskException("could not create the spill directory '" + directory + "'");
+        }
+        dispatchLock.lock();
+        try {
+            final TaskQueue<T> taskQueue = queue;
+            if (taskQueue instanceof PartitionedTaskQueue) {
+                throw new IllegalStateException("spilling can't be combined with partitioning");
+            }
+            if (taskQueue instanceof AgingTaskQueue) {
+                throw new IllegalStateException("spilling can't be combined with aging");
+            }
+            if (!taskQueue.isEmpty() || !dispatchedTasks.isEmpty()) {
+                throw new IllegalStateException("spilling has to be turned on before tasks are executed");
+            }
+            queue = new SpillingTaskQueue<T>(comparator, directory, serializer, maximumTasksInMemory);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * The time after which a queued task is aged.
+     *
+     * @param unit the unit of the result
+     * @return the maximum wait time, 0 when tasks don't age
+     */
+    public long getMaximumWaitTime(final TimeUnit unit) {
+        final TaskQueue<T> taskQueue = queue;
+        if (taskQueue instanceof AgingTaskQueue) {
+            return unit.convert(((AgingTaskQueue<T>) taskQueue).getMaximumWaitTime(), TimeUnit.NANOSECONDS);
+        }
+        return 0;
+    }
+
+    /**
+     * Lets queued tasks age, so tasks of a low priority are not starved by
+     * tasks of a higher one: a task that has waited for the maximum wait time
+     * is dispatched before all tasks queued after it. Tasks that age together
+     * are dispatched by priority among themselves. The tasks are grouped by
+     * the time they were queued, so aging costs O(1) per dispatched task and
+     * no task is ever sorted again, see {@link AgingTaskQueue}.
+     * <p>
+     * The wait time may be changed later on, but aging has to be turned on
+     * before tasks are executed. It can't be combined with partitioning or
+     * spilling.
+     *
+     * @param time the maximum wait time, greater than 0
+     * @param unit the unit of the time
+     * @throws IllegalStateException when tasks have already been executed or partitioning or spilling is turned on
+     */
+    public void setMaximumWaitTime(final long time, final TimeUnit unit) {
+        if (time <= 0) {
+            throw new IllegalArgumentException("invalid maximum wait time: " + time);
+        }
+        dispatchLock.lock();
+        try {
+            final TaskQueue<T> taskQueue = queue;
+            if (taskQueue instanceof AgingTaskQueue) {
+                ((AgingTaskQueue<T>) taskQueue).setMaximumWaitTime(unit.toNanos(time));
+                return;
+            }
+            if (taskQueue instanceof PartitionedTaskQueue) {
+                throw new IllegalStateException("aging can't be combined with partitioning");
+            }
+            if (taskQueue instanceof SpillingTaskQueue) {
+                throw new IllegalStateException("aging can't be combined with spilling");
+            }
+            if (!taskQueue.isEmpty() || !dispatchedTasks.isEmpty()) {
+                throw new IllegalStateException("aging has to be turned on before tasks are executed");
+            }
+            queue = new AgingTaskQueue<T>(comparator, unit.toNanos(time));
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * The number of queued tasks that have been written to disk.
+     *
+     * @return the number of spilled tasks, 0 when spilling isn't turned on
+     */
+    public int getNumberOfSpilledTasks() {
+        final TaskQueue<T> taskQueue = queue;
+        if (taskQueue instanceof SpillingTaskQueue) {
+            return ((SpillingTaskQueue<T>) taskQueue).getNumberOfSpilledTasks();
+        }
+        return 0;
+    }
+
+    public TaskMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records the tasks of this runner in the given metrics. Don't set the
+     * same metrics on the inner {@link TaskRunner}, the tasks would be counted
+     * twice. Null turns recording off.
+     *
+     * @param metrics the metrics to record to
+     */
+    public void setMetrics(final TaskMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void tasksQueued(final int numberOfTasks) {
+        final TaskMetrics taskMetrics = metrics;
+        if (taskMetrics != null) {
+            taskMetrics.tasksQueued(numberOfTasks);
+        }
+    }
+
+    public ConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Lets the given {@link ConcurrencyLimit} decide how many tasks may run at
+     * once, it is told about every task this runner has dispatched. Tasks that
+     * are already running when the limit drops are not affected, the runner
+     * dispatches no more tasks until enough of them have completed.
+     *
+     * @param concurrencyLimit the limit to use
+     */
+    public void setConcurrencyLimit(final ConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    @Override
+    public int getNumberOfExecutingTasks() {
+        return getNumberOfRunningTasks() + getNumberOfEnqueuedTasks() + getNumberOfScheduledTasks()
+                + getNumberOfBlockedTasks();
+    }
+
+    /**
+     * The number of tasks waiting for their dependencies.
+     *
+     * @return the number of held back tasks
+     */
+    public int getNumberOfBlockedTasks() {
+        return blockedTasks.size();
+    }
+
+    /**
+     * The number of tasks that wait for their delay to pass, including
+     * periodic tasks between two runs.
+     *
+     * @return the number of scheduled tasks
+     */
+    public int getNumberOfScheduledTasks() {
+        return delayedTasks.size();
+    }
+
+    public int getNumberOfEnqueuedTasks() {
+        return this.getQueue().size();
+    }
+
+    /**
+     * The number of tasks this runner has dispatched and that have not yet
+     * completed.
+     *
+     * @return the number of running tasks
+     */
+    public int getNumberOfRunningTasks() {
+        return numberOfRunningTasks.get();
+    }
+
+    /**
+     * The first registered listener.
+     *
+     * @return the listener or null when there is none
+     */
+    @Override
+    public TaskEventListener<T> getTaskEventListener() {
+        return events.getListener();
+    }
+
+    @Override
+    public void setTaskEventListener(final TaskEventListener<T> taskEventListener) {
+        events.setListener(taskEventListener);
+        subscribeStartEvents();
+    }
+
+    @Override
+    public void addTaskEventListener(final TaskEventListener<T> taskEventListener) {
+        events.addListener(taskEventListener);
+        subscribeStartEvents();
+    }
+
+    @Override
+    public void removeTaskEventListener(final TaskEventListener<T> taskEventListener) {
+        events.removeListener(taskEventListener);
+        subscribeStartEvents();
+    }
+
+    /**
+     * Subscribes to the start-events of the inner runners while this runner
+     * has lifecycle listeners and unsubscribes when the last one is removed.
+     * The completions are reported by a separate listener that stays
+     * registered, so none is lost or reported twice meanwhile.
+     */
+    private void subscribeStartEvents() {
+        synchronized (startListener) {
+            final boolean subscribe = events.hasLifecycleListeners();
+            if (subscribe == startListenerSubscribed) {
+                return;
+            }
+            startListenerSubscribed = subscribe;
+            for (final TaskRunner<T> runner : Arrays.<TaskRunner<T>>asList(taskRunner, callerRunner)) {
+                if (runner == null) {
+                    continue;
+                }
+                if (subscribe) {
+                    runner.addTaskEventListener(startListener);
+                } else {
+                    runner.removeTaskEventListener(startListener);
+                }
+            }
+        }
+    }
+
+    public int getEventQueueCapacity() {
+        return events.getQueueCapacity();
+    }
+
+    /**
+     * Notifies the listeners of this runner from a single thread through a
+     * queue of the given capacity, see
+     * {@link ConcurrentTaskRunner#setEventQueueCapacity(int)}.
+     *
+     * @param capacity the capacity of the event queue, 0 (the default) to
+     *                 notify the listeners from the thread of the task
+     */
+    public void setEventQueueCapacity(final int capacity) {
+        events.setQueueCapacity(capacity);
+    }
+
+    @Override
+    public void dispose() throws TaskException, InterruptedException {
+        disposed = true;
+        for (final T task : new ArrayList<T>(periodicTasks.keySet())) {
+            if (periodicTasks.remove(task) != null && delayedTasks.remove(task)) {
+                cancelWaitingTask(task);
+            }
+        }
+        this.join();
+        if(this.getTaskRunner() != null) {
+            this.getTaskRunner().dispose();;
+        }
+        this.taskRunner = null;
+        final ConcurrentTaskRunner<T> runner = callerRunner;
+        if (runner != null) {
+            runner.dispose();
+        }
+        final TaskJournal<T> currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.close();
+        }
+        final TaskQueue<T> taskQueue = queue;
+        if (taskQueue instanceof SpillingTaskQueue) {
+            ((SpillingTaskQueue<T>) taskQueue).close();
+        }
+        dispatchLock.lock();
+        try {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        } finally {
+            dispatchLock.unlock();
+        }
+        events.shutdown();
     }
 
     protected TaskRunner<T> getTaskRunner() {
@@ -256,7 +1840,7 @@ public class QueuedTaskRunner<T extends AbstractTask> implements TaskRunner<T>,
         this.taskRunner = taskRunner;
     }
 
-    private Queue<T> getQueue() {
+    private TaskQueue<T> getQueue() {
         return queue;
     }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket that limits how many tasks a {@link QueuedTaskRunner} starts
+ * per second. The bucket holds up to {@code burst} tokens and is refilled
+ * with {@code permitsPerSecond}; every started task takes a token.
+ * <p>
+ * The runner never waits for a token: when the bucket is empty, the tasks stay
+ * in the queue and the runner dispatches them again once a token is
+ * available.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Default Constructor, the bucket starts full.
+     *
+     * @param permitsPerSecond the number of tasks that may be started per second
+     * @param burst            the number of tasks that may be started at once after a
+     *                         pause, at least 1
+     */
+    public RateLimiter(final double permitsPerSecond, final int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid rate: permitsPerSecond=" + permitsPerSecond
+                    + ", burst=" + burst);
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Package-Private method to ask how long it takes until a token is
+     * available.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return 0 when a token is available, otherwise the nanoseconds until
+     *         there is one
+     */
+    synchronized long getWaitTime(final long now) {
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) * NANOS_PER_SECOND / permitsPerSecond));
+    }
+
+    /**
+     * Package-Private method to take a token, {@link #getWaitTime} has to be
+     * asked before.
+     *
+     * @param now the current {@link System#nanoTime()}
+     */
+    synchronized void acquire(final long now) {
+        refill(now);
+        tokens -= 1;
+    }
+
+    /**
+     * Package-Private method to ask whether the bucket is full, so forgetting
+     * it would not allow more tasks to be started.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return true when the bucket holds {@code burst} tokens
+     */
+    synchronized boolean isFull(final long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+
+    private void refill(final long now) {
+        final long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * permitsPerSecond / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+}
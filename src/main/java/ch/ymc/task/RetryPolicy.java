@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a {@link QueuedTaskRunner} runs a failed task again and how
+ * long it waits before.
+ * <p>
+ * The backoff grows exponentially with every attempt, up to a maximum. It is
+ * shortened by a random part, the jitter, so tasks that failed together
+ * don't all retry at the same time. By default tasks are retried when they
+ * return {@link TaskResult#ERROR}; override {@link #isRetryable} to decide by
+ * the exception or the task.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class RetryPolicy {
+
+    private final int maximumAttempts;
+    private final long initialBackoff;
+    private final long maximumBackoff;
+    private final double multiplier;
+    private final double jitter;
+    private final Random random = new Random();
+
+    /**
+     * Constructor for a backoff that doubles with every attempt and is
+     * shortened by up to half.
+     *
+     * @param maximumAttempts the number of times a task is run at most, including the first run
+     * @param initialBackoff  the backoff after the first run
+     * @param maximumBackoff  the longest backoff
+     * @param unit            the unit of the backoffs
+     */
+    public RetryPolicy(final int maximumAttempts, final long initialBackoff, final long maximumBackoff,
+                       final TimeUnit unit) {
+        this(maximumAttempts, initialBackoff, maximumBackoff, unit, 2, 0.5);
+    }
+
+    /**
+     * Default Constructor.
+     *
+     * @param maximumAttempts the number of times a task is run at most, including the first run
+     * @param initialBackoff  the backoff after the first run
+     * @param maximumBackoff  the longest backoff
+     * @param unit            the unit of the backoffs
+     * @param multiplier      the factor the backoff grows by with every attempt, at least 1
+     * @param jitter          the part of the backoff that is random, between 0 and 1
+     */
+    public RetryPolicy(final int maximumAttempts, final long initialBackoff, final long maximumBackoff,
+                       final TimeUnit unit, final double multiplier, final double jitter) {
+        if (maximumAttempts < 1 || initialBackoff < 0 || maximumBackoff < initialBackoff || multiplier < 1
+                || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("invalid policy: maximumAttempts=" + maximumAttempts
+                    + ", initialBackoff=" + initialBackoff + ", maximumBackoff=" + maximumBackoff
+                    + ", multiplier=" + multiplier + ", jitter=" + jitter);
+        }
+        this.maximumAttempts = maximumAttempts;
+        this.initialBackoff = unit.toNanos(initialBackoff);
+        this.maximumBackoff = unit.toNanos(maximumBackoff);
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    public int getMaximumAttempts() {
+        return maximumAttempts;
+    }
+
+    /**
+     * Decides whether a failed run is worth another attempt, as long as the
+     * task has attempts left. Canceled tasks are never retried.
+     *
+     * @param task   the task that has completed
+     * @param result the result of the run, may be null
+     * @return true to run the task again
+     */
+    public boolean isRetryable(final AbstractTask task, final TaskResult result) {
+        return result != null && result.getStatus() == TaskResult.ERROR;
+    }
+
+    /**
+     * The time to wait before the next attempt, including the jitter.
+     *
+     * @param attempt the attempt that has failed, starting with 1
+     * @param unit    the unit of the result
+     * @return the backoff
+     */
+    public long getBackoff(final int attempt, final TimeUnit unit) {
+        final double exponential = initialBackoff * Math.pow(multiplier, attempt - 1);
+        final double backoff = Math.min(exponential, maximumBackoff);
+        final double randomPart;
+        synchronized (random) {
+            randomPart = backoff * jitter * random.nextDouble();
+        }
+        return unit.convert((long) (backoff - randomPart), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "maximumAttempts=" + maximumAttempts + ", initialBackoff=" + initialBackoff + "ns, maximumBackoff="
+                + maximumBackoff + "ns, multiplier=" + multiplier + ", jitter=" + jitter;
+    }
+}
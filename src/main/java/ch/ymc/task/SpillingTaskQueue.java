@@ -0,0 +1,570 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Package-Private priority queue for the {@link QueuedTaskRunner} that keeps
+ * a bounded number of tasks in memory and writes the rest to disk.
+ * <p>
+ * When more tasks are queued than fit into memory, the lower half of the
+ * tasks in memory is written, in order, to a run file by the
+ * {@link TaskSerializer}. Polling merges the tasks in memory with the runs:
+ * every run only keeps it's next task and a read buffer in memory and reads
+ * the following one when it's task has been taken, so the runs are read back
+ * lazily as the queue is drained and a run file is deleted once it has been
+ * read. Adding and polling is O(log n) for the tasks in memory plus
+ * O(log r) for r runs.
+ * <p>
+ * Every run keeps a file open, so the runs are merged like the levels of a
+ * log-structured tree: a new run has level 0, and once there are
+ * {@value #MERGE_FACTOR} runs of a level they are merged into one run of the
+ * next level. There are at most {@code MERGE_FACTOR - 1} runs per level, so
+ * the number of runs only grows with the logarithm of the spilled tasks, e.g.
+ * to 28 for ten million tasks spilled 5000 at a time, and every task is
+ * written about once per level.
+ * <p>
+ * A task read back is a new instance created by the serializer, the original
+ * one is gone. So {@link #contains} and {@link #remove} only find tasks in
+ * memory, and tasks whose identity matters are never written: tasks added
+ * with {@code spillable} false and tasks other tasks wait for with a
+ * callback on their future.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+final class SpillingTaskQueue<T extends AbstractTask> implements TaskQueue<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillingTaskQueue.class);
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MERGE_FACTOR = 8;
+
+    private final File directory;
+    private final TaskSerializer<T> serializer;
+    private final int memoryCapacity;
+    private final Comparator<Entry<T>> entryComparator;
+    private final Lock lock = new ReentrantLock();
+    // guarded by the lock
+    private final TreeSet<Entry<T>> memory;
+    private final Map<T, Entry<T>> index = new HashMap<T, Entry<T>>();
+    private final PriorityQueue<Run<T>> runs;
+    private long sequence;
+    private int numberOfSpilledTasks;
+    private volatile int size;
+
+    /**
+     * Default Constructor.
+     *
+     * @param comparator     describes the order of the tasks
+     * @param directory      the directory of the run files
+     * @param serializer     writes and reads the tasks
+     * @param memoryCapacity the number of tasks kept in memory, at least 2
+     */
+    SpillingTaskQueue(final Comparator<? super T> comparator, final File directory,
+                      final TaskSerializer<T> serializer, final int memoryCapacity) {
+        if (memoryCapacity < 2) {
+            throw new IllegalArgumentException("at least two tasks have to be kept in memory: " + memoryCapacity);
+        }
+        this.directory = directory;
+        this.serializer = serializer;
+        this.memoryCapacity = memoryCapacity;
+        this.entryComparator = new Comparator<Entry<T>>() {
+            @Override
+            public int compare(final Entry<T> entry1, final Entry<T> entry2) {
+                final int result = comparator.compare(entry1.task, entry2.task);
+                if (result != 0) {
+                    return result;
+                }
+                return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence == entry2.sequence ? 0 : 1);
+            }
+        };
+        this.memory = new TreeSet<Entry<T>>(entryComparator);
+        this.runs = new PriorityQueue<Run<T>>(11, new Comparator<Run<T>>() {
+            @Override
+            public int compare(final Run<T> run1, final Run<T> run2) {
+                return entryComparator.compare(run1.next, run2.next);
+            }
+        });
+    }
+
+    @Override
+    public boolean add(final T task) {
+        return add(task, true);
+    }
+
+    /**
+     * Adds a task.
+     *
+     * @param task      the task to add
+     * @param spillable false to keep the task in memory
+     * @return false when the task is already queued
+     */
+    boolean add(final T task, final boolean spillable) {
+        lock.lock();
+        try {
+            if (index.containsKey(task)) {
+                return false;
+            }
+            addEntry(task, spillable);
+            spillIfFull();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean addAll(final Collection<T> tasks) {
+        lock.lock();
+        try {
+            for (final T task : tasks) {
+                if (index.containsKey(task)) {
+                    return false;
+                }
+            }
+            for (final T task : tasks) {
+                addEntry(task, true);
+            }
+            spillIfFull();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll() {
+        lock.lock();
+        try {
+            final Run<T> run = runs.peek();
+            if (run != null && (memory.isEmpty() || entryComparator.compare(run.next, memory.first()) < 0)) {
+                runs.poll();
+                final T task = run.next.task;
+                numberOfSpilledTasks--;
+                if (readNext(run)) {
+                    runs.add(run);
+                }
+                updateSize();
+                return task;
+            }
+            final Entry<T> entry = memory.pollFirst();
+            if (entry == null) {
+                return null;
+            }
+            index.remove(entry.task);
+            updateSize();
+            return entry.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The last task in memory, a task on disk may come after it.
+     */
+    @Override
+    public T peekLast() {
+        lock.lock();
+        try {
+            return memory.isEmpty() ? null : memory.last().task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release(final T task) {
+        // tasks are not limited by the queue
+    }
+
+    @Override
+    public boolean remove(final T task) {
+        lock.lock();
+        try {
+            final Entry<T> entry = index.remove(task);
+            if (entry == null) {
+                return false;
+            }
+            memory.remove(entry);
+            updateSize();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(final T task) {
+        lock.lock();
+        try {
+            return index.containsKey(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+        return size != 0;
+    }
+
+    @Override
+    public long getThrottleDelay() {
+        return -1;
+    }
+
+    /**
+     * A copy of the tasks in memory, the tasks on disk are left out.
+     *
+     * @return the tasks in memory
+     */
+    @Override
+    public List<T> toList() {
+        lock.lock();
+        try {
+            final List<T> tasks = new ArrayList<T>(memory.size());
+            for (final Entry<T> entry : memory) {
+                tasks.add(entry.task);
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getNumberOfSpilledTasks() {
+        lock.lock();
+        try {
+            return numberOfSpilledTasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getNumberOfRuns() {
+        lock.lock();
+        try {
+            return runs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the run files, the tasks in them are lost.
+     */
+    void close() {
+        lock.lock();
+        try {
+            for (final Run<T> run : runs) {
+                closeRun(run);
+            }
+            runs.clear();
+            numberOfSpilledTasks = 0;
+            updateSize();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addEntry(final T task, final boolean spillable) {
+        final Entry<T> entry = new Entry<T>(task, sequence++, spillable);
+        index.put(task, entry);
+        memory.add(entry);
+        updateSize();
+    }
+
+    /**
+     * Writes the lower half of the tasks in memory to a new run, when memory
+     * is full. Tasks that can't be written stay in memory.
+     */
+    private void spillIfFull() {
+        if (memory.size() <= memoryCapacity) {
+            return;
+        }
+        final int numberToSpill = memory.size() - memoryCapacity / 2;
+        final List<Entry<T>> entries = new ArrayList<Entry<T>>(numberToSpill);
+        final List<byte[]> data = new ArrayList<byte[]>(numberToSpill);
+        final Iterator<Entry<T>> iterator = memory.descendingIterator();
+        while (iterator.hasNext() && entries.size() < numberToSpill) {
+            final Entry<T> entry = iterator.next();
+            // a task others wait for keeps it's identity
+            if (!entry.spillable || entry.task.getFuture().hasCallbacks()) {
+                continue;
+            }
+            try {
+                data.add(serializer.serialize(entry.task));
+                entries.add(entry);
+            } catch (final TaskException e) {
+                LOG.error("could not serialize Task '" + entry.task + "', keeping it in memory", e);
+                entry.spillable = false;
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        Collections.reverse(entries);
+        Collections.reverse(data);
+        final Run<T> run;
+        try {
+            run = writeRun(entries, data);
+        } catch (final IOException e) {
+            LOG.error("could not write " + entries.size() + " tasks to '" + directory + "', keeping them in memory", e);
+            return;
+        }
+        for (final Entry<T> entry : entries) {
+            memory.remove(entry);
+            index.remove(entry.task);
+        }
+        numberOfSpilledTasks += entries.size();
+        if (readNext(run)) {
+            runs.add(run);
+        }
+        for (int level = 0; mergeRuns(level); level++) {
+            // a merged run may complete the next level
+        }
+    }
+
+    /**
+     * Merges the runs of a level into one run of the next level, when there
+     * are {@link #MERGE_FACTOR} of them. The tasks are copied as they were
+     * written, they are only deserialized to compare them. When the merged
+     * run can't be written, the part that has been written becomes a run
+     * and the rest of the runs stay as they are.
+     *
+     * @param level the level of the runs
+     * @return true when the runs have been merged
+     */
+    private boolean mergeRuns(final int level) {
+        final List<Run<T>> sources = new ArrayList<Run<T>>(MERGE_FACTOR);
+        for (final Run<T> run : runs) {
+            if (run.level == level) {
+                sources.add(run);
+            }
+        }
+        if (sources.size() < MERGE_FACTOR) {
+            return false;
+        }
+        runs.removeAll(sources);
+        final PriorityQueue<Run<T>> merging = new PriorityQueue<Run<T>>(sources.size(), runs.comparator());
+        merging.addAll(sources);
+        File file = null;
+        DataOutputStream output = null;
+        int written = 0;
+        try {
+            file = File.createTempFile("tasks-", ".run", directory);
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            while (!merging.isEmpty()) {
+                final Run<T> run = merging.peek();
+                writeRecord(output, run.next, run.nextData);
+                written++;
+                merging.poll();
+                if (readNext(run)) {
+                    merging.add(run);
+                }
+            }
+            output.close();
+        } catch (final IOException e) {
+            LOG.error("could not merge " + sources.size() + " runs into '" + file + "', keeping the rest of them", e);
+            closeQuietly(output);
+            runs.addAll(merging);
+            if (written == 0) {
+                if (file != null && !file.delete()) {
+                    LOG.warn("could not delete run file '{}'", file);
+                }
+                return false;
+            }
+        }
+        final Run<T> merged = openRun(file, written, level + 1);
+        if (merged != null && readNext(merged)) {
+            runs.add(merged);
+        }
+        return true;
+    }
+
+    private Run<T> writeRun(final List<Entry<T>> entries, final List<byte[]> data) throws IOException {
+        final File file = File.createTempFile("tasks-", ".run", directory);
+        final DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                writeRecord(output, entries.get(i), data.get(i));
+            }
+            output.close();
+            return new Run<T>(file, entries.size(), 0,
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)));
+        } catch (final IOException e) {
+            closeQuietly(output);
+            if (!file.delete()) {
+                LOG.warn("could not delete run file '{}'", file);
+            }
+            throw e;
+        }
+    }
+
+    private void writeRecord(final DataOutputStream output, final Entry<T> entry, final byte[] data)
+            throws IOException {
+        final T task = entry.task;
+        output.writeLong(entry.sequence);
+        output.writeLong(task.getJournalId());
+        output.writeLong(task.getQueuedTime());
+        output.writeInt(task.getAttempt());
+        output.writeLong(task.getTimeout(TimeUnit.NANOSECONDS));
+        output.writeInt(data.length);
+        output.write(data);
+    }
+
+    /**
+     * Opens a merged run, the tasks in it are lost when that fails.
+     */
+    private Run<T> openRun(final File file, final int numberOfTasks, final int level) {
+        try {
+            return new Run<T>(file, numberOfTasks, level,
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)));
+        } catch (final IOException e) {
+            LOG.error("could not open run file '" + file + "', " + numberOfTasks + " tasks are lost", e);
+            numberOfSpilledTasks -= numberOfTasks;
+            if (!file.delete()) {
+                LOG.warn("could not delete run file '{}'", file);
+            }
+            return null;
+        }
+    }
+
+    private void closeQuietly(final DataOutputStream output) {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (final IOException e) {
+                LOG.debug("could not close run file", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the next task of a run into memory, or closes the run when it has
+     * been read. A task that can't be read is lost, that is logged.
+     *
+     * @param run the run to read from
+     * @return false when the run has been read
+     */
+    private boolean readNext(final Run<T> run) {
+        while (run.remaining > 0) {
+            run.remaining--;
+            try {
+                final long taskSequence = run.input.readLong();
+                final long journalId = run.input.readLong();
+                final long queuedTime = run.input.readLong();
+                final int attempt = run.input.readInt();
+                final long timeout = run.input.readLong();
+                final byte[] data = new byte[run.input.readInt()];
+                run.input.readFully(data);
+                final T task = serializer.deserialize(data);
+                task.setJournalId(journalId);
+                task.setQueuedTime(queuedTime);
+                task.setAttempt(attempt);
+                task.setTimeout(timeout, TimeUnit.NANOSECONDS);
+                run.next = new Entry<T>(task, taskSequence, true);
+                run.nextData = data;
+                return true;
+            } catch (final TaskException e) {
+                LOG.error("could not read a task of run file '" + run.file + "', it is lost", e);
+                numberOfSpilledTasks--;
+            } catch (final IOException e) {
+                LOG.error("could not read run file '" + run.file + "', " + (run.remaining + 1) + " tasks are lost", e);
+                numberOfSpilledTasks -= run.remaining + 1;
+                run.remaining = 0;
+            }
+        }
+        closeRun(run);
+        return false;
+    }
+
+    private void closeRun(final Run<T> run) {
+        run.next = null;
+        run.nextData = null;
+        try {
+            run.input.close();
+        } catch (final IOException e) {
+            LOG.warn("could not close run file '{}'", run.file);
+        }
+        if (!run.file.delete()) {
+            LOG.warn("could not delete run file '{}'", run.file);
+        }
+    }
+
+    private void updateSize() {
+        size = memory.size() + numberOfSpilledTasks;
+    }
+
+    /**
+     * A queued task with it's insertion-order as tie-breaker.
+     */
+    private static final class Entry<T> {
+        private final T task;
+        private final long sequence;
+        private boolean spillable;
+
+        Entry(final T task, final long sequence, final boolean spillable) {
+            this.task = task;
+            this.sequence = sequence;
+            this.spillable = spillable;
+        }
+    }
+
+    /**
+     * A run file, sorted like the queue, with the next task read from it and
+     * it's serialized form for merging.
+     */
+    private static final class Run<T> {
+        private final File file;
+        private final int level;
+        private final DataInputStream input;
+        private int remaining;
+        private Entry<T> next;
+        private byte[] nextData;
+
+        Run(final File file, final int remaining, final int level, final DataInputStream input) {
+            this.file = file;
+            this.remaining = remaining;
+            this.level = level;
+            this.input = input;
+        }
+    }
+}
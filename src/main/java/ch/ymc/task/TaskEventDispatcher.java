@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Package-Private helper of the runners that notifies their
+ * {@link TaskEventListener}s.
+ * <p>
+ * By default events are delivered synchronously by the thread completing the
+ * task. With an event queue capacity set, they are put into a bounded queue
+ * and delivered by a single daemon thread, in the order they were fired; the
+ * thread delivers all events that queued up while it was busy at once. When
+ * the queue is full, the completing thread waits for space, so slow listeners
+ * slow down the runner instead of letting events pile up.
+ * <p>
+ * {@link TaskLifecycleListener}s are kept in a second list, so the runners
+ * can skip creating lifecycle events when there is none. Lifecycle events go
+ * through the same queue as the completions and keep their order.
+ * <p>
+ * A listener throwing an exception doesn't keep the other listeners from
+ * being notified, the exception is logged.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+final class TaskEventDispatcher<T extends AbstractTask> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TaskEventDispatcher.class);
+    private static final int MAXIMUM_BATCH_SIZE = 256;
+    private static final byte COMPLETE = 0;
+    private static final byte QUEUED = 1;
+    private static final byte DISPATCHED = 2;
+    private static final byte STARTED = 3;
+    private static final byte CANCEL_REQUESTED = 4;
+
+    private final CopyOnWriteArrayList<TaskEventListener<T>> listeners = new CopyOnWriteArrayList<TaskEventListener<T>>();
+    private final CopyOnWriteArrayList<TaskLifecycleListener<T>> lifecycleListeners = new CopyOnWriteArrayList<TaskLifecycleListener<T>>();
+    private final String threadName;
+    private volatile Delivery<T> delivery;
+
+    /**
+     * Default Constructor.
+     *
+     * @param threadName the name of the delivery-thread
+     */
+    TaskEventDispatcher(final String threadName) {
+        this.threadName = threadName;
+    }
+
+    @SuppressWarnings("unchecked")
+    void addListener(final TaskEventListener<T> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        synchronized (listeners) {
+            listeners.add(listener);
+            if (listener instanceof TaskLifecycleListener) {
+                lifecycleListeners.add((TaskLifecycleListener<T>) listener);
+            }
+        }
+    }
+
+    void removeListener(final TaskEventListener<T> listener) {
+        synchronized (listeners) {
+            if (listeners.remove(listener) && !listeners.contains(listener)) {
+                lifecycleListeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Replaces all listeners with the given one.
+     *
+     * @param listener the only listener, null removes all listeners
+     */
+    void setListener(final TaskEventListener<T> listener) {
+        synchronized (listeners) {
+            listeners.clear();
+            lifecycleListeners.clear();
+            if (listener != null) {
+                addListener(listener);
+            }
+        }
+    }
+
+    /**
+     * The first registered listener.
+     *
+     * @return the listener or null when there is none
+     */
+    TaskEventListener<T> getListener() {
+        for (final TaskEventListener<T> listener : listeners) {
+            return listener;
+        }
+        return null;
+    }
+
+    boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    boolean hasLifecycleListeners() {
+        return !lifecycleListeners.isEmpty();
+    }
+
+    /**
+     * Notifies the listeners, or queues the event for the delivery-thread.
+     *
+     * @param task   the completed task
+     * @param result the result of the task
+     */
+    void taskComplete(final T task, final TaskResult result) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        fire(COMPLETE, task, result);
+    }
+
+    void taskQueued(final T task) {
+        if (!lifecycleListeners.isEmpty()) {
+            fire(QUEUED, task, null);
+        }
+    }
+
+    void taskDispatched(final T task) {
+        if (!lifecycleListeners.isEmpty()) {
+            fire(DISPATCHED, task, null);
+        }
+    }
+
+    void taskStarted(final T task) {
+        if (!lifecycleListeners.isEmpty()) {
+            fire(STARTED, task, null);
+        }
+    }
+
+    void taskCancelRequested(final T task) {
+        if (!lifecycleListeners.isEmpty()) {
+            fire(CANCEL_REQUESTED, task, null);
+        }
+    }
+
+    private void fire(final byte type, final T task, final TaskResult result) {
+        final Delivery<T> currentDelivery = delivery;
+        if (currentDelivery == null) {
+            deliver(type, task, result);
+        } else {
+            currentDelivery.enqueue(new Event<T>(type, task, result));
+        }
+    }
+
+    int getQueueCapacity() {
+        final Delivery<T> currentDelivery = delivery;
+        return currentDelivery == null ? 0 : currentDelivery.capacity;
+    }
+
+    /**
+     * Switches between synchronous and asynchronous delivery. Events that are
+     * queued when switching are still delivered by the old delivery-thread.
+     *
+     * @param capacity the capacity of the event queue, 0 for synchronous delivery
+     */
+    synchronized void setQueueCapacity(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        final Delivery<T> oldDelivery = delivery;
+        if (capacity == getQueueCapacity()) {
+            return;
+        }
+        delivery = capacity == 0 ? null : new Delivery<T>(this, capacity, threadName);
+        if (oldDelivery != null) {
+            oldDelivery.stop();
+        }
+    }
+
+    /**
+     * Delivers all queued events and stops the delivery-thread, later events
+     * are delivered synchronously.
+     */
+    void shutdown() {
+        setQueueCapacity(0);
+    }
+
+    private void deliver(final byte type, final T task, final TaskResult result) {
+        if (type == COMPLETE) {
+            for (final TaskEventListener<T> listener : listeners) {
+                try {
+                    listener.taskComplete(task, result);
+                } catch (final RuntimeException e) {
+                    LOG.error("listener '" + listener + "' failed for task '" + task + "'", e);
+                }
+            }
+            return;
+        }
+        for (final TaskLifecycleListener<T> listener : lifecycleListeners) {
+            try {
+                switch (type) {
+                    case QUEUED:
+                        listener.taskQueued(task);
+                        break;
+                    case DISPATCHED:
+                        listener.taskDispatched(task);
+                        break;
+                    case STARTED:
+                        listener.taskStarted(task);
+                        break;
+                    default:
+                        listener.taskCancelRequested(task);
+                        break;
+                }
+            } catch (final RuntimeException e) {
+                LOG.error("listener '" + listener + "' failed for task '" + task + "'", e);
+            }
+        }
+    }
+
+    /**
+     * An event in the queue, the stop-marker has no task.
+     */
+    private static final class Event<T> {
+        private final byte type;
+        private final T task;
+        private final TaskResult result;
+
+        Event(final byte type, final T task, final TaskResult result) {
+            this.type = type;
+            this.task = task;
+            this.result = result;
+        }
+    }
+
+    /**
+     * The queue and thread of asynchronous delivery.
+     */
+    private static final class Delivery<T extends AbstractTask> implements Runnable {
+        private final TaskEventDispatcher<T> dispatcher;
+        private final int capacity;
+        private final BlockingQueue<Event<T>> queue;
+        private final Thread thread;
+        private volatile boolean stopRequested;
+        private volatile boolean stopped;
+
+        Delivery(final TaskEventDispatcher<T> dispatcher, final int capacity, final String threadName) {
+            this.dispatcher = dispatcher;
+            this.capacity = capacity;
+            this.queue = new ArrayBlockingQueue<Event<T>>(capacity);
+            this.thread = new TaskThreadFactory(threadName, true).newThread(this);
+            this.thread.start();
+        }
+
+        void enqueue(final Event<T> event) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(event);
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            // the delivery-thread may have finished before the event was queued
+            if (stopped) {
+                deliverRemaining();
+            }
+        }
+
+        void stop() {
+            stopRequested = true;
+            // wakes up the thread, when the queue is full it isn't waiting anyway
+            queue.offer(new Event<T>(COMPLETE, null, null));
+            if (Thread.currentThread() != thread) {
+                boolean interrupted = false;
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<Event<T>> batch = new ArrayList<Event<T>>(MAXIMUM_BATCH_SIZE);
+            try {
+                while (!stopRequested || !queue.isEmpty()) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAXIMUM_BATCH_SIZE - 1);
+                    for (final Event<T> event : batch) {
+                        if (event.task != null) {
+                            dispatcher.deliver(event.type, event.task, event.result);
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (final InterruptedException e) {
+                LOG.warn("event delivery has been interrupted, delivering the remaining events");
+            } finally {
+                stopped = true;
+                deliverRemaining();
+            }
+        }
+
+        private void deliverRemaining() {
+            Event<T> event;
+            while ((event = queue.poll()) != null) {
+                if (event.task != null) {
+                    dispatcher.deliver(event.type, event.task, event.result);
+                }
+            }
+        }
+    }
+}
@@ -27,4 +27,14 @@ public class TaskException extends Exception {
         super(message);
     }
 
+    /**
+     * Constructor for an error caused by another exception.
+     *
+     * @param message the error-message
+     * @param cause   the exception causing the error
+     */
+    public TaskException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
 }
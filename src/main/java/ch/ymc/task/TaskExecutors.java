@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory-methods for the {@link ExecutorService}s a
+ * {@link ConcurrentTaskRunner} can be configured with.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public final class TaskExecutors {
+
+    private static final Method OF_VIRTUAL = findMethod("java.lang.Thread", "ofVirtual");
+    private static final Method BUILDER_NAME = findMethod("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method BUILDER_FACTORY = findMethod("java.lang.Thread$Builder", "factory");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod("java.util.concurrent.Executors",
+            "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private TaskExecutors() {
+        super();
+    }
+
+    /**
+     * Creates a thread pool with an upper bound of threads. Tasks go to idle
+     * threads first, otherwise new threads are created up to
+     * {@code maximumPoolSize} before tasks are queued, threads
+     * exceeding {@code corePoolSize} are terminated after being idle for the
+     * keep-alive time. Once all threads are busy, tasks wait in an unbounded
+     * queue.
+     *
+     * @param corePoolSize    the number of threads to keep even when idle
+     * @param maximumPoolSize the maximum number of threads
+     * @param keepAliveTime   the time an idle thread above the core size is kept
+     * @param unit            the unit of the keep-alive time
+     * @param threadFactory   the factory for new threads
+     * @return the thread pool
+     */
+    public static ExecutorService newBoundedThreadPool(final int corePoolSize, final int maximumPoolSize,
+                                                       final long keepAliveTime, final TimeUnit unit,
+                                                       final ThreadFactory threadFactory) {
+        if (corePoolSize < 0 || maximumPoolSize <= 0 || maximumPoolSize < corePoolSize) {
+            throw new IllegalArgumentException("invalid pool size, core: " + corePoolSize + ", maximum: " + maximumPoolSize);
+        }
+        final GrowingQueue queue = new GrowingQueue();
+        final GrowingThreadPool executor = new GrowingThreadPool(corePoolSize, maximumPoolSize, keepAliveTime, unit,
+                queue, threadFactory, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+                if (executor.isShutdown() || !queue.enqueue(runnable)) {
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+            }
+        });
+        queue.setExecutor(executor);
+        return executor;
+    }
+
+    /**
+     * Creates a thread pool with a fixed upper bound of threads whose threads
+     * are named by a {@link TaskThreadFactory}.
+     *
+     * @param maximumPoolSize the maximum number of threads
+     * @param namePrefix      the prefix for the thread names
+     * @param daemon          whether the threads are daemon threads
+     * @return the thread pool
+     */
+    public static ExecutorService newBoundedThreadPool(final int maximumPoolSize, final String namePrefix, final boolean daemon) {
+        return newBoundedThreadPool(0, maximumPoolSize, 60L, TimeUnit.SECONDS, new TaskThreadFactory(namePrefix, daemon));
+    }
+
+    /**
+     * Creates a pool with a fixed number of workers that each have their own
+     * deque of tasks and steal from each other when they run out of work. It
+     * suits many short tasks better than a pool with a single shared queue.
+     *
+     * @param parallelism the number of workers
+     * @param namePrefix  the prefix for the thread names
+     * @param daemon      whether the threads are daemon threads
+     * @return the thread pool
+     */
+    public static ExecutorService newWorkStealingPool(final int parallelism, final String namePrefix, final boolean daemon) {
+        return new WorkStealingExecutor(parallelism, namePrefix, daemon);
+    }
+
+    /**
+     * Whether the running JVM supports virtual threads (Java 21 and later).
+     *
+     * @return true when {@link #newVirtualThreadPerTaskExecutor(String)} can be used
+     */
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_FACTORY != null
+                && NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     * Virtual threads are cheap to create and to block, so tens of thousands
+     * of blocking tasks can be executed at once; the number of concurrent
+     * tasks is still limited by a {@link QueuedTaskRunner} in front of the
+     * runner. The executor is looked up reflectively, so the framework still
+     * runs on JVMs without virtual threads.
+     *
+     * @param namePrefix the prefix for the thread names
+     * @return the executor
+     * @throws UnsupportedOperationException when the JVM doesn't support virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(final String namePrefix) {
+        if (!isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix + "-", 1L);
+            final ThreadFactory threadFactory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+        } catch (final IllegalAccessException e) {
+            throw new UnsupportedOperationException("Virtual threads are not accessible: " + e.getMessage());
+        } catch (final InvocationTargetException e) {
+            throw new UnsupportedOperationException("Virtual threads could not be created: " + e.getCause());
+        }
+    }
+
+    /**
+     * Package-Private executor that runs every task on the thread submitting
+     * it, used by a {@link QueuedTaskRunner} whose queue is full to run a
+     * task on the caller's thread.
+     *
+     * @return the executor
+     */
+    static ExecutorService newCallerThreadExecutor() {
+        return new CallerThreadExecutor();
+    }
+
+    private static Method findMethod(final String className, final String methodName, final Class<?>... parameterTypes) {
+        try {
+            return Class.forName(className).getMethod(methodName, parameterTypes);
+        } catch (final ClassNotFoundException e) {
+            return null;
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs tasks right away on the calling thread, so a task is complete when
+     * {@link #execute} returns.
+     */
+    private static final class CallerThreadExecutor extends AbstractExecutorService {
+
+        private volatile boolean shutdown;
+
+        @Override
+        public void execute(final Runnable runnable) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            runnable.run();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+            return shutdown;
+        }
+    }
+
+    /**
+     * A {@link ThreadPoolExecutor} that counts the tasks submitted but not yet
+     * completed, so the {@link GrowingQueue} can tell whether a thread is idle.
+     */
+    private static final class GrowingThreadPool extends ThreadPoolExecutor {
+
+        private final AtomicInteger submittedCount = new AtomicInteger();
+
+        GrowingThreadPool(final int corePoolSize, final int maximumPoolSize, final long keepAliveTime,
+                          final TimeUnit unit, final BlockingQueue<Runnable> queue, final ThreadFactory threadFactory,
+                          final RejectedExecutionHandler handler) {
+            super(corePoolSize, maximumPoolSize, keepAliveTime, unit, queue, threadFactory, handler);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            submittedCount.incrementAndGet();
+            boolean submitted = false;
+            try {
+                super.execute(command);
+                submitted = true;
+            } finally {
+                if (!submitted) {
+                    submittedCount.decrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        protected void afterExecute(final Runnable runnable, final Throwable throwable) {
+            submittedCount.decrementAndGet();
+        }
+
+        int getSubmittedCount() {
+            return submittedCount.get();
+        }
+    }
+
+    /**
+     * A {@link ThreadPoolExecutor} only queues tasks when it can't hand them
+     * to a new thread. This queue takes a task when there are at least as
+     * many threads as submitted tasks, so an idle thread picks it up, and
+     * otherwise refuses it as long as the pool may grow; the pool prefers new
+     * threads up to it's maximum size over queueing behind busy ones. The
+     * refused tasks are then enqueued by the rejection handler.
+     */
+    private static final class GrowingQueue extends LinkedBlockingQueue<Runnable> {
+
+        private static final long serialVersionUID = 2712372962524457816L;
+
+        private transient volatile GrowingThreadPool executor;
+
+        void setExecutor(final GrowingThreadPool executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public boolean offer(final Runnable runnable) {
+            final GrowingThreadPool pool = executor;
+            if (pool != null && pool.getSubmittedCount() > pool.getPoolSize()
+                    && pool.getPoolSize() < pool.getMaximumPoolSize()) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+
+        boolean enqueue(final Runnable runnable) {
+            return super.offer(runnable);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle of a single {@link AbstractTask}. It is completed by the
+ * {@link TaskRunner} after the {@link TaskEventListener} has been notified, so
+ * threads waiting for a task are only woken up by the completion of that
+ * task.
+ * <p>
+ * It is not a {@link java.util.concurrent.Future}: a canceled or failed task
+ * has a {@link TaskResult} like a successful one, {@link #get()} returns it
+ * instead of throwing. Cancellation has to be requested through
+ * {@link TaskRunner#cancel}, this handle only reflects it's outcome.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public final class TaskFuture {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TaskFuture.class);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile TaskResult result;
+    private List<Runnable> callbacks = new ArrayList<Runnable>(1);
+
+    /**
+     * Package-Private constructor, every task creates it's own handle.
+     */
+    TaskFuture() {
+        super();
+    }
+
+    /**
+     * Package-Private method called by the {@link TaskRunner} when the task
+     * has been completed. Only the first call has an effect.
+     *
+     * @param taskResult the result of the task
+     * @return true when this call completed the handle
+     */
+    boolean complete(final TaskResult taskResult) {
+        final List<Runnable> toRun;
+        synchronized (this) {
+            if (callbacks == null) {
+                return false;
+            }
+            result = taskResult;
+            toRun = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (final Runnable callback : toRun) {
+            runCallback(callback);
+        }
+        return true;
+    }
+
+    /**
+     * Register a callback that is run once the task has completed. The
+     * callback is run by the completing thread, or immediately by the calling
+     * thread when the task is already complete.
+     *
+     * @param callback the callback to run
+     */
+    public void addCallback(final Runnable callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        runCallback(callback);
+    }
+
+    /**
+     * Package-Private method to find out whether callbacks wait for the task.
+     *
+     * @return true when callbacks have been registered and the task hasn't completed
+     */
+    synchronized boolean hasCallbacks() {
+        return callbacks != null && !callbacks.isEmpty();
+    }
+
+    /**
+     * Package-Private method to read the result without waiting.
+     *
+     * @return the result, null while the task hasn't completed
+     */
+    TaskResult getCompletedResult() {
+        return result;
+    }
+
+    /**
+     * Package-Private method to wait for the task without unwrapping the
+     * result.
+     *
+     * @throws InterruptedException when the current thread got interrupted while waiting
+     */
+    void await() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * Whether the task has completed with a {@link TaskResult#CANCEL} result.
+     *
+     * @return true when the task has been canceled
+     */
+    public boolean isCanceled() {
+        final TaskResult taskResult = result;
+        return taskResult != null && taskResult.getStatus() == TaskResult.CANCEL;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits until the task has completed.
+     *
+     * @return the result of the task, whatever it's status; null when the task returned none
+     * @throws InterruptedException when the current thread got interrupted while waiting
+     */
+    public TaskResult get() throws InterruptedException {
+        done.await();
+        return result;
+    }
+
+    /**
+     * Waits at most the given time until the task has completed.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return the result of the task, whatever it's status; null when the task returned none
+     * @throws InterruptedException when the current thread got interrupted while waiting
+     * @throws TimeoutException     when the task hasn't completed in time
+     */
+    public TaskResult get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Task did not complete within " + timeout + " " + unit);
+        }
+        return result;
+    }
+
+    private void runCallback(final Runnable callback) {
+        try {
+            callback.run();
+        } catch (final RuntimeException e) {
+            LOG.error("completion callback failed", e);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the tasks of a {@link QueuedTaskRunner}, so the
+ * tasks that were queued or running when the JVM stopped are run again after
+ * a restart, see {@link QueuedTaskRunner#setJournal(TaskJournal)}.
+ * <p>
+ * The runner appends a record when a task is queued, dispatched and when it
+ * has completed; the queued-record holds the task as written by a
+ * {@link TaskSerializer}. Records are appended to memory-mapped segment files
+ * of a fixed size in the journal directory, a new segment is started when the
+ * current one is full. A segment is deleted once all tasks queued in it and
+ * in older segments have completed and the record that completed or
+ * requeued the last of them has been forced to disk.
+ * <p>
+ * Forcing the segment to disk is by far the most expensive part, so it is
+ * done by group commit: a thread that needs it's records on disk forces all
+ * records written so far, threads that wrote while it was forcing find their
+ * records already on disk or force them together with the next one. With
+ * {@link SyncMode#PER_TASK} every queued and completed task is forced on it's
+ * own; with {@link SyncMode#BATCH} the tasks passed to one {@code execute}
+ * or {@code executeAll} are forced at once and completions are only written,
+ * so after a crash a task that completed just before may run again.
+ * <p>
+ * Every record carries a checksum, recovery stops reading a segment at the
+ * first damaged record, e.g. one that was only partly written when the JVM
+ * crashed. A task that had been dispatched but didn't complete is run again,
+ * tasks have to tolerate that. Scheduled and periodic tasks are not
+ * journaled.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskJournal<T extends AbstractTask> {
+
+    /**
+     * When the records of the journal are forced to disk.
+     */
+    public enum SyncMode {
+        /**
+         * Every queued and every completed task is forced before the runner
+         * goes on.
+         */
+        PER_TASK,
+        /**
+         * The tasks queued together are forced at once, completions are
+         * forced with the next queued tasks.
+         */
+        BATCH
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(TaskJournal.class);
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // length of the data, type, id of the task and checksum
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4;
+    private static final byte QUEUED = 1;
+    private static final byte STARTED = 2;
+    private static final byte COMPLETED = 3;
+    private static final byte[] NO_DATA = new byte[0];
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final TaskSerializer<T> serializer;
+    private final SyncMode syncMode;
+    private final int segmentSize;
+    private final Lock writeLock = new ReentrantLock();
+    private final Lock syncLock = new ReentrantLock();
+    // guarded by the write-lock
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<Long, Segment> segmentsByTask = new HashMap<Long, Segment>();
+    private Segment current;
+    private boolean recovered;
+    private long nextId = 1;
+    private long writtenRecords;
+    // the last record that let a segment be released, it has to be on disk before the segment is deleted
+    private long releasingRecord;
+    // guarded by the sync-lock
+    private volatile long syncedRecords;
+
+    /**
+     * Constructor for a journal that forces batches of tasks and uses
+     * segments of 16 megabytes.
+     *
+     * @param directory  the directory of the segment files, created when missing
+     * @param serializer writes and reads the tasks
+     */
+    public TaskJournal(final File directory, final TaskSerializer<T> serializer) {
+        this(directory, serializer, SyncMode.BATCH, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Default Constructor.
+     *
+     * @param directory   the directory of the segment files, created when missing
+     * @param serializer  writes and reads the tasks
+     * @param syncMode    when records are forced to disk
+     * @param segmentSize the size of a segment file in bytes, a serialized task has to fit into it
+     */
+    public TaskJournal(final File directory, final TaskSerializer<T> serializer, final SyncMode syncMode,
+                       final int segmentSize) {
+        if (directory == null || serializer == null || syncMode == null || segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("invalid journal: directory=" + directory + ", serializer="
+                    + serializer + ", syncMode=" + syncMode + ", segmentSize=" + segmentSize);
+        }
+        this.directory = directory;
+        this.serializer = serializer;
+        this.syncMode = syncMode;
+        this.segmentSize = segmentSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public SyncMode getSyncMode() {
+        return syncMode;
+    }
+
+    /**
+     * Reads the segments in the directory and starts a new segment. Called
+     * by the {@link QueuedTaskRunner} the journal is set on.
+     *
+     * @return new instances of the tasks that had not completed, in the order they were queued
+     * @throws TaskException when the directory can't be read or a task can't be restored
+     */
+    List<T> recover() throws TaskException {
+        writeLock.lock();
+        try {
+            if (recovered) {
+                throw new IllegalStateException("the journal '" + directory + "' has already been opened");
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new TaskException("could not create the journal directory '" + directory + "'");
+            }
+            final Map<Long, byte[]> queuedTasks = new LinkedHashMap<Long, byte[]>();
+            final Set<Long> startedTasks = new HashSet<Long>();
+            long lastIndex = 0;
+            for (final File file : listSegmentFiles()) {
+                final long index = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length(),
+                        file.getName().length() - SEGMENT_SUFFIX.length()));
+                final Segment segment = new Segment(index, file, null);
+                segments.put(index, segment);
+                read(segment, queuedTasks, startedTasks);
+                lastIndex = index;
+            }
+            current = createSegment(lastIndex + 1);
+            recovered = true;
+            final List<T> tasks = new ArrayList<T>(queuedTasks.size());
+            int interruptedTasks = 0;
+            for (final Map.Entry<Long, byte[]> entry : queuedTasks.entrySet()) {
+                final T task = serializer.deserialize(entry.getValue());
+                task.setJournalId(entry.getKey());
+                tasks.add(task);
+                if (startedTasks.contains(entry.getKey())) {
+                    interruptedTasks++;
+                }
+            }
+            releaseSegments();
+            if (!tasks.isEmpty()) {
+                LOG.info("recovered {} tasks from journal '{}', {} of them had been dispatched",
+                        new Object[]{tasks.size(), directory, interruptedTasks});
+            }
+            return tasks;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Appends the queued-records of tasks and forces them to disk.
+     *
+     * @param tasks the tasks about to be queued
+     * @throws TaskException when a task can't be serialized or the journal can't be written
+     */
+    void appendQueued(final Collection<T> tasks) throws TaskException {
+        // serialized first, so a task that can't be written doesn't leave half a batch
+        final byte[][] data = new byte[tasks.size()][];
+        int i = 0;
+        for (final T task : tasks) {
+            data[i++] = serializer.serialize(task);
+        }
+        if (syncMode == SyncMode.PER_TASK) {
+            i = 0;
+            for (final T task : tasks) {
+                sync(write(QUEUED, task, data[i++]));
+            }
+            return;
+        }
+        long record = 0;
+        writeLock.lock();
+        try {
+            i = 0;
+            for (final T task : tasks) {
+                record = write(QUEUED, task, data[i++]);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        sync(record);
+    }
+
+    /**
+     * Appends the record of a dispatched task, it is never forced on it's own.
+     *
+     * @param task the dispatched task
+     * @throws TaskException when the journal can't be written
+     */
+    void appendStarted(final T task) throws TaskException {
+        if (task.getJournalId() != 0) {
+            write(STARTED, task, NO_DATA);
+        }
+    }
+
+    /**
+     * Appends the record of a completed task, forced to disk with
+     * {@link SyncMode#PER_TASK}.
+     *
+     * @param task the completed task
+     * @throws TaskException when the journal can't be written
+     */
+    void appendCompleted(final T task) throws TaskException {
+        if (task.getJournalId() == 0) {
+            return;
+        }
+        final long record = write(COMPLETED, task, NO_DATA);
+        if (syncMode == SyncMode.PER_TASK) {
+            sync(record);
+        }
+    }
+
+    /**
+     * Forces the journal to disk and closes it, the segments are kept for
+     * the next start.
+     */
+    public void close() {
+        writeLock.lock();
+        try {
+            if (current == null) {
+                return;
+            }
+            current.buffer.force();
+            syncedRecords = writtenRecords;
+            releaseSegments();
+            current = null;
+            segments.clear();
+            segmentsByTask.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The number of tasks that have been queued and haven't completed.
+     *
+     * @return the number of tasks
+     */
+    public int getNumberOfTasks() {
+        writeLock.lock();
+        try {
+            return segmentsByTask.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    int getNumberOfSegments() {
+        writeLock.lock();
+        try {
+            return segments.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, starting a new one when it
+     * is full.
+     *
+     * @return the number of the record, to wait for it to be forced
+     */
+    private long write(final byte type, final T task, final byte[] data) throws TaskException {
+        if (HEADER_SIZE + data.length > segmentSize) {
+            throw new TaskException("Task '" + task + "' doesn't fit into a segment of " + segmentSize + " bytes");
+        }
+        writeLock.lock();
+        try {
+            if (current == null) {
+                throw new TaskException("the journal '" + directory + "' is not open");
+            }
+            long id = task.getJournalId();
+            if (id == 0) {
+                id = nextId++;
+                task.setJournalId(id);
+            }
+            if (current.buffer.remaining() < HEADER_SIZE + data.length) {
+                // records of older segments are on disk, syncing only has to force the current one
+                current.buffer.force();
+                current = createSegment(current.index + 1);
+            }
+            current.buffer.putInt(data.length).put(type).putLong(id).putInt(checksum(type, id, data)).put(data);
+            final long record = ++writtenRecords;
+            if (type == QUEUED) {
+                moveTask(id, current, record);
+            } else if (type == COMPLETED) {
+                removeTask(id, record);
+            }
+            return record;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the records up to the given one to disk, unless another thread
+     * already did.
+     *
+     * @param record the number of the record
+     */
+    private void sync(final long record) {
+        if (syncedRecords >= record) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (syncedRecords >= record) {
+                return;
+            }
+            final long lastRecord;
+            final Segment segment;
+            writeLock.lock();
+            try {
+                lastRecord = writtenRecords;
+                segment = current;
+            } finally {
+                writeLock.unlock();
+            }
+            if (segment != null) {
+                segment.buffer.force();
+            }
+            syncedRecords = lastRecord;
+            writeLock.lock();
+            try {
+                releaseSegments();
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void read(final Segment segment, final Map<Long, byte[]> queuedTasks, final Set<Long> startedTasks)
+            throws TaskException {
+        final MappedByteBuffer buffer = map(segment.file, FileChannel.MapMode.READ_ONLY, segment.file.length());
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int length = buffer.getInt();
+            final byte type = buffer.get();
+            final long id = buffer.getLong();
+            final int checksum = buffer.getInt();
+            if (type == 0) {
+                // the unwritten rest of the segment
+                break;
+            }
+            if (type > COMPLETED || id <= 0 || length < 0 || length > buffer.remaining()) {
+                LOG.warn("damaged record in journal segment '{}' at {}, ignoring the rest of it",
+                        segment.file, buffer.position() - HEADER_SIZE);
+                break;
+            }
+            final byte[] data = new byte[length];
+            buffer.get(data);
+            if (checksum != checksum(type, id, data)) {
+                LOG.warn("damaged record in journal segment '{}' at {}, ignoring the rest of it",
+                        segment.file, buffer.position() - HEADER_SIZE - length);
+                break;
+            }
+            nextId = Math.max(nextId, id + 1);
+            if (type == QUEUED) {
+                queuedTasks.put(id, data);
+                moveTask(id, segment, 0);
+            } else if (type == STARTED) {
+                startedTasks.add(id);
+            } else {
+                queuedTasks.remove(id);
+                startedTasks.remove(id);
+                removeTask(id, 0);
+            }
+        }
+    }
+
+    /**
+     * Keeps a segment while a task queued in it hasn't completed. A task
+     * queued again, e.g. after recovery, belongs to the newer segment.
+     *
+     * @param record the record that queued the task, 0 for a record read by recovery
+     */
+    private void moveTask(final Long id, final Segment segment, final long record) {
+        final Segment previous = segmentsByTask.put(id, segment);
+        if (previous != segment) {
+            segment.numberOfTasks++;
+            if (previous != null) {
+                previous.numberOfTasks--;
+                releasingRecord = Math.max(releasingRecord, record);
+            }
+        }
+    }
+
+    /**
+     * @param record the record that completed the task, 0 for a record read by recovery
+     */
+    private void removeTask(final Long id, final long record) {
+        final Segment segment = segmentsByTask.remove(id);
+        if (segment != null) {
+            segment.numberOfTasks--;
+            releasingRecord = Math.max(releasingRecord, record);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments as long as all their tasks have completed.
+     * A newer segment is kept while an older one is, so recovery always sees
+     * the completion of a task together with the task. Nothing is deleted
+     * before the records that completed or requeued the tasks of a segment
+     * are on disk, otherwise a crash in between would lose the tasks; so it
+     * is called after a sync. Must be called while holding the write-lock.
+     */
+    private void releaseSegments() {
+        if (syncedRecords < releasingRecord) {
+            return;
+        }
+        while (current != null && !segments.isEmpty()) {
+            final Segment oldest = segments.firstEntry().getValue();
+            if (oldest == current || oldest.numberOfTasks > 0) {
+                return;
+            }
+            segments.remove(oldest.index);
+            if (!oldest.file.delete()) {
+                LOG.warn("could not delete journal segment '{}'", oldest.file);
+            }
+        }
+    }
+
+    private Segment createSegment(final long index) throws TaskException {
+        final File file = new File(directory, SEGMENT_PREFIX + String.format("%019d", index) + SEGMENT_SUFFIX);
+        final Segment segment = new Segment(index, file, map(file, FileChannel.MapMode.READ_WRITE, segmentSize));
+        segments.put(index, segment);
+        return segment;
+    }
+
+    private File[] listSegmentFiles() throws TaskException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new TaskException("could not list the journal directory '" + directory + "'");
+        }
+        // the index is zero-padded, so the names sort like the indexes
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Maps a file, the mapping stays valid after the file has been closed.
+     */
+    private static MappedByteBuffer map(final File file, final FileChannel.MapMode mode, final long size)
+            throws TaskException {
+        try {
+            final RandomAccessFile randomAccessFile =
+                    new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+            try {
+                return randomAccessFile.getChannel().map(mode, 0, size);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (final IOException e) {
+            throw new TaskException("could not map journal segment '" + file + "'", e);
+        }
+    }
+
+    private static int checksum(final byte type, final long id, final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (id >>> shift));
+        }
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A segment file, only the current one is mapped for writing.
+     */
+    private static final class Segment {
+        private final long index;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int numberOfTasks;
+
+        Segment(final long index, final File file, final MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
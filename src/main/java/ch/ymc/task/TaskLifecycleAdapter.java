@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+/**
+ * A {@link TaskLifecycleListener} with empty callbacks, subclasses override
+ * the ones they are interested in.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public abstract class TaskLifecycleAdapter<T extends AbstractTask> implements TaskLifecycleListener<T> {
+
+    @Override
+    public void taskQueued(final T task) {
+    }
+
+    @Override
+    public void taskDispatched(final T task) {
+    }
+
+    @Override
+    public void taskStarted(final T task) {
+    }
+
+    @Override
+    public void taskCancelRequested(final T task) {
+    }
+
+    @Override
+    public void taskComplete(final T task, final TaskResult result) {
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+/**
+ * A {@link TaskEventListener} that is also notified about the steps before a
+ * task completes, for instance to find out where tasks spend their time.
+ * <p>
+ * Runners only create these events when a lifecycle listener is registered,
+ * so plain {@link TaskEventListener}s don't pay for them. Extend
+ * {@link TaskLifecycleAdapter} to implement only some of the callbacks.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public interface TaskLifecycleListener<T extends AbstractTask> extends TaskEventListener<T> {
+
+    /**
+     * Called when a runner has accepted a task, before it may start.
+     *
+     * @param task the accepted task
+     */
+    void taskQueued(T task);
+
+    /**
+     * Called when a {@link QueuedTaskRunner} hands a queued task to it's
+     * inner runner.
+     *
+     * @param task the dispatched task
+     */
+    void taskDispatched(T task);
+
+    /**
+     * Called by the thread running the task, right before the run-method.
+     *
+     * @param task the started task
+     */
+    void taskStarted(T task);
+
+    /**
+     * Called when a task is asked to cancel, before it has completed.
+     *
+     * @param task the task to cancel
+     */
+    void taskCancelRequested(T task);
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the tasks of one or more
+ * {@link TaskRunner}s, set with {@code setMetrics} on the runner.
+ * <p>
+ * Durations are taken from the timestamps the runners put on every task
+ * ({@link AbstractTask#getQueuedTime()}, {@link AbstractTask#getStartTime()}
+ * and {@link AbstractTask#getCompletionTime()}) when the task completes:
+ * <ul>
+ * <li>queue wait - from being queued until the start of the run-method</li>
+ * <li>run time - the run-method, also per {@link TaskResult} status</li>
+ * <li>end-to-end - from being queued until completion</li>
+ * </ul>
+ * A task canceled before it started only counts for end-to-end. Recording
+ * is lock-free and doesn't allocate, the histograms have a fixed size.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskMetrics {
+
+    private final AtomicLong queuedTasks = new AtomicLong();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLongArray completedTasksByStatus = new AtomicLongArray(TaskResult.FATAL + 1);
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final LatencyHistogram[] runTimeByStatus = new LatencyHistogram[TaskResult.FATAL + 1];
+
+    /**
+     * Default Constructor.
+     */
+    public TaskMetrics() {
+        for (int status = TaskResult.SUCCESS; status <= TaskResult.FATAL; status++) {
+            runTimeByStatus[status] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Package-Private method called by a {@link TaskRunner} when it accepts
+     * tasks.
+     *
+     * @param numberOfTasks the number of accepted tasks
+     */
+    void tasksQueued(final int numberOfTasks) {
+        queuedTasks.addAndGet(numberOfTasks);
+    }
+
+    /**
+     * Package-Private method called by a {@link TaskRunner} when a task has
+     * completed, after it's completion time has been set. A task without a
+     * result is only counted as completed, not by status.
+     *
+     * @param task   the completed task
+     * @param result the result of the task, may be null
+     */
+    void taskComplete(final AbstractTask task, final TaskResult result) {
+        completedTasks.incrementAndGet();
+        final byte status = result != null ? result.getStatus() : -1;
+        if (status >= TaskResult.SUCCESS && status <= TaskResult.FATAL) {
+            completedTasksByStatus.incrementAndGet(status);
+        }
+        final long queuedAt = task.getQueuedTime();
+        final long startedAt = task.getStartTime();
+        final long completedAt = task.getCompletionTime();
+        if (startedAt != 0) {
+            final long run = completedAt - startedAt;
+            runTime.record(run);
+            if (status >= TaskResult.SUCCESS && status <= TaskResult.FATAL) {
+                runTimeByStatus[status].record(run);
+            }
+            if (queuedAt != 0) {
+                queueWait.record(startedAt - queuedAt);
+            }
+        }
+        if (queuedAt != 0) {
+            endToEnd.record(completedAt - queuedAt);
+        }
+    }
+
+    public long getQueuedTasks() {
+        return queuedTasks.get();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    /**
+     * The number of tasks that completed with the given status.
+     *
+     * @param status one of the {@link TaskResult} status codes
+     * @return the number of tasks
+     */
+    public long getCompletedTasks(final byte status) {
+        return completedTasksByStatus.get(checkStatus(status));
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * The run time of the tasks that completed with the given status.
+     *
+     * @param status one of the {@link TaskResult} status codes
+     * @return the histogram
+     */
+    public LatencyHistogram getRunTime(final byte status) {
+        return runTimeByStatus[checkStatus(status)];
+    }
+
+    public LatencyHistogram getEndToEnd() {
+        return endToEnd;
+    }
+
+    @Override
+    public String toString() {
+        return "queued=" + getQueuedTasks() + ", completed=" + getCompletedTasks() + ", queueWait=[" + queueWait
+                + "], runTime=[" + runTime + "], endToEnd=[" + endToEnd + "]";
+    }
+
+    private static int checkStatus(final byte status) {
+        if (status < TaskResult.SUCCESS || status > TaskResult.FATAL) {
+            throw new IllegalArgumentException("unknown status: " + status);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Package-Private interface of the queues a {@link QueuedTaskRunner} keeps
+ * it's waiting tasks in. All methods may be called by several threads at once.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+interface TaskQueue<T extends AbstractTask> {
+
+    /**
+     * Adds a task to the queue.
+     *
+     * @param task the task to add
+     * @return false when the task is already queued
+     */
+    boolean add(T task);
+
+    /**
+     * Adds a batch of tasks to the queue. When one of the tasks is already
+     * queued, none of them is added.
+     *
+     * @param tasks the tasks to add
+     * @return false when one of the tasks is already queued
+     */
+    boolean addAll(Collection<T> tasks);
+
+    /**
+     * Removes the first task that may be dispatched.
+     *
+     * @return the task or null when there is none
+     */
+    T poll();
+
+    /**
+     * The queued task that would be polled last, without removing it.
+     *
+     * @return the task or null when the queue is empty
+     */
+    T peekLast();
+
+    /**
+     * Tells the queue that a task returned by {@link #poll()} has completed.
+     *
+     * @param task the completed task
+     */
+    void release(T task);
+
+    /**
+     * Removes a given task from the queue. When several threads remove or poll
+     * the same task, only one of them succeeds.
+     *
+     * @param task the task to remove
+     * @return true when this call removed the task
+     */
+    boolean remove(T task);
+
+    /**
+     * Tests whether a task is queued.
+     *
+     * @param task the task to test
+     * @return true when the task is in the queue
+     */
+    boolean contains(T task);
+
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * Tests whether {@link #poll()} would currently return a task.
+     *
+     * @return true when a queued task may be dispatched
+     */
+    boolean isReady();
+
+    /**
+     * The time until a queued task, that is held back by a rate limit, may be
+     * dispatched.
+     *
+     * @return the nanoseconds until the next task may be dispatched, -1 when no
+     *         task is held back
+     */
+    long getThrottleDelay();
+
+    /**
+     * A weakly consistent copy of the queued tasks.
+     *
+     * @return the queued tasks
+     */
+    List<T> toList();
+}
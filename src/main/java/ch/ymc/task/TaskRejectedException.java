@@ -0,0 +1,29 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+/**
+ * Thrown by a {@link QueuedTaskRunner} with a bounded queue when a task
+ * can't be queued because the queue is full, see
+ * {@link QueuedTaskRunner#setQueueCapacity}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskRejectedException extends TaskException {
+
+    /**
+     * generated serialVersionUID.
+     */
+    private static final long serialVersionUID = 4087311206359522135L;
+
+    /**
+     * Default constructor.
+     *
+     * @param message the error-message
+     */
+    public TaskRejectedException(final String message) {
+        super(message);
+    }
+}
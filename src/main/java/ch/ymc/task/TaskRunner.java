@@ -3,6 +3,8 @@
  */
 package ch.ymc.task;
 
+import java.util.Collection;
+
 /**
  * The {@link TaskRUnner} is used to start or cancel {@link AbstractTask}s. It
  * keeps track of which tasks are running and notifies the
@@ -25,6 +27,21 @@ public interface TaskRunner<T extends AbstractTask> {
      */
     void execute(final T task) throws TaskException, InterruptedException;
 
+    /**
+     * Starts the execution of a batch of {@link AbstractTask}s. The states of
+     * all tasks are validated before any of them is started, so a batch with
+     * an invalid task is refused as a whole. A runner may still refuse a task
+     * for lack of capacity, e.g. with a full thread pool or queue; the tasks
+     * of the batch before it have then been accepted and are not rolled back,
+     * the refused task and those after it are left unstarted.
+     *
+     * @param tasks the tasks to start
+     * @throws TaskException        when one of the tasks has a wrong state or is
+     *                              contained twice
+     * @throws InterruptedException when the current thread got interrupted
+     */
+    void executeAll(final Collection<T> tasks) throws TaskException, InterruptedException;
+
     /**
      * Cancel a running {@link AbstractTask}.
      *
@@ -101,12 +118,28 @@ public interface TaskRunner<T extends AbstractTask> {
     TaskEventListener<T> getTaskEventListener();
 
     /**
-     * Setter for the TaskEventLIstener.
+     * Setter for the TaskEventLIstener, replaces all registered listeners.
      *
      * @param taskEventListener the listener
      */
     void setTaskEventListener(final TaskEventListener<T> taskEventListener);
 
+    /**
+     * Registers a further listener, all listeners are notified in the order
+     * they have been added. A {@link TaskLifecycleListener} is also notified
+     * about the steps before completion.
+     *
+     * @param taskEventListener the listener to add
+     */
+    void addTaskEventListener(final TaskEventListener<T> taskEventListener);
+
+    /**
+     * Removes a listener.
+     *
+     * @param taskEventListener the listener to remove
+     */
+    void removeTaskEventListener(final TaskEventListener<T> taskEventListener);
+
     /**
      * Disposes this task runenr
      */
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+/**
+ * Turns tasks into bytes and back, so a {@link TaskJournal} can restore the
+ * tasks that were queued when the JVM stopped.
+ * <p>
+ * Only the data the task needs to run has to be written; the state, results
+ * and timestamps of the task are not restored.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public interface TaskSerializer<T extends AbstractTask> {
+
+    /**
+     * Writes a task.
+     *
+     * @param task the task to write
+     * @return the bytes of the task
+     * @throws TaskException when the task can't be written
+     */
+    byte[] serialize(T task) throws TaskException;
+
+    /**
+     * Creates a new task from the bytes written by {@link #serialize}.
+     *
+     * @param data the bytes of the task
+     * @return a new task in {@link TaskState#INITIALIZED} state
+     * @throws TaskException when the bytes can't be read
+     */
+    T deserialize(byte[] data) throws TaskException;
+}
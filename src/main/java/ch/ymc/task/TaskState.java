@@ -5,6 +5,10 @@ package ch.ymc.task;
 
 /**
  * The enumeration for the current execution-state of a {@link AbstractTask}.
+ * A task moves from {@link #INITIALIZED} to {@link #RUNNING}, optionally to
+ * {@link #CANCELING} and finally to {@link #COMPLETE}. Each transition is an
+ * atomic compare-and-set, so only one thread wins when starting, cancelling
+ * and completing race.
  *
  * @author nkuebler, YMC AG
  * @since 2.0.0
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ThreadFactory} for the threads executing tasks. Threads are named
+ * with a common prefix and a sequence number, which makes them easy to spot
+ * in thread dumps.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskThreadFactory implements ThreadFactory {
+
+    private final String namePrefix;
+    private final boolean daemon;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * Constructor for non-daemon threads.
+     *
+     * @param namePrefix the prefix for the thread names
+     */
+    public TaskThreadFactory(final String namePrefix) {
+        this(namePrefix, false);
+    }
+
+    /**
+     * Default constructor.
+     *
+     * @param namePrefix the prefix for the thread names
+     * @param daemon     whether the threads are daemon threads, daemon threads
+     *                   don't prevent the JVM from exiting
+     */
+    public TaskThreadFactory(final String namePrefix, final boolean daemon) {
+        this.namePrefix = namePrefix;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, namePrefix + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(daemon);
+        if (thread.getPriority() != Thread.NORM_PRIORITY) {
+            thread.setPriority(Thread.NORM_PRIORITY);
+        }
+        return thread;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public boolean isDaemon() {
+        return daemon;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Package-Private executor with a fixed number of workers, each having it's
+ * own deque of tasks.
+ * <p>
+ * Tasks submitted by a worker are pushed to the front of it's own deque and
+ * taken from there again, so related tasks run on the same thread. Tasks
+ * submitted by other threads are distributed round-robin to the back of the
+ * deques. A worker without tasks steals from the back of the other deques; when
+ * there is nothing to steal it parks until a task is submitted. A worker
+ * waiting for a task can {@link #runPendingTask() help} with other tasks
+ * instead of blocking.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+final class WorkStealingExecutor extends AbstractExecutorService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkStealingExecutor.class);
+
+    private final Worker[] workers;
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final CountDownLatch terminated;
+    private volatile boolean shutdown;
+
+    /**
+     * Default Constructor, starts the workers.
+     *
+     * @param parallelism the number of workers
+     * @param namePrefix  the prefix for the names of the worker-threads
+     * @param daemon      whether the workers are daemon threads
+     */
+    WorkStealingExecutor(final int parallelism, final String namePrefix, final boolean daemon) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        workers = new Worker[parallelism];
+        terminated = new CountDownLatch(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            workers[i] = new Worker(this, i, namePrefix + "-" + (i + 1));
+            workers[i].setDaemon(daemon);
+        }
+        for (final Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Pushes the task to a deque. A shutdown at the same time may let all
+     * workers finish before they see the task, so it is checked again after
+     * the task has been added; the task is rejected when it can still be
+     * taken back, otherwise a worker or {@link #shutdownNow()} has it.
+     */
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("executor has been shut down");
+        }
+        final Worker current = currentWorker();
+        final LinkedBlockingDeque<Runnable> deque;
+        if (current != null) {
+            deque = current.deque;
+            deque.addFirst(command);
+        } else {
+            deque = workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length].deque;
+            deque.addLast(command);
+        }
+        if (shutdown && deque.removeFirstOccurrence(command)) {
+            throw new RejectedExecutionException("executor has been shut down");
+        }
+        signalWork();
+    }
+
+    /**
+     * Package-Private method that runs one pending task in the calling worker,
+     * used to help while waiting for another task.
+     *
+     * @return false when the calling thread isn't a worker of this executor or
+     *         there was no task to run
+     */
+    boolean runPendingTask() {
+        final Worker current = currentWorker();
+        if (current == null) {
+            return false;
+        }
+        final Runnable task = findTask(current);
+        if (task == null) {
+            return false;
+        }
+        runTask(task);
+        return true;
+    }
+
+    /**
+     * Tests whether the calling thread is a worker of this executor.
+     *
+     * @return true when called by a worker
+     */
+    boolean isWorkerThread() {
+        return currentWorker() != null;
+    }
+
+    int getParallelism() {
+        return workers.length;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for (final Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        for (final Worker worker : workers) {
+            worker.deque.drainTo(pending);
+            worker.interrupt();
+        }
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    private Worker currentWorker() {
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker) thread).executor == this) {
+            return (Worker) thread;
+        }
+        return null;
+    }
+
+    /**
+     * Wakes up a parked worker, if there is one.
+     */
+    private void signalWork() {
+        final Worker idle = idleWorkers.poll();
+        if (idle != null) {
+            idle.idle = false;
+            LockSupport.unpark(idle);
+        }
+    }
+
+    private Runnable findTask(final Worker worker) {
+        final Runnable own = worker.deque.pollFirst();
+        if (own != null) {
+            return own;
+        }
+        for (int i = 1; i < workers.length; i++) {
+            final Runnable stolen = workers[(worker.index + i) % workers.length].deque.pollLast();
+            if (stolen != null) {
+                return stolen;
+            }
+        }
+        return null;
+    }
+
+    private void runTask(final Runnable task) {
+        try {
+            task.run();
+        } catch (final RuntimeException e) {
+            LOG.error("task failed", e);
+        }
+    }
+
+    private void work(final Worker worker) {
+        try {
+            while (true) {
+                final Runnable task = findTask(worker);
+                if (task != null) {
+                    if (worker.idle && idleWorkers.remove(worker)) {
+                        worker.idle = false;
+                    }
+                    runTask(task);
+                } else if (shutdown) {
+                    // a task added before the shutdown may have been missed by the last look
+                    final Runnable lastTask = findTask(worker);
+                    if (lastTask == null) {
+                        return;
+                    }
+                    runTask(lastTask);
+                } else if (!worker.idle) {
+                    // look once more after registering, a task submitted in
+                    // between would not wake this worker
+                    worker.idle = true;
+                    idleWorkers.add(worker);
+                } else {
+                    LockSupport.park(this);
+                    Thread.interrupted();
+                }
+            }
+        } finally {
+            idleWorkers.remove(worker);
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * A worker-thread with it's deque of tasks.
+     */
+    private static final class Worker extends Thread {
+        private final WorkStealingExecutor executor;
+        private final int index;
+        private final LinkedBlockingDeque<Runnable> deque = new LinkedBlockingDeque<Runnable>();
+        private volatile boolean idle;
+
+        Worker(final WorkStealingExecutor executor, final int index, final String name) {
+            super(name);
+            this.executor = executor;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            executor.work(this);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link ConcurrentTaskRunner} for many short tasks. The tasks run on a
+ * fixed number of workers that each have their own deque and steal from each
+ * other when they run out of work, see
+ * {@link TaskExecutors#newWorkStealingPool}. Submission is asynchronous.
+ * <p>
+ * A task that is run by this runner may execute and join further tasks: a
+ * worker joining a task runs other pending tasks until the joined one has
+ * completed, so the workers don't all end up blocked.
+ *
+ * @param <T> The concrete {@link AbstractTask}-Type
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class WorkStealingTaskRunner<T extends AbstractTask> extends ConcurrentTaskRunner<T> {
+
+    private static final long HELP_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final WorkStealingExecutor executor;
+
+    /**
+     * Constructor with a worker per available processor.
+     */
+    public WorkStealingTaskRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param parallelism the number of workers
+     */
+    public WorkStealingTaskRunner(final int parallelism) {
+        this(parallelism, "task-worker");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param parallelism the number of workers
+     * @param namePrefix  the prefix for the names of the worker-threads
+     */
+    public WorkStealingTaskRunner(final int parallelism, final String namePrefix) {
+        this(new WorkStealingExecutor(parallelism, namePrefix, false));
+    }
+
+    private WorkStealingTaskRunner(final WorkStealingExecutor executor) {
+        super(executor, false, true);
+        this.executor = executor;
+    }
+
+    public int getParallelism() {
+        return executor.getParallelism();
+    }
+
+    /**
+     * Waits for the task like {@link ConcurrentTaskRunner#join(AbstractTask)};
+     * when called by a worker of this runner, the worker runs other pending
+     * tasks meanwhile.
+     */
+    @Override
+    public void join(final T task) throws InterruptedException, TaskException {
+        if (task.getState() != TaskState.INITIALIZED && executor.isWorkerThread()) {
+            final TaskFuture future = task.getFuture();
+            if (!future.isDone()) {
+                final Thread waiter = Thread.currentThread();
+                future.addCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        LockSupport.unpark(waiter);
+                    }
+                });
+                while (!future.isDone()) {
+                    if (!executor.runPendingTask()) {
+                        LockSupport.parkNanos(this, HELP_PARK_NANOS);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                    }
+                }
+            }
+        }
+        super.join(task);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.AdaptiveConcurrencyLimit}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final TaskResult SUCCESS = new TaskResult(TaskResult.SUCCESS);
+    private static final TaskResult ERROR = new TaskResult(TaskResult.ERROR);
+
+    private final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 2, 12);
+
+    @Test
+    public void limitShouldGrowByOneAfterALimitOfSuccessfulTasks() {
+        for (int i = 0; i < 10; i++) {
+            limit.taskComplete(System.nanoTime(), 1000, 10, SUCCESS);
+        }
+        assertEquals(10, limit.getLimit());
+        limit.taskComplete(System.nanoTime(), 1000, 10, SUCCESS);
+        assertEquals(11, limit.getLimit());
+    }
+
+    @Test
+    public void limitShouldNotGrowWhenItIsNotUsed() {
+        for (int i = 0; i < 100; i++) {
+            limit.taskComplete(System.nanoTime(), 1000, 4, SUCCESS);
+        }
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    public void limitShouldNotGrowAboveMaximum() {
+        for (int i = 0; i < 1000; i++) {
+            limit.taskComplete(System.nanoTime(), 1000, 12, SUCCESS);
+        }
+        assertEquals(12, limit.getLimit());
+    }
+
+    @Test
+    public void errorShouldDecreaseTheLimit() {
+        limit.setBackoffRatio(0.5);
+        limit.taskComplete(System.nanoTime(), 1000, 10, ERROR);
+        assertEquals(5, limit.getLimit());
+        limit.taskComplete(System.nanoTime(), 1000, 5, new TaskResult(TaskResult.FATAL));
+        assertEquals(2, limit.getLimit());
+        limit.taskComplete(System.nanoTime(), 1000, 2, ERROR);
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void tasksStartedBeforeTheLastDecreaseShouldNotDecreaseAgain() {
+        limit.setBackoffRatio(0.5);
+        final long startTime = System.nanoTime();
+        limit.taskComplete(startTime, 1000, 10, ERROR);
+        limit.taskComplete(startTime, 1000, 10, ERROR);
+        assertEquals(5, limit.getLimit());
+    }
+
+    @Test
+    public void slowTaskShouldDecreaseTheLimit() {
+        limit.setMaximumRunTime(1, TimeUnit.MILLISECONDS);
+        limit.taskComplete(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(2), 10, SUCCESS);
+        assertEquals(9, limit.getLimit());
+    }
+
+    @Test
+    public void canceledTaskShouldBeIgnored() {
+        limit.taskComplete(System.nanoTime(), 1000, 10, new TaskResult(TaskResult.CANCEL));
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    public void taskWithoutResultShouldBeIgnored() {
+        limit.taskComplete(System.nanoTime(), 1000, 10, null);
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialLimitOutsideTheBoundsShouldBeRejected() {
+        new AdaptiveConcurrencyLimit(20, 1, 10);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.AgingTaskQueue}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class AgingTaskQueueTest {
+
+    private static final Comparator<TestTask> BY_PRIORITY = new Comparator<TestTask>() {
+        @Override
+        public int compare(final TestTask task1, final TestTask task2) {
+            return task2.getPriority() - task1.getPriority();
+        }
+    };
+    private static final long WAIT_TIME = TimeUnit.SECONDS.toNanos(10);
+
+    private final AgingTaskQueue<TestTask> queue = new AgingTaskQueue<TestTask>(BY_PRIORITY, WAIT_TIME);
+
+    @Test
+    public void pollShouldReturnTasksByPriorityUntilTheyAge() {
+        final long now = System.nanoTime();
+        final TestTask low = newTask(1, now - WAIT_TIME / 2);
+        final TestTask high = newTask(2, now);
+        queue.add(low);
+        queue.add(high);
+        assertSame(high, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getNumberOfAgedTasks());
+    }
+
+    @Test
+    public void agedTasksShouldBePolledFirstByPriority() {
+        final long now = System.nanoTime();
+        final TestTask agedLow = newTask(1, now - 2 * WAIT_TIME);
+        final TestTask agedHigh = newTask(2, now - 2 * WAIT_TIME);
+        final TestTask aged = newTask(1, now - WAIT_TIME);
+        final TestTask high = newTask(9, now);
+        queue.add(agedLow);
+        queue.add(agedHigh);
+        queue.add(aged);
+        queue.add(high);
+        assertSame(agedHigh, queue.poll());
+        assertSame(agedLow, queue.poll());
+        assertSame(aged, queue.poll());
+        assertSame(high, queue.poll());
+        assertEquals(3, queue.getNumberOfAgedTasks());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void removedTasksShouldNotAge() {
+        final long now = System.nanoTime();
+        final TestTask aged = newTask(1, now - 2 * WAIT_TIME);
+        final TestTask low = newTask(0, now);
+        final TestTask high = newTask(2, now);
+        queue.addAll(Arrays.asList(aged, low, high));
+        assertFalse(queue.add(aged));
+        assertTrue(queue.remove(aged));
+        assertFalse(queue.contains(aged));
+        assertSame(low, queue.peekLast());
+        assertSame(high, queue.poll());
+        assertSame(low, queue.poll());
+        assertEquals(0, queue.getNumberOfAgedTasks());
+    }
+
+    @Test(timeout = 60000)
+    public void runnerShouldNotStarveLowPriorityTasks() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>(BY_PRIORITY);
+        runner.setMaximumWaitTime(50, TimeUnit.MILLISECONDS);
+        runner.setNumberOfConcurrentTasks(0);
+        final TestTask low = new TestTask(new TaskResult(TaskResult.SUCCESS), 0);
+        runner.execute(low);
+        Thread.sleep(60);
+        final List<TestTask> highTasks = new ArrayList<TestTask>();
+        for (int i = 0; i < 5; i++) {
+            highTasks.add(new TestTask(new TaskResult(TaskResult.SUCCESS), 9));
+        }
+        runner.executeAll(highTasks);
+        assertEquals(50, runner.getMaximumWaitTime(TimeUnit.MILLISECONDS));
+        runner.setNumberOfConcurrentTasks(1);
+        runner.flush();
+        runner.join();
+        for (final TestTask high : highTasks) {
+            assertTrue(low.getStartTime() < high.getStartTime());
+        }
+        runner.dispose();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void agingShouldNotBeCombinedWithPartitioning() {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>(BY_PRIORITY);
+        runner.setMaximumWaitTime(1, TimeUnit.SECONDS);
+        runner.setNumberOfConcurrentTasksPerPartition(1);
+    }
+
+    private static TestTask newTask(final int priority, final long queuedTime) {
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS), priority);
+        task.setQueuedTime(queuedTime);
+        return task;
+    }
+}
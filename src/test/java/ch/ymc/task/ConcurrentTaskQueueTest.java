@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.ConcurrentTaskQueue}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class ConcurrentTaskQueueTest {
+
+    private final ConcurrentTaskQueue<TestTask> queue = new ConcurrentTaskQueue<TestTask>(new Comparator<TestTask>() {
+        @Override
+        public int compare(final TestTask task1, final TestTask task2) {
+            return task2.getPriority() - task1.getPriority();
+        }
+    });
+
+    @Test
+    public void pollShouldReturnTasksByPriority() {
+        final TestTask low = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        final TestTask high = new TestTask(new TaskResult(TaskResult.SUCCESS), 2);
+        queue.add(low);
+        queue.add(high);
+        assertSame(high, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void pollShouldReturnEqualTasksInInsertionOrder() {
+        final TestTask[] tasks = new TestTask[10];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+            queue.add(tasks[i]);
+        }
+        assertEquals(10, queue.size());
+        for (final TestTask task : tasks) {
+            assertSame(task, queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void peekLastShouldReturnTheTaskPolledLast() {
+        assertNull(queue.peekLast());
+        final TestTask low = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        final TestTask lowAddedLater = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        queue.add(low);
+        queue.add(new TestTask(new TaskResult(TaskResult.SUCCESS), 2));
+        queue.add(lowAddedLater);
+        assertSame(lowAddedLater, queue.peekLast());
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void removeShouldOnlySucceedOnce() {
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        queue.add(task);
+        assertTrue(queue.contains(task));
+        assertTrue(queue.remove(task));
+        assertFalse(queue.remove(task));
+        assertFalse(queue.contains(task));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void addShouldRefuseQueuedTask() {
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        assertTrue(queue.add(task));
+        assertFalse(queue.add(task));
+        assertEquals(1, queue.size());
+        assertSame(task, queue.poll());
+        assertFalse(queue.contains(task));
+        assertTrue(queue.add(task));
+    }
+
+    @Test
+    public void addAllShouldAddNothingWhenATaskIsQueued() {
+        final TestTask queued = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        final TestTask other = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        queue.add(queued);
+        assertFalse(queue.addAll(Arrays.asList(other, queued)));
+        assertFalse(queue.contains(other));
+        assertEquals(1, queue.size());
+        assertTrue(queue.addAll(Arrays.asList(other)));
+        assertTrue(queue.contains(other));
+    }
+
+    @Test
+    public void removeShouldKeepOrderOfRemainingTasks() {
+        final TestTask[] tasks = new TestTask[5];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+            queue.add(tasks[i]);
+        }
+        assertTrue(queue.remove(tasks[2]));
+        assertSame(tasks[0], queue.poll());
+        assertSame(tasks[1], queue.poll());
+        assertSame(tasks[3], queue.poll());
+        assertSame(tasks[4], queue.poll());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentAddsShouldNotLoseTasks() throws InterruptedException {
+        final int threads = 16;
+        final int tasksPerThread = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] submitters = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            submitters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < tasksPerThread; j++) {
+                        queue.add(new TestTask(new TaskResult(TaskResult.SUCCESS), j % 7));
+                    }
+                }
+            });
+            submitters[i].start();
+        }
+        start.countDown();
+        for (final Thread submitter : submitters) {
+            submitter.join();
+        }
+        assertEquals(threads * tasksPerThread, queue.size());
+        int previous = Integer.MAX_VALUE;
+        TestTask task;
+        int polled = 0;
+        while ((task = queue.poll()) != null) {
+            assertTrue(task.getPriority() <= previous);
+            previous = task.getPriority();
+            polled++;
+        }
+        assertEquals(threads * tasksPerThread, polled);
+    }
+}
@@ -5,13 +5,26 @@ package ch.ymc.task;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -77,6 +90,106 @@ public class ConcurrentTaskRunnerTest {
         verify(task, times(1)).cancel();
     }
 
+    @Test(timeout = 60000)
+    @SuppressWarnings("unchecked")
+    public void lifecycleListenerShouldSeeEveryStep() throws TaskException, InterruptedException {
+        final TaskLifecycleListener<AbstractTask> lifecycleListener = mock(TaskLifecycleListener.class);
+        taskRunner.addTaskEventListener(lifecycleListener);
+        task = new SleepingTestTask(new TaskResult(TaskResult.SUCCESS));
+        taskRunner.execute(task);
+        taskRunner.cancel(task);
+        taskRunner.join(task);
+        final InOrder inOrder = inOrder(lifecycleListener);
+        inOrder.verify(lifecycleListener).taskQueued(task);
+        inOrder.verify(lifecycleListener).taskStarted(task);
+        inOrder.verify(lifecycleListener).taskCancelRequested(task);
+        inOrder.verify(lifecycleListener).taskComplete(eq(task), any(TaskResult.class));
+        verify(lifecycleListener, never()).taskDispatched(task);
+    }
+
+    @Test(timeout = 60000)
+    public void taskTimeoutShouldCancelTheTask() throws TaskException, InterruptedException {
+        final SleepingTestTask sleepingTask = new SleepingTestTask(new TaskResult(TaskResult.SUCCESS));
+        sleepingTask.setTimeout(20, TimeUnit.MILLISECONDS);
+        taskRunner.execute(sleepingTask);
+        taskRunner.join(sleepingTask);
+        assertTrue(sleepingTask.isCanceled());
+        assertEquals(TaskResult.CANCEL, sleepingTask.getResult().getStatus());
+    }
+
+    @Test(timeout = 60000)
+    public void blockingCancelShouldNotHoldUpOtherTimeouts() throws TaskException, InterruptedException {
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch cancelStarted = new CountDownLatch(1);
+        final CountDownLatch canceled = new CountDownLatch(1);
+        final TestTask blockingTask = new TestTask(new TaskResult(TaskResult.SUCCESS)) {
+            @Override
+            protected TaskResult run() {
+                try {
+                    canceled.await();
+                } catch (final InterruptedException e) {
+                    return new TaskResult(TaskResult.ERROR, e);
+                }
+                return super.run();
+            }
+
+            @Override
+            protected void cancel() {
+                cancelStarted.countDown();
+                try {
+                    released.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.cancel();
+                canceled.countDown();
+            }
+        };
+        blockingTask.setTimeout(10, TimeUnit.MILLISECONDS);
+        taskRunner.execute(blockingTask);
+        cancelStarted.await();
+        final SleepingTestTask sleepingTask = new SleepingTestTask(new TaskResult(TaskResult.SUCCESS));
+        sleepingTask.setTimeout(20, TimeUnit.MILLISECONDS);
+        taskRunner.execute(sleepingTask);
+        taskRunner.join(sleepingTask);
+        assertTrue(sleepingTask.isCanceled());
+        assertEquals(TaskResult.CANCEL, sleepingTask.getResult().getStatus());
+        released.countDown();
+        taskRunner.join(blockingTask);
+        assertTrue(blockingTask.isCanceled());
+        assertEquals(TaskResult.CANCEL, blockingTask.getResult().getStatus());
+    }
+
+    @Test(timeout = 60000)
+    public void defaultTimeoutShouldInterruptBlockedTasks() throws TaskException, InterruptedException {
+        taskRunner.setDefaultTimeout(20, TimeUnit.MILLISECONDS);
+        taskRunner.setInterruptOnTimeout(true);
+        final LockingTestTask blockedTask = new LockingTestTask(new TaskResult(TaskResult.SUCCESS));
+        taskRunner.execute(blockedTask);
+        taskRunner.join(blockedTask);
+        // the interrupt may complete the task before it would be told to cancel
+        assertEquals(TaskState.COMPLETE, blockedTask.getState());
+        assertEquals(TaskResult.ERROR, blockedTask.getResult().getStatus());
+        assertTrue(blockedTask.getResult().getException() instanceof InterruptedException);
+    }
+
+    @Test(timeout = 60000)
+    public void interruptShouldNotLeakToTheNextTaskOfTheThread() throws TaskException, InterruptedException {
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final ConcurrentTaskRunner<AbstractTask> singleThreadRunner = new ConcurrentTaskRunner<AbstractTask>(pool);
+        singleThreadRunner.setDefaultTimeout(10, TimeUnit.MILLISECONDS);
+        singleThreadRunner.setInterruptOnTimeout(true);
+        final LockingTestTask blockedTask = new LockingTestTask(new TaskResult(TaskResult.SUCCESS));
+        singleThreadRunner.execute(blockedTask);
+        singleThreadRunner.join(blockedTask);
+        final SleepingTestTask nextTask = new SleepingTestTask(new TaskResult(TaskResult.SUCCESS));
+        nextTask.setTimeout(60, TimeUnit.SECONDS);
+        singleThreadRunner.execute(nextTask);
+        singleThreadRunner.join(nextTask);
+        assertEquals(TaskResult.SUCCESS, nextTask.getResult().getStatus());
+        pool.shutdown();
+    }
+
     @Test(timeout = 60000)
     public void cancelShouldNotInvokeCancel() throws TaskException, InterruptedException {
         task = new SleepingTestTask(new TaskResult(TaskResult.SUCCESS));
@@ -130,6 +243,92 @@ public class ConcurrentTaskRunnerTest {
         }
     }
 
+    @Test(timeout = 60000)
+    public void asynchronousExecuteShouldNotWaitForStart() throws TaskException, InterruptedException {
+        taskRunner.setAsynchronousSubmission(true);
+        waitingTask.getTestLock().lock();
+        try {
+            taskRunner.execute(waitingTask);
+            assertEquals(TaskState.RUNNING, waitingTask.getState());
+            assertTrue(taskRunner.getRunningTasks().contains(waitingTask));
+            waitingTask.getTestCondition().await();
+            assertNotNull(waitingTask.getThread());
+            waitingTask.getTestCondition().signal();
+        } finally {
+            waitingTask.getTestLock().unlock();
+        }
+        taskRunner.join(waitingTask);
+        assertEquals(TaskState.COMPLETE, waitingTask.getState());
+    }
+
+    @Test(timeout = 60000)
+    public void asynchronousExecuteShouldRunAllTasks() throws TaskException, InterruptedException {
+        taskRunner = new ConcurrentTaskRunner<AbstractTask>(true);
+        taskRunner.setTaskEventListener(taskEventListener);
+        final AbstractTask[] tasks = new AbstractTask[100];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new TestTask(new TaskResult(TaskResult.SUCCESS));
+            taskRunner.execute(tasks[i]);
+        }
+        taskRunner.join(Arrays.asList(tasks));
+        for (final AbstractTask task2 : tasks) {
+            assertEquals(TaskState.COMPLETE, task2.getState());
+        }
+        verify(this.taskEventListener, times(100)).taskComplete(any(AbstractTask.class), eq(new TaskResult(TaskResult.SUCCESS)));
+    }
+
+    @Test(timeout = 60000)
+    public void boundedRunnerShouldRunMoreTasksThanThreads() throws TaskException, InterruptedException {
+        taskRunner = new ConcurrentTaskRunner<AbstractTask>(2, "bounded-test", true, true);
+        final AbstractTask[] tasks = new AbstractTask[20];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new SleepingTestTask(new TaskResult(TaskResult.SUCCESS));
+            taskRunner.execute(tasks[i]);
+        }
+        taskRunner.join(Arrays.asList(tasks));
+        for (final AbstractTask task2 : tasks) {
+            assertEquals(TaskState.COMPLETE, task2.getState());
+            assertTrue(task2.getThread().getName().startsWith("bounded-test-"));
+        }
+        taskRunner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void virtualThreadRunnerShouldRunTasks() throws TaskException, InterruptedException {
+        assumeTrue(TaskExecutors.isVirtualThreadSupported());
+        taskRunner = ConcurrentTaskRunner.withVirtualThreads("virtual-test");
+        final AbstractTask[] tasks = new AbstractTask[1000];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new SleepingTestTask(new TaskResult(TaskResult.SUCCESS));
+            taskRunner.execute(tasks[i]);
+        }
+        taskRunner.join(Arrays.asList(tasks));
+        for (final AbstractTask task2 : tasks) {
+            assertEquals(new TaskResult(TaskResult.SUCCESS), task2.getResult());
+            assertTrue(task2.getThread().getName().startsWith("virtual-test-"));
+        }
+        taskRunner.dispose();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void virtualThreadRunnerShouldNotBeCreatedWithoutSupport() {
+        assumeTrue(!TaskExecutors.isVirtualThreadSupported());
+        ConcurrentTaskRunner.withVirtualThreads("virtual-test");
+    }
+
+    @Test(timeout = 60000)
+    public void disposeShouldNotShutDownSharedThreadPool() throws TaskException, InterruptedException {
+        final ExecutorService threadPool = Executors.newCachedThreadPool();
+        try {
+            taskRunner = new ConcurrentTaskRunner<AbstractTask>(threadPool);
+            taskRunner.execute(task);
+            taskRunner.dispose();
+            assertFalse(threadPool.isShutdown());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
     @Test(timeout = 60000)
     public void taskShouldBeSetToCompleteState() throws TaskException, InterruptedException {
         taskRunner.setTaskEventListener(taskEventListener);
@@ -165,6 +364,24 @@ public class ConcurrentTaskRunnerTest {
         verify(this.taskEventListener, times(1)).taskComplete(eq(task), eq(new TaskResult(TaskResult.FATAL, exception)));
     }
 
+    @Test(timeout = 60000)
+    public void futureShouldBeCompletedAfterEventWasFired() throws TaskException, InterruptedException {
+        final TaskResult result = task.getTestResult();
+        final boolean[] doneDuringEvent = new boolean[1];
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                doneDuringEvent[0] = task.getFuture().isDone();
+                return null;
+            }
+        }).when(taskEventListener).taskComplete(task, result);
+        taskRunner.setTaskEventListener(taskEventListener);
+        taskRunner.execute(task);
+        assertEquals(result, task.getFuture().get());
+        assertFalse(doneDuringEvent[0]);
+        verify(this.taskEventListener, times(1)).taskComplete(task, result);
+    }
+
     @Test(timeout = 60000)
     public void taskShouldBeCanceledWhenCanceled() throws TaskException, InterruptedException {
         taskRunner.setTaskEventListener(taskEventListener);
@@ -229,6 +446,108 @@ public class ConcurrentTaskRunnerTest {
         assertEquals(0, taskRunner.getRunningTasks().size());
     }
 
+    @Test(timeout = 60000)
+    public void metricsShouldRecordCompletedTasks() throws TaskException, InterruptedException {
+        final TaskMetrics metrics = new TaskMetrics();
+        taskRunner.setMetrics(metrics);
+        final TestTask failing = new TestTask(new TaskResult(TaskResult.ERROR));
+        taskRunner.execute(task);
+        taskRunner.execute(failing);
+        taskRunner.join();
+        assertTrue(task.getQueuedTime() != 0);
+        assertTrue(task.getStartTime() - task.getQueuedTime() >= 0);
+        assertTrue(task.getCompletionTime() - task.getStartTime() >= 0);
+        assertEquals(2, metrics.getQueuedTasks());
+        assertEquals(2, metrics.getCompletedTasks());
+        assertEquals(1, metrics.getCompletedTasks(TaskResult.SUCCESS));
+        assertEquals(1, metrics.getCompletedTasks(TaskResult.ERROR));
+        assertEquals(2, metrics.getQueueWait().getCount());
+        assertEquals(2, metrics.getEndToEnd().getCount());
+    }
+
+    @Test(timeout = 60000)
+    public void taskWithoutResultShouldCompleteWithMetrics() throws TaskException, InterruptedException {
+        final TaskMetrics metrics = new TaskMetrics();
+        taskRunner.setMetrics(metrics);
+        taskRunner.setTaskEventListener(taskEventListener);
+        final TestTask resultless = new TestTask(null);
+        taskRunner.execute(resultless);
+        taskRunner.join(resultless);
+        assertEquals(TaskState.COMPLETE, resultless.getState());
+        assertEquals(1, metrics.getCompletedTasks());
+        assertEquals(0, metrics.getCompletedTasks(TaskResult.SUCCESS));
+        verify(taskEventListener).taskComplete(resultless, null);
+    }
+
+    @Test(timeout = 60000)
+    public void executeAllShouldKeepTheTasksSubmittedBeforeARejection() throws TaskException, InterruptedException {
+        final ExecutorService pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1));
+        final ConcurrentTaskRunner<AbstractTask> runner = new ConcurrentTaskRunner<AbstractTask>(pool, true);
+        final CountDownLatch released = new CountDownLatch(1);
+        final List<AbstractTask> tasks = new ArrayList<AbstractTask>();
+        for (int i = 0; i < 3; i++) {
+            tasks.add(new TestTask(new TaskResult(TaskResult.SUCCESS)) {
+                @Override
+                protected TaskResult run() {
+                    try {
+                        released.await();
+                    } catch (final InterruptedException e) {
+                        return new TaskResult(TaskResult.ERROR, e);
+                    }
+                    return super.run();
+                }
+            });
+        }
+        try {
+            runner.executeAll(tasks);
+            fail("the third task should have been rejected");
+        } catch (final RejectedExecutionException e) {
+            // expected
+        }
+        assertTrue(runner.hasStarted(tasks.get(0)));
+        assertTrue(runner.hasStarted(tasks.get(1)));
+        assertEquals(TaskState.INITIALIZED, tasks.get(2).getState());
+        released.countDown();
+        runner.join(tasks.subList(0, 2));
+        assertEquals(TaskResult.SUCCESS, tasks.get(1).getResult().getStatus());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void executeAllShouldRunAllTasks() throws TaskException, InterruptedException {
+        final List<AbstractTask> tasks = new ArrayList<AbstractTask>();
+        for (int i = 0; i < 100; i++) {
+            tasks.add(new TestTask(new TaskResult(TaskResult.SUCCESS)));
+        }
+        taskRunner.executeAll(tasks);
+        for (final AbstractTask task2 : tasks) {
+            assertNotNull(task2.getThread());
+        }
+        taskRunner.join(tasks);
+        for (final AbstractTask task2 : tasks) {
+            assertEquals(TaskState.COMPLETE, task2.getState());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void executeAllShouldNotStartAnyTaskOfAnInvalidBatch() throws InterruptedException {
+        final TestTask first = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        task.setState(TaskState.COMPLETE);
+        try {
+            taskRunner.executeAll(Arrays.<AbstractTask>asList(first, task));
+            fail("TaskException expected");
+        } catch (final TaskException e) {
+            assertEquals(TaskState.INITIALIZED, first.getState());
+            assertEquals(0, taskRunner.getNumberOfExecutingTasks());
+        }
+    }
+
+    @Test(expected = TaskException.class, timeout = 60000)
+    public void executeAllShouldRejectTasksContainedTwice() throws TaskException, InterruptedException {
+        taskRunner.executeAll(Arrays.<AbstractTask>asList(task, task));
+    }
+
     @Test(timeout = 60000)
     public void joinShouldWaitForAllTasks() throws TaskException, InterruptedException {
         final AbstractTask[] tasks = new AbstractTask[100];
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.DelayedTaskQueue}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class DelayedTaskQueueTest {
+
+    private final DelayedTaskQueue<TestTask> queue = new DelayedTaskQueue<TestTask>();
+    private final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS));
+    private final TestTask task2 = new TestTask(new TaskResult(TaskResult.SUCCESS));
+    private final TestTask task3 = new TestTask(new TaskResult(TaskResult.SUCCESS));
+
+    @Test
+    public void dueTasksShouldBePolledInTheOrderTheyAreDue() {
+        queue.add(task1, 300);
+        queue.add(task2, 100);
+        queue.add(task3, 100);
+        assertEquals(-1, new DelayedTaskQueue<TestTask>().getDelay(0));
+        assertEquals(50, queue.getDelay(50));
+        assertEquals(Collections.<TestTask>emptyList(), queue.pollDue(99));
+        assertEquals(Arrays.asList(task2, task3), queue.pollDue(200));
+        assertEquals(1, queue.size());
+        assertEquals(0, queue.getDelay(400));
+        assertEquals(Arrays.asList(task1), queue.pollDue(400));
+        assertEquals(-1, queue.getDelay(400));
+    }
+
+    @Test
+    public void taskShouldOnlyBeScheduledOnce() {
+        assertTrue(queue.add(task1, 100));
+        assertFalse(queue.add(task1, 200));
+        assertTrue(queue.contains(task1));
+        assertTrue(queue.remove(task1));
+        assertFalse(queue.remove(task1));
+        assertFalse(queue.contains(task1));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void dueTimesShouldBeComparedAcrossTheOverflowOfNanoTime() {
+        queue.add(task1, Long.MIN_VALUE + 10);
+        queue.add(task2, Long.MAX_VALUE - 10);
+        assertEquals(Arrays.asList(task2), queue.pollDue(Long.MAX_VALUE));
+    }
+}
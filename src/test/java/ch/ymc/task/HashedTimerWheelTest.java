@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.HashedTimerWheel}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class HashedTimerWheelTest {
+
+    private final HashedTimerWheel timer = new HashedTimerWheel("timer-test", TimeUnit.MILLISECONDS.toNanos(5), 8);
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test(timeout = 60000)
+    public void timeoutShouldNotExpireEarly() throws InterruptedException {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final AtomicLong expiredAt = new AtomicLong();
+        final long delay = TimeUnit.MILLISECONDS.toNanos(100);
+        final long scheduledAt = System.nanoTime();
+        // longer than one round of the wheel
+        final HashedTimerWheel.Timeout timeout = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                expiredAt.set(System.nanoTime());
+                expired.countDown();
+            }
+        }, delay);
+        expired.await();
+        assertTrue(expiredAt.get() - scheduledAt >= delay);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(0, timer.getNumberOfTimeouts());
+    }
+
+    @Test(timeout = 60000)
+    public void canceledTimeoutShouldNotExpire() throws InterruptedException {
+        final AtomicInteger expirations = new AtomicInteger();
+        final HashedTimerWheel.Timeout timeout = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                expirations.incrementAndGet();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCanceled());
+        while (timer.getNumberOfTimeouts() > 0) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        assertEquals(0, expirations.get());
+    }
+
+    @Test(timeout = 60000)
+    public void manyTimeoutsShouldExpireOrBeRemoved() throws InterruptedException {
+        final int numberOfTimeouts = 100000;
+        final CountDownLatch expired = new CountDownLatch(numberOfTimeouts / 2);
+        final Runnable action = new Runnable() {
+            @Override
+            public void run() {
+                expired.countDown();
+            }
+        };
+        for (int i = 0; i < numberOfTimeouts; i++) {
+            final HashedTimerWheel.Timeout timeout = timer.newTimeout(action, TimeUnit.MILLISECONDS.toNanos(i % 50));
+            if (i % 2 == 1) {
+                timeout.cancel();
+            }
+        }
+        expired.await();
+        while (timer.getNumberOfTimeouts() > 0) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void timerShouldWakeUpAfterBeingIdle() throws InterruptedException {
+        final CountDownLatch expired = new CountDownLatch(2);
+        final Runnable action = new Runnable() {
+            @Override
+            public void run() {
+                expired.countDown();
+            }
+        };
+        timer.newTimeout(action, 0);
+        while (expired.getCount() > 1) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        timer.newTimeout(action, TimeUnit.MILLISECONDS.toNanos(10));
+        expired.await();
+    }
+}
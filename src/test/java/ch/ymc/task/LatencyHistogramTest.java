@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.LatencyHistogram}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void bucketsShouldCoverTheirValues() {
+        for (long value = 0; value < 100000; value++) {
+            assertTrue(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(value)) >= value);
+        }
+        assertTrue(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)) == Long.MAX_VALUE);
+    }
+
+    @Test
+    public void percentilesShouldBeWithinTheBucketError() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        final long median = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+        assertTrue("median was " + median, median >= 500 && median <= 500 * 1.125);
+        final long p99 = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+        assertTrue("p99 was " + p99, p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getPercentile(100, TimeUnit.MICROSECONDS));
+        assertEquals(1000, histogram.getMax(TimeUnit.MICROSECONDS));
+        assertEquals(500.5, histogram.getMean(TimeUnit.MICROSECONDS), 0.001);
+    }
+
+    @Test
+    public void emptyHistogramShouldReportZero() {
+        assertEquals(0, histogram.getPercentile(99, TimeUnit.NANOSECONDS));
+        assertEquals(0, histogram.getMean(TimeUnit.NANOSECONDS), 0);
+    }
+
+    @Test
+    public void negativeDurationsShouldBeRecordedAsZero() {
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100, TimeUnit.NANOSECONDS));
+    }
+}
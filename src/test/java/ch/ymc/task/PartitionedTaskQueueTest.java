@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.PartitionedTaskQueue}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class PartitionedTaskQueueTest {
+
+    private final PartitionedTaskQueue<TestTask> queue = new PartitionedTaskQueue<TestTask>(new Comparator<TestTask>() {
+        @Override
+        public int compare(final TestTask task1, final TestTask task2) {
+            return task2.getPriority() - task1.getPriority();
+        }
+    }, 2);
+
+    @Test
+    public void pollShouldSkipPartitionsAtTheirLimit() {
+        final TestTask a1 = task("a", 9);
+        final TestTask a2 = task("a", 8);
+        final TestTask a3 = task("a", 7);
+        final TestTask b1 = task("b", 1);
+        queue.addAll(Arrays.asList(a1, a2, a3, b1));
+        assertSame(a1, queue.poll());
+        assertSame(a2, queue.poll());
+        assertSame(b1, queue.poll());
+        assertNull(queue.poll());
+        assertFalse(queue.isReady());
+        assertEquals(1, queue.size());
+        queue.release(a1);
+        assertTrue(queue.isReady());
+        assertSame(a3, queue.poll());
+    }
+
+    @Test
+    public void tasksWithoutPartitionKeyShouldNotBeLimited() {
+        final TestTask[] tasks = new TestTask[5];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = task(null, 1);
+            queue.add(tasks[i]);
+        }
+        for (final TestTask task : tasks) {
+            assertSame(task, queue.poll());
+        }
+    }
+
+    @Test
+    public void pollShouldReturnEqualTasksInInsertionOrder() {
+        final TestTask a = task("a", 1);
+        final TestTask b = task("b", 1);
+        final TestTask c = task("a", 1);
+        queue.add(a);
+        queue.add(b);
+        queue.add(c);
+        assertSame(a, queue.poll());
+        assertSame(b, queue.poll());
+        assertSame(c, queue.poll());
+    }
+
+    @Test
+    public void removeShouldUpdateTheOrderOfThePartitions() {
+        final TestTask a1 = task("a", 9);
+        final TestTask a2 = task("a", 1);
+        final TestTask b1 = task("b", 5);
+        queue.addAll(Arrays.asList(a1, a2, b1));
+        assertTrue(queue.remove(a1));
+        assertFalse(queue.remove(a1));
+        assertFalse(queue.contains(a1));
+        assertSame(b1, queue.poll());
+        assertSame(a2, queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void addShouldRefuseQueuedTask() {
+        final TestTask a1 = task("a", 1);
+        assertTrue(queue.add(a1));
+        assertFalse(queue.add(a1));
+        assertFalse(queue.addAll(Arrays.asList(task("b", 1), a1)));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void raisingTheLimitShouldMakeBlockedPartitionsReady() {
+        final TestTask a1 = task("a", 3);
+        final TestTask a2 = task("a", 2);
+        final TestTask a3 = task("a", 1);
+        queue.addAll(Arrays.asList(a1, a2, a3));
+        queue.poll();
+        queue.poll();
+        assertFalse(queue.isReady());
+        queue.setNumberOfConcurrentTasksPerPartition(3);
+        assertSame(a3, queue.poll());
+    }
+
+    @Test
+    public void partitionWithoutTokensShouldNotHoldBackOtherPartitions() {
+        queue.setRateLimitPerPartition(1, 1);
+        final TestTask a1 = task("a", 9);
+        final TestTask a2 = task("a", 8);
+        final TestTask b1 = task("b", 1);
+        queue.addAll(Arrays.asList(a1, a2, b1));
+        assertEquals(-1, queue.getThrottleDelay());
+        assertSame(a1, queue.poll());
+        assertSame(b1, queue.poll());
+        assertNull(queue.poll());
+        assertFalse(queue.isReady());
+        assertTrue(queue.getThrottleDelay() > 0);
+        assertTrue(queue.contains(a2));
+        assertTrue(queue.remove(a2));
+    }
+
+    @Test
+    public void peekLastShouldLookAtAllPartitions() {
+        assertNull(queue.peekLast());
+        final TestTask b1 = task("b", 1);
+        queue.addAll(Arrays.asList(task("a", 9), task("a", 3), b1, task("c", 5)));
+        assertSame(b1, queue.peekLast());
+        assertTrue(queue.remove(b1));
+        assertEquals(3, queue.peekLast().getPriority());
+    }
+
+    private static TestTask task(final Object partitionKey, final int priority) {
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS), priority);
+        task.setPartitionKey(partitionKey);
+        return task;
+    }
+}
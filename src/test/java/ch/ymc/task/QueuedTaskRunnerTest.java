@@ -3,16 +3,25 @@
  */
 package ch.ymc.task;
 
-import example.Main;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 
 import static org.junit.Assert.*;
@@ -38,6 +47,8 @@ public class QueuedTaskRunnerTest {
 
     QueuedTaskRunner<TestTask> queuedTaskRunner;
 
+    final List<TestTask> boundedRunnerTasks = new ArrayList<TestTask>();
+
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
@@ -65,8 +76,7 @@ public class QueuedTaskRunnerTest {
 
     @Test
     public void executeShouldEnqueueItems() throws TaskException, InterruptedException {
-        queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        occupyAllPermits(2);
         final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
         queuedTaskRunner.execute(task1);
         verify(this.taskRunner, times(0)).execute(task1);
@@ -75,36 +85,174 @@ public class QueuedTaskRunnerTest {
         assertEquals(3, this.queuedTaskRunner.getNumberOfExecutingTasks());
     }
 
+    @Test(expected = TaskException.class)
+    public void executeShouldRefuseTaskThatIsAlreadyQueued() throws TaskException, InterruptedException {
+        occupyAllPermits(2);
+        final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        queuedTaskRunner.execute(task1);
+        queuedTaskRunner.execute(task1);
+    }
+
     @Test
     public void flushShouldPollJobsInOrder() throws TaskException, InterruptedException {
-        queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        final TestTask[] running = occupyAllPermits(2);
         final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
         final TestTask task2 = new TestTask(new TaskResult(TaskResult.SUCCESS), 2);
         queuedTaskRunner.execute(task1);
         queuedTaskRunner.execute(task2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(1);
-        queuedTaskRunner.flush();
+        queuedTaskRunner.taskComplete(running[0], new TaskResult(TaskResult.SUCCESS));
         verify(this.taskRunner, times(1)).execute(task2);
+        verify(this.taskRunner, times(0)).execute(task1);
     }
 
     @Test
     public void flushShouldPollJobsInOrder2() throws TaskException, InterruptedException {
-        queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        final TestTask[] running = occupyAllPermits(2);
         final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 2);
         final TestTask task2 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
         queuedTaskRunner.execute(task1);
         queuedTaskRunner.execute(task2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(1);
-        queuedTaskRunner.flush();
+        queuedTaskRunner.taskComplete(running[0], new TaskResult(TaskResult.SUCCESS));
         verify(this.taskRunner, times(1)).execute(task1);
+        verify(this.taskRunner, times(0)).execute(task2);
     }
 
     @Test
-    public void isExecutingShouldBeTrueForEnqueuedItems() throws TaskException, InterruptedException {
+    public void completionOfForeignTaskShouldNotReleasePermit() throws TaskException, InterruptedException {
+        occupyAllPermits(2);
+        queuedTaskRunner.execute(task);
+        queuedTaskRunner.taskComplete(new TestTask(new TaskResult(TaskResult.SUCCESS)), new TaskResult(TaskResult.SUCCESS));
+        verify(this.taskRunner, times(0)).execute(task);
+        assertEquals(2, queuedTaskRunner.getNumberOfRunningTasks());
+    }
+
+    @Test
+    public void failedDispatchShouldReleasePermit() throws TaskException, InterruptedException {
+        queuedTaskRunner.setNumberOfConcurrentTasks(1);
+        doThrow(new TaskException("test")).when(this.taskRunner).execute(task);
+        try {
+            queuedTaskRunner.execute(task);
+            fail("TaskException expected");
+        } catch (final TaskException e) {
+            assertEquals(0, queuedTaskRunner.getNumberOfRunningTasks());
+        }
+    }
+
+    @Test
+    public void concurrencyLimitShouldDecideTheNumberOfConcurrentTasks() throws TaskException, InterruptedException {
+        final ConcurrencyLimit limit = mock(ConcurrencyLimit.class);
+        when(limit.getLimit()).thenReturn(1);
+        queuedTaskRunner.setConcurrencyLimit(limit);
+        final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        queuedTaskRunner.execute(task1);
+        queuedTaskRunner.execute(task);
+        verify(this.taskRunner, times(0)).execute(task);
+        when(limit.getLimit()).thenReturn(2);
+        final TaskResult result = new TaskResult(TaskResult.ERROR);
+        queuedTaskRunner.taskComplete(task1, result);
+        verify(limit).taskComplete(anyLong(), anyLong(), eq(1), eq(result));
+        verify(this.taskRunner, times(1)).execute(task);
+    }
+
+    @Test
+    public void failingConcurrencyLimitShouldNotLoseThePermit() throws TaskException, InterruptedException {
+        final ConcurrencyLimit limit = mock(ConcurrencyLimit.class);
+        when(limit.getLimit()).thenReturn(1);
+        doThrow(new IllegalStateException()).when(limit)
+                .taskComplete(anyLong(), anyLong(), anyInt(), any(TaskResult.class));
+        queuedTaskRunner.setConcurrencyLimit(limit);
+        final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        queuedTaskRunner.execute(task1);
+        queuedTaskRunner.execute(task);
+        queuedTaskRunner.taskComplete(task1, null);
+        verify(this.taskRunner, times(1)).execute(task);
+        verify(this.taskEventListener).taskComplete(task1, null);
+        queuedTaskRunner.taskComplete(task, new TaskResult(TaskResult.SUCCESS));
+        assertEquals(0, queuedTaskRunner.getNumberOfRunningTasks());
+    }
+
+    @Test
+    public void setNumberOfConcurrentTasksShouldReplaceConcurrencyLimit() {
+        queuedTaskRunner.setConcurrencyLimit(new AdaptiveConcurrencyLimit(5, 1, 10));
+        assertEquals(5, queuedTaskRunner.getNumberOfConcurrentTasks());
+        queuedTaskRunner.setNumberOfConcurrentTasks(3);
+        assertNull(queuedTaskRunner.getConcurrencyLimit());
+        assertEquals(3, queuedTaskRunner.getNumberOfConcurrentTasks());
+    }
+
+    @Test
+    public void partitionLimitShouldLetOtherPartitionsRun() throws TaskException, InterruptedException {
+        queuedTaskRunner.setNumberOfConcurrentTasks(3);
+        queuedTaskRunner.setNumberOfConcurrentTasksPerPartition(1);
+        final TestTask slow1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 2);
+        final TestTask slow2 = new TestTask(new TaskResult(TaskResult.SUCCESS), 2);
+        final TestTask fast = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        slow1.setPartitionKey("slow.example.com");
+        slow2.setPartitionKey("slow.example.com");
+        fast.setPartitionKey("fast.example.com");
+        queuedTaskRunner.executeAll(Arrays.asList(slow1, slow2, fast));
+        verify(this.taskRunner, times(1)).execute(slow1);
+        verify(this.taskRunner, times(0)).execute(slow2);
+        verify(this.taskRunner, times(1)).execute(fast);
+        assertEquals(2, queuedTaskRunner.getNumberOfRunningTasks());
+        queuedTaskRunner.taskComplete(slow1, new TaskResult(TaskResult.SUCCESS));
+        verify(this.taskRunner, times(1)).execute(slow2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void partitioningShouldNotBeTurnedOnAfterTasksHaveBeenExecuted() throws TaskException, InterruptedException {
+        queuedTaskRunner.execute(task);
+        queuedTaskRunner.setNumberOfConcurrentTasksPerPartition(1);
+    }
+
+    @Test(timeout = 10000)
+    public void rateLimiterShouldDispatchTasksOnTheTimer() throws TaskException, InterruptedException {
+        queuedTaskRunner.setRateLimiter(new RateLimiter(20, 1));
+        final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        queuedTaskRunner.execute(task1);
+        queuedTaskRunner.execute(task);
+        verify(this.taskRunner, times(1)).execute(task1);
+        verify(this.taskRunner, times(0)).execute(task);
+        assertEquals(1, queuedTaskRunner.getNumberOfRunningTasks());
+        verify(this.taskRunner, timeout(5000)).execute(task);
+        assertEquals(2, queuedTaskRunner.getNumberOfRunningTasks());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rateLimitPerPartitionShouldNotBeSetAfterTasksHaveBeenExecuted() throws TaskException, InterruptedException {
+        queuedTaskRunner.execute(task);
+        queuedTaskRunner.setRateLimitPerPartition(1, 1);
+    }
+
+    @Test
+    public void executeAllShouldDispatchBatchInOrderUpToTheLimit() throws TaskException, InterruptedException {
         queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        final TestTask task2 = new TestTask(new TaskResult(TaskResult.SUCCESS), 3);
+        final TestTask task3 = new TestTask(new TaskResult(TaskResult.SUCCESS), 2);
+        queuedTaskRunner.executeAll(Arrays.asList(task1, task2, task3));
+        verify(this.taskRunner, times(1)).execute(task2);
+        verify(this.taskRunner, times(1)).execute(task3);
+        verify(this.taskRunner, times(0)).execute(task1);
+        assertEquals(1, queuedTaskRunner.getNumberOfEnqueuedTasks());
+    }
+
+    @Test
+    public void executeAllShouldNotEnqueueAnInvalidBatch() throws InterruptedException {
+        final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        task.setState(TaskState.RUNNING);
+        try {
+            queuedTaskRunner.executeAll(Arrays.asList(task1, task));
+            fail("TaskException expected");
+        } catch (final TaskException e) {
+            assertEquals(0, queuedTaskRunner.getNumberOfEnqueuedTasks());
+            assertFalse(queuedTaskRunner.hasStarted(task1));
+        }
+    }
+
+    @Test
+    public void isExecutingShouldBeTrueForEnqueuedItems() throws TaskException, InterruptedException {
+        occupyAllPermits(2);
         final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
         queuedTaskRunner.execute(task1);
         assertTrue(this.queuedTaskRunner.isExecuting(task1));
@@ -120,8 +268,7 @@ public class QueuedTaskRunnerTest {
 
     @Test
     public void isRunningShouldBeFalseForEnqueuedItems() throws TaskException, InterruptedException {
-        queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        occupyAllPermits(2);
         final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
         queuedTaskRunner.execute(task1);
         assertFalse(this.queuedTaskRunner.isRunning(task1));
@@ -149,8 +296,7 @@ public class QueuedTaskRunnerTest {
 
     @Test
     public void hasStartedShouldBeTrueForEnqueuedItems() throws TaskException, InterruptedException {
-        queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        occupyAllPermits(2);
         final TestTask task1 = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
         queuedTaskRunner.execute(task1);
         assertTrue(this.queuedTaskRunner.hasStarted(task1));
@@ -207,14 +353,133 @@ public class QueuedTaskRunnerTest {
 
     @Test
     public void cancelTaskInQueueShouldSetTaskCompleteAndFireEvent() throws TaskException, InterruptedException {
-        queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        occupyAllPermits(2);
         queuedTaskRunner.execute(task);
         this.queuedTaskRunner.cancel(task);
         assertEquals(task.getState(), TaskState.COMPLETE);
         verify(this.taskEventListener, times(1)).taskComplete(task, new TaskResult(TaskResult.CANCEL));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void lifecycleListenerShouldSeeQueueDispatchStartAndCancel() throws TaskException, InterruptedException {
+        final TaskLifecycleListener<TestTask> lifecycleListener = mock(TaskLifecycleListener.class);
+        queuedTaskRunner.addTaskEventListener(lifecycleListener);
+        final TestTask[] running = occupyAllPermits(1);
+        queuedTaskRunner.taskStarted(running[0]);
+        queuedTaskRunner.execute(task);
+        queuedTaskRunner.cancel(task);
+        final InOrder inOrder = inOrder(lifecycleListener);
+        inOrder.verify(lifecycleListener).taskQueued(running[0]);
+        inOrder.verify(lifecycleListener).taskDispatched(running[0]);
+        inOrder.verify(lifecycleListener).taskStarted(running[0]);
+        inOrder.verify(lifecycleListener).taskQueued(task);
+        inOrder.verify(lifecycleListener).taskCancelRequested(task);
+        inOrder.verify(lifecycleListener).taskComplete(task, new TaskResult(TaskResult.CANCEL));
+        verify(lifecycleListener, never()).taskDispatched(task);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void startEventsShouldOnlyBeSubscribedWhileThereAreLifecycleListeners() {
+        final TaskRunner<TestTask> innerRunner = mock(TaskRunner.class);
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>(new Comparator<TestTask>() {
+            @Override
+            public int compare(final TestTask task1, final TestTask task2) {
+                return 0;
+            }
+        }, innerRunner);
+        final ArgumentCaptor<TaskEventListener> completionListener = ArgumentCaptor.forClass(TaskEventListener.class);
+        verify(innerRunner).setTaskEventListener(completionListener.capture());
+        assertFalse(completionListener.getValue() instanceof TaskLifecycleListener);
+        runner.addTaskEventListener(taskEventListener);
+        verify(innerRunner, never()).addTaskEventListener(any(TaskEventListener.class));
+
+        final TaskLifecycleListener<TestTask> lifecycleListener = mock(TaskLifecycleListener.class);
+        runner.addTaskEventListener(lifecycleListener);
+        final ArgumentCaptor<TaskLifecycleListener> startListener = ArgumentCaptor.forClass(TaskLifecycleListener.class);
+        verify(innerRunner).addTaskEventListener(startListener.capture());
+        startListener.getValue().taskStarted(task);
+        startListener.getValue().taskComplete(task, new TaskResult(TaskResult.SUCCESS));
+        verify(lifecycleListener).taskStarted(task);
+        verify(lifecycleListener, never()).taskComplete(eq(task), any(TaskResult.class));
+
+        runner.removeTaskEventListener(lifecycleListener);
+        verify(innerRunner).removeTaskEventListener(startListener.getValue());
+        runner.removeTaskEventListener(taskEventListener);
+        verify(innerRunner, times(1)).removeTaskEventListener(any(TaskEventListener.class));
+    }
+
+    @Test(timeout = 60000)
+    public void statusQueriesShouldNotWaitForADispatch() throws TaskException, InterruptedException {
+        final CountDownLatch dispatching = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable {
+                dispatching.countDown();
+                released.await();
+                return null;
+            }
+        }).when(taskRunner).execute(task);
+        final Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queuedTaskRunner.execute(task);
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        submitter.start();
+        dispatching.await();
+        final TestTask unknownTask = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        assertFalse(queuedTaskRunner.hasStarted(unknownTask));
+        assertFalse(queuedTaskRunner.isExecuting(unknownTask));
+        assertTrue(queuedTaskRunner.hasStarted(task));
+        assertTrue(queuedTaskRunner.isExecuting(task));
+        released.countDown();
+        submitter.join();
+    }
+
+    @Test
+    public void metricsShouldIncludeTasksCanceledInTheQueue() throws TaskException, InterruptedException {
+        final TaskMetrics metrics = new TaskMetrics();
+        queuedTaskRunner.setMetrics(metrics);
+        occupyAllPermits(1);
+        queuedTaskRunner.execute(task);
+        assertTrue(task.getQueuedTime() != 0);
+        queuedTaskRunner.cancel(task);
+        assertEquals(2, metrics.getQueuedTasks());
+        assertEquals(1, metrics.getCompletedTasks(TaskResult.CANCEL));
+        assertEquals(1, metrics.getEndToEnd().getCount());
+        assertEquals(0, metrics.getRunTime().getCount());
+    }
+
+    @Test(timeout = 60000)
+    public void slowListenerShouldNotHoldUpDispatchWithEventQueue() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        queuedTaskRunner.addTaskEventListener(new TaskEventListener<TestTask>() {
+            @Override
+            public void taskComplete(final TestTask completedTask, final TaskResult result) {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        queuedTaskRunner.setEventQueueCapacity(16);
+        final TestTask[] running = occupyAllPermits(1);
+        queuedTaskRunner.execute(task);
+        queuedTaskRunner.taskComplete(running[0], new TaskResult(TaskResult.SUCCESS));
+        verify(this.taskRunner, times(1)).execute(task);
+        release.countDown();
+        queuedTaskRunner.setEventQueueCapacity(0);
+        verify(taskEventListener).taskComplete(eq(running[0]), any(TaskResult.class));
+    }
+
     @Test
     public void joinShouldDelegateToTaskRunner() throws InterruptedException, TaskException {
         task.setState(TaskState.RUNNING);
@@ -230,8 +495,7 @@ public class QueuedTaskRunnerTest {
 
     @Test(expected = InterruptedException.class)
     public void joinShouldWaitUntilStartedTaskStateChanges() throws InterruptedException, TaskException {
-        queuedTaskRunner.setNumberOfConcurrentTasks(2);
-        when(this.taskRunner.getNumberOfExecutingTasks()).thenReturn(2);
+        occupyAllPermits(2);
         queuedTaskRunner.execute(task);
         queuedTaskRunner.setTaskStartedCondition(Mockito.mock(Condition.class));
         doThrow(new InterruptedException()).when(queuedTaskRunner.getTaskStartedCondition()).await();
@@ -254,9 +518,464 @@ public class QueuedTaskRunnerTest {
         }
     }
 
+    @Test(timeout = 60000)
+    public void scheduledTaskShouldNotBeQueuedBeforeItsDelay() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        final long scheduledAt = System.nanoTime();
+        runner.schedule(task, 100, TimeUnit.MILLISECONDS);
+        assertTrue(runner.hasStarted(task));
+        assertTrue(runner.isExecuting(task));
+        assertEquals(1, runner.getNumberOfScheduledTasks());
+        runner.join();
+        assertEquals(TaskState.COMPLETE, task.getState());
+        assertTrue(task.getStartTime() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, runner.getNumberOfScheduledTasks());
+        runner.dispose();
+    }
+
+    @Test
+    public void cancelScheduledTaskShouldCompleteIt() throws TaskException, InterruptedException {
+        queuedTaskRunner.schedule(task, 1, TimeUnit.HOURS);
+        queuedTaskRunner.cancel(task);
+        assertEquals(TaskState.COMPLETE, task.getState());
+        assertEquals(0, queuedTaskRunner.getNumberOfScheduledTasks());
+        verify(this.taskEventListener).taskComplete(task, new TaskResult(TaskResult.CANCEL));
+        verify(this.taskRunner, never()).execute(task);
+    }
+
+    @Test(expected = TaskException.class)
+    public void executeScheduledTaskShouldThrowException() throws TaskException, InterruptedException {
+        queuedTaskRunner.schedule(task, 1, TimeUnit.HOURS);
+        queuedTaskRunner.execute(task);
+    }
+
+    @Test(timeout = 60000)
+    public void periodicTaskShouldRunUntilCanceled() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        final CountDownLatch runs = new CountDownLatch(3);
+        final List<TaskResult> results = Collections.synchronizedList(new ArrayList<TaskResult>());
+        runner.setTaskEventListener(new TaskEventListener<TestTask>() {
+            @Override
+            public void taskComplete(final TestTask completedTask, final TaskResult result) {
+                results.add(result);
+                runs.countDown();
+            }
+        });
+        runner.scheduleWithFixedDelay(task, 0, 10, TimeUnit.MILLISECONDS);
+        runs.await();
+        runner.cancel(task);
+        runner.join();
+        final int numberOfRuns = results.size();
+        Thread.sleep(50);
+        assertEquals(numberOfRuns, results.size());
+        assertTrue(task.getGeneration() >= 2);
+        assertEquals(new TaskResult(TaskResult.SUCCESS), results.get(0));
+        assertTrue(task.getFuture().isDone());
+        assertEquals(0, runner.getNumberOfScheduledTasks());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void periodicTaskShouldStopAfterAFailedRun() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        final TestTask failingTask = new TestTask(new TaskResult(TaskResult.ERROR));
+        runner.scheduleWithFixedDelay(failingTask, 0, 10, TimeUnit.MILLISECONDS);
+        failingTask.getFuture().get();
+        Thread.sleep(50);
+        assertEquals(0, failingTask.getGeneration());
+        assertEquals(0, runner.getNumberOfScheduledTasks());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void periodicTaskShouldStopAfterARunWithoutResult() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setTaskEventListener(taskEventListener);
+        final TestTask resultless = new TestTask(null);
+        runner.scheduleWithFixedDelay(resultless, 0, 10, TimeUnit.MILLISECONDS);
+        verify(taskEventListener, timeout(5000)).taskComplete(resultless, null);
+        Thread.sleep(50);
+        assertEquals(0, resultless.getGeneration());
+        assertEquals(0, runner.getNumberOfScheduledTasks());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void failedTaskShouldBeRetriedAndOnlyTheFinalResultReported() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setRetryPolicy(new RetryPolicy(5, 10, 100, TimeUnit.MILLISECONDS));
+        runner.setTaskEventListener(taskEventListener);
+        final FailingTestTask failingTask = new FailingTestTask(2);
+        runner.execute(failingTask);
+        runner.join(failingTask);
+        assertEquals(new TaskResult(TaskResult.SUCCESS), failingTask.getFuture().get());
+        assertEquals(3, failingTask.getAttempt());
+        assertEquals(3, failingTask.runs.get());
+        verify(taskEventListener, timeout(10000)).taskComplete(failingTask, new TaskResult(TaskResult.SUCCESS));
+        verifyNoMoreInteractions(taskEventListener);
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void retriesShouldStopAfterTheMaximumAttempts() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS));
+        final FailingTestTask failingTask = new FailingTestTask(Integer.MAX_VALUE);
+        runner.execute(failingTask);
+        assertEquals(TaskResult.ERROR, failingTask.getFuture().get().getStatus());
+        assertEquals(3, failingTask.runs.get());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void taskWithoutResultShouldNotBeRetried() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS));
+        runner.setTaskEventListener(taskEventListener);
+        final TestTask resultless = new TestTask(null);
+        runner.execute(resultless);
+        runner.join(resultless);
+        verify(taskEventListener, timeout(5000)).taskComplete(resultless, null);
+        assertEquals(1, resultless.getAttempt());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void cancelShouldStopRetrying() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.HOURS));
+        final FailingTestTask failingTask = new FailingTestTask(Integer.MAX_VALUE);
+        runner.execute(failingTask);
+        while (runner.getNumberOfScheduledTasks() == 0) {
+            Thread.sleep(1);
+        }
+        runner.cancel(failingTask);
+        assertEquals(new TaskResult(TaskResult.CANCEL), failingTask.getFuture().get());
+        assertEquals(1, failingTask.runs.get());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void cancelBetweenAnAttemptAndItsRetryShouldStopRetrying() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        final FailingTestTask failingTask = new FailingTestTask(Integer.MAX_VALUE);
+        runner.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS) {
+            @Override
+            public boolean isRetryable(final AbstractTask task, final TaskResult result) {
+                // the attempt has completed, the task isn't reset yet
+                try {
+                    runner.cancel(failingTask);
+                } catch (final TaskException e) {
+                    throw new IllegalStateException(e);
+                }
+                return true;
+            }
+        });
+        runner.execute(failingTask);
+        assertEquals(TaskResult.ERROR, failingTask.getFuture().get().getStatus());
+        assertEquals(1, failingTask.runs.get());
+        assertEquals(0, runner.getNumberOfScheduledTasks());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentSubmittersShouldNotExceedTheLimit() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setNumberOfConcurrentTasks(4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximum = new AtomicInteger();
+        final List<TestTask> tasks = Collections.synchronizedList(new ArrayList<TestTask>());
+        final Thread[] submitters = new Thread[16];
+        for (int i = 0; i < submitters.length; i++) {
+            submitters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        final TestTask task = new CountingTestTask(running, maximum);
+                        tasks.add(task);
+                        try {
+                            runner.execute(task);
+                        } catch (final Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+            submitters[i].start();
+        }
+        for (final Thread submitter : submitters) {
+            submitter.join();
+        }
+        runner.join(new ArrayList<TestTask>(tasks));
+        for (final TestTask task2 : tasks) {
+            assertEquals(TaskState.COMPLETE, task2.getState());
+        }
+        assertEquals(800, tasks.size());
+        assertTrue(maximum.get() <= 4);
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void dependentTasksShouldRunAfterTheirDependencies() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setNumberOfConcurrentTasks(4);
+        final TestTask fetch = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final TestTask parse = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final TestTask index = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        parse.dependsOn(fetch);
+        index.dependsOn(parse);
+        runner.executeAll(Arrays.asList(index, parse, fetch));
+        assertEquals(new TaskResult(TaskResult.SUCCESS), index.getFuture().get());
+        assertTrue(parse.getStartTime() - fetch.getCompletionTime() >= 0);
+        assertTrue(index.getStartTime() - parse.getCompletionTime() >= 0);
+        assertEquals(0, runner.getNumberOfBlockedTasks());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void taskShouldWaitForAllItsDependencies() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setNumberOfConcurrentTasks(4);
+        final TestTask source = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final TestTask left = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final TestTask right = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final TestTask sink = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        left.dependsOn(source);
+        right.dependsOn(source);
+        sink.dependsOn(left, right);
+        runner.execute(sink);
+        runner.execute(left);
+        runner.execute(right);
+        assertEquals(3, runner.getNumberOfBlockedTasks());
+        runner.execute(source);
+        assertEquals(new TaskResult(TaskResult.SUCCESS), sink.getFuture().get());
+        assertTrue(sink.getStartTime() - left.getCompletionTime() >= 0);
+        assertTrue(sink.getStartTime() - right.getCompletionTime() >= 0);
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void failedDependencyShouldCancelDependentTasks() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setTaskEventListener(taskEventListener);
+        final FailingTestTask fetch = new FailingTestTask(1);
+        final FailingTestTask parse = new FailingTestTask(0);
+        final TestTask index = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        parse.dependsOn(fetch);
+        index.dependsOn(parse);
+        runner.executeAll(Arrays.<TestTask>asList(fetch, parse, index));
+        assertEquals(new TaskResult(TaskResult.CANCEL), index.getFuture().get());
+        assertEquals(new TaskResult(TaskResult.CANCEL), parse.getFuture().get());
+        assertEquals(0, parse.runs.get());
+        assertEquals(0, runner.getNumberOfExecutingTasks());
+        verify(taskEventListener).taskComplete(index, new TaskResult(TaskResult.CANCEL));
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void cancelShouldRemoveTaskWaitingForDependencies() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        final TestTask dependency = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final TestTask dependent = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        dependent.dependsOn(dependency);
+        runner.execute(dependent);
+        assertTrue(runner.hasStarted(dependent));
+        assertEquals(1, runner.getNumberOfExecutingTasks());
+        runner.cancel(dependent);
+        runner.join(dependent);
+        assertEquals(new TaskResult(TaskResult.CANCEL), dependent.getResult());
+        assertEquals(0, runner.getNumberOfBlockedTasks());
+        runner.execute(dependency);
+        assertEquals(new TaskResult(TaskResult.SUCCESS), dependency.getFuture().get());
+        assertEquals(new TaskResult(TaskResult.CANCEL), dependent.getResult());
+        runner.dispose();
+    }
+
+    @Test(expected = TaskException.class)
+    public void taskWithDependenciesShouldNotBeScheduled() throws TaskException, InterruptedException {
+        task.dependsOn(new TestTask(new TaskResult(TaskResult.SUCCESS)));
+        queuedTaskRunner.schedule(task, 1, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 60000)
+    public void fullQueueShouldRejectTasks() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = newBoundedRunner(QueuedTaskRunner.OverflowPolicy.REJECT);
+        final TestTask rejected = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        try {
+            runner.execute(rejected);
+            fail("the task should have been rejected");
+        } catch (final TaskRejectedException e) {
+            assertEquals(2, runner.getNumberOfEnqueuedTasks());
+            assertEquals(TaskState.INITIALIZED, rejected.getState());
+        }
+        runner.setNumberOfConcurrentTasks(1);
+        runner.flush();
+        runner.join();
+        runner.execute(rejected);
+        assertEquals(new TaskResult(TaskResult.SUCCESS), rejected.getFuture().get());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void blockedSubmitterShouldContinueWhenTheQueueHasRoom() throws Exception {
+        final QueuedTaskRunner<TestTask> runner = newBoundedRunner(QueuedTaskRunner.OverflowPolicy.BLOCK);
+        final TestTask blocked = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runner.execute(blocked);
+                    submitted.countDown();
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        submitter.start();
+        assertFalse(submitted.await(50, TimeUnit.MILLISECONDS));
+        runner.setNumberOfConcurrentTasks(1);
+        runner.flush();
+        submitted.await();
+        assertEquals(new TaskResult(TaskResult.SUCCESS), blocked.getFuture().get());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void blockedSubmitterShouldBeRejectedAfterTheMaximumBlockTime() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = newBoundedRunner(QueuedTaskRunner.OverflowPolicy.BLOCK);
+        runner.setMaximumBlockTime(20, TimeUnit.MILLISECONDS);
+        final long start = System.nanoTime();
+        try {
+            runner.execute(new TestTask(new TaskResult(TaskResult.SUCCESS)));
+            fail("the task should have been rejected");
+        } catch (final TaskRejectedException e) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        assertEquals(2, runner.getNumberOfEnqueuedTasks());
+        runner.setNumberOfConcurrentTasks(1);
+        runner.flush();
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void fullQueueShouldDropTheLowestPriorityTask() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = newBoundedRunner(QueuedTaskRunner.OverflowPolicy.DROP_LOWEST);
+        final TestTask low = new TestTask(new TaskResult(TaskResult.SUCCESS), 1);
+        runner.execute(low);
+        assertEquals(new TaskResult(TaskResult.CANCEL), low.getFuture().get());
+        final TestTask high = new TestTask(new TaskResult(TaskResult.SUCCESS), 5);
+        runner.execute(high);
+        assertEquals(2, runner.getNumberOfEnqueuedTasks());
+        assertTrue(runner.isExecuting(high));
+        runner.setNumberOfConcurrentTasks(1);
+        runner.flush();
+        runner.join();
+        assertEquals(new TaskResult(TaskResult.SUCCESS), high.getResult());
+        assertEquals(new TaskResult(TaskResult.CANCEL), boundedRunnerTasks.get(0).getResult());
+        assertEquals(new TaskResult(TaskResult.SUCCESS), boundedRunnerTasks.get(1).getResult());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void fullQueueShouldRunTheTaskOnTheCallerThread() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = newBoundedRunner(QueuedTaskRunner.OverflowPolicy.CALLER_RUNS);
+        runner.setTaskEventListener(taskEventListener);
+        final TestTask callerTask = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        runner.execute(callerTask);
+        assertSame(Thread.currentThread(), callerTask.getThread());
+        assertEquals(TaskState.COMPLETE, callerTask.getState());
+        assertEquals(new TaskResult(TaskResult.SUCCESS), callerTask.getFuture().get());
+        verify(taskEventListener, timeout(10000)).taskComplete(callerTask, new TaskResult(TaskResult.SUCCESS));
+        assertEquals(2, runner.getNumberOfEnqueuedTasks());
+        runner.setNumberOfConcurrentTasks(1);
+        runner.flush();
+        runner.dispose();
+    }
+
     @Test
     public void disposeShouldCallDisposeOnContainedTaskrunner() throws TaskException, InterruptedException {
         this.queuedTaskRunner.dispose();
         verify(this.taskRunner, times(1)).dispose();
     }
+
+    /**
+     * A runner with a full queue of two tasks with priority 2 and 3, nothing
+     * is dispatched until the test raises the number of concurrent tasks.
+     */
+    private QueuedTaskRunner<TestTask> newBoundedRunner(final QueuedTaskRunner.OverflowPolicy policy)
+            throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>(new Comparator<TestTask>() {
+            @Override
+            public int compare(final TestTask task1, final TestTask task2) {
+                return task2.getPriority() - task1.getPriority();
+            }
+        });
+        runner.setNumberOfConcurrentTasks(0);
+        runner.setQueueCapacity(2, policy);
+        for (int i = 0; i < 2; i++) {
+            final TestTask queued = new TestTask(new TaskResult(TaskResult.SUCCESS), 2 + i);
+            boundedRunnerTasks.add(queued);
+            runner.execute(queued);
+        }
+        return runner;
+    }
+
+    /**
+     * Dispatches tasks to the mocked inner runner until all permits are taken,
+     * the mock never completes them.
+     */
+    private TestTask[] occupyAllPermits(final int numberOfConcurrentTasks) throws TaskException, InterruptedException {
+        queuedTaskRunner.setNumberOfConcurrentTasks(numberOfConcurrentTasks);
+        final TestTask[] running = new TestTask[numberOfConcurrentTasks];
+        for (int i = 0; i < running.length; i++) {
+            running[i] = new TestTask(new TaskResult(TaskResult.SUCCESS));
+            queuedTaskRunner.execute(running[i]);
+        }
+        assertEquals(numberOfConcurrentTasks, queuedTaskRunner.getNumberOfRunningTasks());
+        return running;
+    }
+
+    private static class FailingTestTask extends TestTask {
+
+        private final int failures;
+        private final AtomicInteger runs = new AtomicInteger();
+
+        FailingTestTask(final int failures) {
+            super(new TaskResult(TaskResult.SUCCESS));
+            this.failures = failures;
+        }
+
+        @Override
+        protected TaskResult run() {
+            if (runs.incrementAndGet() <= failures) {
+                return new TaskResult(TaskResult.ERROR, new IllegalStateException("attempt " + getAttempt()));
+            }
+            return super.run();
+        }
+    }
+
+    private static class CountingTestTask extends TestTask {
+
+        private final AtomicInteger running;
+        private final AtomicInteger maximum;
+
+        CountingTestTask(final AtomicInteger running, final AtomicInteger maximum) {
+            super(new TaskResult(TaskResult.SUCCESS));
+            this.running = running;
+            this.maximum = maximum;
+        }
+
+        @Override
+        protected TaskResult run() {
+            final int current = running.incrementAndGet();
+            int max;
+            do {
+                max = maximum.get();
+            } while (current > max && !maximum.compareAndSet(max, current));
+            Thread.yield();
+            running.decrementAndGet();
+            return getTestResult();
+        }
+    }
 }
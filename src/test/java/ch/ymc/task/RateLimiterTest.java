@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.RateLimiter}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void burstShouldBeAvailableRightAway() {
+        final RateLimiter rateLimiter = new RateLimiter(1, 3);
+        final long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.getWaitTime(now));
+            rateLimiter.acquire(now);
+        }
+        assertFalse(rateLimiter.getWaitTime(now) == 0);
+    }
+
+    @Test
+    public void waitTimeShouldFollowTheRate() {
+        final RateLimiter rateLimiter = new RateLimiter(10, 1);
+        final long now = System.nanoTime();
+        rateLimiter.acquire(now);
+        final long waitTime = rateLimiter.getWaitTime(now);
+        assertTrue(waitTime > TimeUnit.MILLISECONDS.toNanos(99) && waitTime <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, rateLimiter.getWaitTime(now + waitTime));
+    }
+
+    @Test
+    public void bucketShouldNotFillAboveBurst() {
+        final RateLimiter rateLimiter = new RateLimiter(1000, 2);
+        final long now = System.nanoTime();
+        assertTrue(rateLimiter.isFull(now + TimeUnit.SECONDS.toNanos(10)));
+        rateLimiter.acquire(now + TimeUnit.SECONDS.toNanos(10));
+        assertFalse(rateLimiter.isFull(now + TimeUnit.SECONDS.toNanos(10)));
+        rateLimiter.acquire(now + TimeUnit.SECONDS.toNanos(10));
+        assertFalse(rateLimiter.getWaitTime(now + TimeUnit.SECONDS.toNanos(10)) == 0);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.RetryPolicy}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void backoffShouldGrowExponentiallyUpToTheMaximum() {
+        final RetryPolicy policy = new RetryPolicy(10, 100, 1000, TimeUnit.MILLISECONDS, 2, 0);
+        assertEquals(100, policy.getBackoff(1, TimeUnit.MILLISECONDS));
+        assertEquals(200, policy.getBackoff(2, TimeUnit.MILLISECONDS));
+        assertEquals(800, policy.getBackoff(4, TimeUnit.MILLISECONDS));
+        assertEquals(1000, policy.getBackoff(5, TimeUnit.MILLISECONDS));
+        assertEquals(1000, policy.getBackoff(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void jitterShouldOnlyShortenTheBackoff() {
+        final RetryPolicy policy = new RetryPolicy(10, 100, 1000, TimeUnit.MILLISECONDS, 2, 0.5);
+        for (int i = 0; i < 1000; i++) {
+            final long backoff = policy.getBackoff(2, TimeUnit.MILLISECONDS);
+            assertTrue(backoff >= 100 && backoff <= 200);
+        }
+    }
+
+    @Test
+    public void onlyErrorsShouldBeRetryableByDefault() {
+        final RetryPolicy policy = new RetryPolicy(3, 1, 1, TimeUnit.SECONDS);
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        assertTrue(policy.isRetryable(task, new TaskResult(TaskResult.ERROR)));
+        assertFalse(policy.isRetryable(task, new TaskResult(TaskResult.FATAL)));
+        assertFalse(policy.isRetryable(task, new TaskResult(TaskResult.CANCEL)));
+        assertFalse(policy.isRetryable(task, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPolicyShouldBeRejected() {
+        new RetryPolicy(0, 1, 1, TimeUnit.SECONDS);
+    }
+}
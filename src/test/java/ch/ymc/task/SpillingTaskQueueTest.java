@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.SpillingTaskQueue}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class SpillingTaskQueueTest {
+
+    private static final Comparator<TestTask> BY_PRIORITY = new Comparator<TestTask>() {
+        @Override
+        public int compare(final TestTask task1, final TestTask task2) {
+            return task2.getPriority() - task1.getPriority();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pollShouldMergeMemoryAndRunsInOrder() {
+        final SpillingTaskQueue<TestTask> queue = newQueue(8);
+        final Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            queue.add(newTask(random.nextInt(5), i));
+        }
+        assertEquals(100, queue.size());
+        assertTrue(queue.getNumberOfSpilledTasks() > 0);
+        assertTrue(queue.getNumberOfRuns() > 1);
+        assertTrue(queue.toList().size() <= 8);
+        TestTask previous = queue.poll();
+        for (int i = 1; i < 100; i++) {
+            final TestTask task = queue.poll();
+            assertTrue(task.getPriority() <= previous.getPriority());
+            if (task.getPriority() == previous.getPriority()) {
+                // tasks of the same priority keep the order they were added in
+                assertTrue((Integer) task.getPartitionKey() > (Integer) previous.getPartitionKey());
+            }
+            previous = task;
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void runsShouldBeMergedToKeepFewFilesOpen() {
+        final SpillingTaskQueue<TestTask> queue = newQueue(2);
+        final Random random = new Random(7);
+        // every second task spills a run of two, 3000 runs without merging
+        for (int i = 0; i < 6000; i++) {
+            queue.add(newTask(random.nextInt(100), i));
+            assertTrue(queue.getNumberOfRuns() <= 7 * 4);
+        }
+        assertEquals(queue.getNumberOfRuns(), folder.getRoot().listFiles().length);
+        assertEquals(6000, queue.size());
+        TestTask previous = queue.poll();
+        for (int i = 1; i < 6000; i++) {
+            final TestTask task = queue.poll();
+            assertTrue(task.getPriority() <= previous.getPriority());
+            if (task.getPriority() == previous.getPriority()) {
+                assertTrue((Integer) task.getPartitionKey() > (Integer) previous.getPartitionKey());
+            }
+            previous = task;
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void spilledTasksShouldBeRestored() {
+        final SpillingTaskQueue<TestTask> queue = newQueue(2);
+        final TestTask task = newTask(0, 0);
+        task.setTimeout(5, TimeUnit.SECONDS);
+        task.setAttempt(2);
+        task.setQueuedTime(1234);
+        queue.add(task);
+        queue.add(newTask(1, 1));
+        queue.add(newTask(1, 2));
+        // the lower half, the task and the last one of the equal ones
+        assertEquals(2, queue.getNumberOfSpilledTasks());
+        assertFalse(queue.contains(task));
+        assertFalse(queue.remove(task));
+        queue.poll();
+        queue.poll();
+        final TestTask restored = queue.poll();
+        assertNotSame(task, restored);
+        assertEquals(0, restored.getPartitionKey());
+        assertEquals(5, restored.getTimeout(TimeUnit.SECONDS));
+        assertEquals(2, restored.getAttempt());
+        assertEquals(1234, restored.getQueuedTime());
+    }
+
+    @Test
+    public void pinnedTasksShouldStayInMemory() {
+        final SpillingTaskQueue<TestTask> queue = newQueue(2);
+        final TestTask pinned = newTask(0, 0);
+        final TestTask dependency = newTask(0, 1);
+        dependency.getFuture().addCallback(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        queue.add(pinned, false);
+        queue.add(dependency);
+        queue.add(newTask(1, 2));
+        queue.add(newTask(1, 3));
+        assertTrue(queue.contains(pinned));
+        assertTrue(queue.contains(dependency));
+        assertTrue(queue.remove(pinned));
+        queue.poll();
+        queue.poll();
+        assertSame(dependency, queue.poll());
+    }
+
+    @Test
+    public void closeShouldDeleteRuns() {
+        final SpillingTaskQueue<TestTask> queue = newQueue(2);
+        for (int i = 0; i < 10; i++) {
+            queue.add(newTask(0, i));
+        }
+        assertTrue(folder.getRoot().listFiles().length > 0);
+        queue.close();
+        assertEquals(0, folder.getRoot().listFiles().length);
+        assertEquals(queue.toList().size(), queue.size());
+    }
+
+    @Test(timeout = 60000)
+    public void runnerShouldRunSpilledTasks() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>(BY_PRIORITY);
+        runner.enableSpilling(folder.getRoot(), new TaskKeySerializer(), 10);
+        final CountDownLatch completed = new CountDownLatch(101);
+        runner.addTaskEventListener(new TaskEventListener<TestTask>() {
+            @Override
+            public void taskComplete(final TestTask task, final TaskResult result) {
+                completed.countDown();
+            }
+        });
+        runner.setNumberOfConcurrentTasks(0);
+        final List<TestTask> tasks = new ArrayList<TestTask>();
+        for (int i = 0; i < 100; i++) {
+            tasks.add(newTask(i % 3, i));
+        }
+        runner.executeAll(tasks);
+        assertTrue(runner.getNumberOfSpilledTasks() > 0);
+        assertEquals(100, runner.getNumberOfEnqueuedTasks());
+        runner.setNumberOfConcurrentTasks(4);
+        runner.execute(newTask(0, 100));
+        runner.join();
+        // the listener may still be running for the last task
+        completed.await();
+        assertEquals(0, runner.getNumberOfSpilledTasks());
+        runner.dispose();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void spillingShouldNotBeCombinedWithPartitioning() throws TaskException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>(BY_PRIORITY);
+        runner.enableSpilling(folder.getRoot(), new TaskKeySerializer(), 10);
+        runner.setNumberOfConcurrentTasksPerPartition(1);
+    }
+
+    private SpillingTaskQueue<TestTask> newQueue(final int memoryCapacity) {
+        return new SpillingTaskQueue<TestTask>(BY_PRIORITY, folder.getRoot(), new TaskKeySerializer(), memoryCapacity);
+    }
+
+    private static TestTask newTask(final int priority, final int key) {
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS), priority);
+        task.setPartitionKey(key);
+        return task;
+    }
+
+    /**
+     * Writes the priority and the partition key of a {@link TestTask}.
+     */
+    private static class TaskKeySerializer implements TaskSerializer<TestTask> {
+
+        @Override
+        public byte[] serialize(final TestTask task) {
+            return ByteBuffer.allocate(8).putInt(task.getPriority()).putInt((Integer) task.getPartitionKey()).array();
+        }
+
+        @Override
+        public TestTask deserialize(final byte[] data) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            return newTask(buffer.getInt(), buffer.getInt());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for {@link ch.ymc.task.TaskEventDispatcher}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskEventDispatcherTest {
+
+    private final TaskEventDispatcher<TestTask> dispatcher = new TaskEventDispatcher<TestTask>("dispatcher-test");
+    private final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS));
+    private final TaskResult result = new TaskResult(TaskResult.SUCCESS);
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void allListenersShouldBeNotifiedInOrder() {
+        final TaskEventListener<TestTask> listener1 = mock(TaskEventListener.class);
+        final TaskEventListener<TestTask> listener2 = mock(TaskEventListener.class);
+        dispatcher.addListener(listener1);
+        dispatcher.addListener(listener2);
+        dispatcher.taskComplete(task, result);
+        final InOrder inOrder = inOrder(listener1, listener2);
+        inOrder.verify(listener1).taskComplete(task, result);
+        inOrder.verify(listener2).taskComplete(task, result);
+        assertSame(listener1, dispatcher.getListener());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void failingListenerShouldNotKeepOthersFromBeingNotified() {
+        final TaskEventListener<TestTask> failing = mock(TaskEventListener.class);
+        final TaskEventListener<TestTask> listener = mock(TaskEventListener.class);
+        doThrow(new IllegalStateException("test")).when(failing).taskComplete(task, result);
+        dispatcher.addListener(failing);
+        dispatcher.addListener(listener);
+        dispatcher.taskComplete(task, result);
+        verify(listener).taskComplete(task, result);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void setListenerShouldReplaceAllListeners() {
+        final TaskEventListener<TestTask> listener1 = mock(TaskEventListener.class);
+        final TaskEventListener<TestTask> listener2 = mock(TaskEventListener.class);
+        dispatcher.addListener(listener1);
+        dispatcher.setListener(listener2);
+        dispatcher.taskComplete(task, result);
+        verify(listener1, never()).taskComplete(task, result);
+        verify(listener2).taskComplete(task, result);
+        dispatcher.setListener(null);
+        assertFalse(dispatcher.hasListeners());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void lifecycleEventsShouldOnlyReachLifecycleListeners() {
+        final TaskEventListener<TestTask> listener = mock(TaskEventListener.class);
+        final TaskLifecycleListener<TestTask> lifecycleListener = mock(TaskLifecycleListener.class);
+        dispatcher.addListener(listener);
+        assertFalse(dispatcher.hasLifecycleListeners());
+        dispatcher.addListener(lifecycleListener);
+        assertTrue(dispatcher.hasLifecycleListeners());
+        dispatcher.taskQueued(task);
+        dispatcher.taskDispatched(task);
+        dispatcher.taskStarted(task);
+        dispatcher.taskCancelRequested(task);
+        dispatcher.taskComplete(task, result);
+        final InOrder inOrder = inOrder(lifecycleListener);
+        inOrder.verify(lifecycleListener).taskQueued(task);
+        inOrder.verify(lifecycleListener).taskDispatched(task);
+        inOrder.verify(lifecycleListener).taskStarted(task);
+        inOrder.verify(lifecycleListener).taskCancelRequested(task);
+        inOrder.verify(lifecycleListener).taskComplete(task, result);
+        verify(listener).taskComplete(task, result);
+        verifyNoMoreInteractions(listener);
+        dispatcher.removeListener(lifecycleListener);
+        assertFalse(dispatcher.hasLifecycleListeners());
+    }
+
+    @Test(timeout = 60000)
+    public void asynchronousDeliveryShouldKeepTheOrderAndDeliverEverythingOnShutdown() {
+        final List<TestTask> delivered = Collections.synchronizedList(new ArrayList<TestTask>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        dispatcher.addListener(new TaskEventListener<TestTask>() {
+            @Override
+            public void taskComplete(final TestTask completedTask, final TaskResult taskResult) {
+                delivered.add(completedTask);
+                threads.add(Thread.currentThread());
+            }
+        });
+        dispatcher.setQueueCapacity(4);
+        final List<TestTask> tasks = new ArrayList<TestTask>();
+        for (int i = 0; i < 100; i++) {
+            final TestTask completed = new TestTask(result);
+            tasks.add(completed);
+            dispatcher.taskComplete(completed, result);
+        }
+        dispatcher.shutdown();
+        assertEquals(tasks, delivered);
+        assertFalse(threads.contains(Thread.currentThread()));
+        assertEquals(0, dispatcher.getQueueCapacity());
+    }
+}
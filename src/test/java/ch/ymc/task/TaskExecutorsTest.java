@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link ch.ymc.task.TaskExecutors}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskExecutorsTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ThreadPoolExecutor threadPool;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (threadPool != null) {
+            threadPool.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void boundedThreadPoolShouldGrowToMaximumBeforeQueueing() {
+        threadPool = (ThreadPoolExecutor) TaskExecutors.newBoundedThreadPool(1, 4, 1, TimeUnit.SECONDS,
+                new TaskThreadFactory("executors-test", true));
+        for (int i = 0; i < 10; i++) {
+            threadPool.execute(blockingRunnable());
+        }
+        assertEquals(4, threadPool.getPoolSize());
+        assertEquals(6, threadPool.getQueue().size());
+    }
+
+    @Test(timeout = 60000)
+    public void boundedThreadPoolShouldHandTasksToIdleThreads() throws InterruptedException {
+        threadPool = (ThreadPoolExecutor) TaskExecutors.newBoundedThreadPool(0, 4, 1, TimeUnit.MINUTES,
+                new TaskThreadFactory("executors-test", true));
+        for (int i = 0; i < 10; i++) {
+            threadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // completes right away
+                }
+            });
+            while (threadPool.getCompletedTaskCount() <= i) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(1, threadPool.getLargestPoolSize());
+    }
+
+    @Test(timeout = 60000)
+    public void boundedThreadPoolShouldRunQueuedTasks() throws InterruptedException {
+        threadPool = (ThreadPoolExecutor) TaskExecutors.newBoundedThreadPool(2, "executors-test", true);
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            threadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(threadPool.getLargestPoolSize() <= 2);
+    }
+
+    @Test(timeout = 60000)
+    public void workStealingPoolShouldLetIdleWorkersStealQueuedTasks() throws InterruptedException {
+        final ExecutorService pool = TaskExecutors.newWorkStealingPool(2, "executors-test", true);
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // pushed to the deque of the blocked worker, the other one has to steal it
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            done.countDown();
+                        }
+                    });
+                    blockingRunnable().run();
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void workStealingPoolShouldRejectTasksAfterShutdown() {
+        final ExecutorService pool = TaskExecutors.newWorkStealingPool(1, "executors-test", true);
+        pool.shutdown();
+        pool.execute(blockingRunnable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundedThreadPoolShouldRejectInvalidSizes() {
+        TaskExecutors.newBoundedThreadPool(4, 2, 1, TimeUnit.SECONDS, new TaskThreadFactory("executors-test"));
+    }
+
+    private Runnable blockingRunnable() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
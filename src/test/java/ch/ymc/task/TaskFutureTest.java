@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for {@link ch.ymc.task.TaskFuture}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskFutureTest {
+
+    private final TaskFuture future = new TaskFuture();
+
+    @Test
+    public void completeShouldOnlySetTheFirstResult() throws InterruptedException {
+        final TaskResult first = new TaskResult(TaskResult.SUCCESS);
+        assertTrue(future.complete(first));
+        assertFalse(future.complete(new TaskResult(TaskResult.ERROR)));
+        assertTrue(future.isDone());
+        assertSame(first, future.get());
+    }
+
+    @Test
+    public void callbackShouldBeRunOnCompletion() {
+        final Runnable callback = mock(Runnable.class);
+        future.addCallback(callback);
+        verify(callback, times(0)).run();
+        future.complete(new TaskResult(TaskResult.SUCCESS));
+        verify(callback, times(1)).run();
+    }
+
+    @Test
+    public void callbackShouldBeRunImmediatelyWhenComplete() {
+        final Runnable callback = mock(Runnable.class);
+        future.complete(new TaskResult(TaskResult.SUCCESS));
+        future.addCallback(callback);
+        verify(callback, times(1)).run();
+    }
+
+    @Test
+    public void failingCallbackShouldNotPreventOtherCallbacks() {
+        final Runnable failing = mock(Runnable.class);
+        doThrow(new IllegalStateException()).when(failing).run();
+        final Runnable callback = mock(Runnable.class);
+        future.addCallback(failing);
+        future.addCallback(callback);
+        future.complete(new TaskResult(TaskResult.SUCCESS));
+        verify(callback, times(1)).run();
+    }
+
+    @Test(expected = TimeoutException.class, timeout = 60000)
+    public void timedGetShouldThrowTimeoutException() throws InterruptedException, TimeoutException {
+        future.get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void isCanceledShouldReflectCancelResult() throws InterruptedException {
+        assertFalse(future.isCanceled());
+        future.complete(new TaskResult(TaskResult.CANCEL));
+        assertTrue(future.isCanceled());
+        assertEquals(new TaskResult(TaskResult.CANCEL), future.get());
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test-class for the {@link ch.ymc.task.TaskJournal}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoverShouldReturnTasksThatHaveNotCompleted() throws TaskException {
+        final TaskJournal<TestTask> journal = newJournal(TaskJournal.SyncMode.BATCH, 4096);
+        assertTrue(journal.recover().isEmpty());
+        final List<TestTask> tasks = newTasks(3);
+        journal.appendQueued(tasks);
+        journal.appendStarted(tasks.get(0));
+        journal.appendStarted(tasks.get(1));
+        journal.appendCompleted(tasks.get(1));
+        assertEquals(2, journal.getNumberOfTasks());
+        journal.close();
+
+        final List<TestTask> recovered = newJournal(TaskJournal.SyncMode.BATCH, 4096).recover();
+        assertEquals(2, recovered.size());
+        assertEquals(0, recovered.get(0).getPriority());
+        assertEquals(2, recovered.get(1).getPriority());
+        assertEquals(TaskState.INITIALIZED, recovered.get(0).getState());
+    }
+
+    @Test
+    public void completedSegmentsShouldBeDeleted() throws TaskException {
+        final TaskJournal<TestTask> journal = newJournal(TaskJournal.SyncMode.PER_TASK, 64);
+        journal.recover();
+        final List<TestTask> tasks = newTasks(10);
+        journal.appendQueued(tasks);
+        assertTrue(journal.getNumberOfSegments() > 2);
+        // the first task keeps all segments after it's own
+        for (final TestTask task : tasks.subList(1, tasks.size())) {
+            journal.appendCompleted(task);
+        }
+        assertTrue(journal.getNumberOfSegments() > 2);
+        journal.appendCompleted(tasks.get(0));
+        assertEquals(1, journal.getNumberOfSegments());
+        assertEquals(1, folder.getRoot().listFiles().length);
+        journal.close();
+        assertTrue(newJournal(TaskJournal.SyncMode.PER_TASK, 64).recover().isEmpty());
+    }
+
+    @Test
+    public void recoveredTasksShouldKeepTheirSegmentsUntilTheyAreQueuedAgain() throws TaskException {
+        final TaskJournal<TestTask> journal = newJournal(TaskJournal.SyncMode.BATCH, 4096);
+        journal.recover();
+        journal.appendQueued(newTasks(2));
+        journal.close();
+
+        final TaskJournal<TestTask> restarted = newJournal(TaskJournal.SyncMode.BATCH, 4096);
+        final List<TestTask> recovered = restarted.recover();
+        assertEquals(2, restarted.getNumberOfSegments());
+        restarted.appendQueued(recovered);
+        assertEquals(1, restarted.getNumberOfSegments());
+        assertEquals(2, restarted.getNumberOfTasks());
+        restarted.close();
+        assertEquals(2, newJournal(TaskJournal.SyncMode.BATCH, 4096).recover().size());
+    }
+
+    @Test
+    public void segmentsShouldOnlyBeDeletedOnceTheReleasingRecordIsOnDisk() throws TaskException {
+        final TaskJournal<TestTask> journal = newJournal(TaskJournal.SyncMode.BATCH, 4096);
+        journal.recover();
+        journal.appendQueued(newTasks(2));
+        journal.close();
+
+        final TaskJournal<TestTask> restarted = newJournal(TaskJournal.SyncMode.BATCH, 4096);
+        final File oldSegment = folder.getRoot().listFiles()[0];
+        final List<TestTask> recovered = restarted.recover();
+        // completions are only written with a batch journal, a crash now would recover both tasks again
+        restarted.appendCompleted(recovered.get(0));
+        restarted.appendCompleted(recovered.get(1));
+        assertEquals(0, restarted.getNumberOfTasks());
+        assertTrue(oldSegment.exists());
+        assertEquals(2, restarted.getNumberOfSegments());
+        // the next sync forces the completions, the segment can go
+        restarted.appendQueued(newTasks(1));
+        assertFalse(oldSegment.exists());
+        assertEquals(1, restarted.getNumberOfSegments());
+        restarted.close();
+    }
+
+    @Test
+    public void recoverShouldStopAtDamagedRecord() throws Exception {
+        final TaskJournal<TestTask> journal = newJournal(TaskJournal.SyncMode.BATCH, 4096);
+        journal.recover();
+        journal.appendQueued(newTasks(3));
+        journal.close();
+        // flips a byte of the data of the last record, each record has 17 bytes header and 4 bytes data
+        final File segment = folder.getRoot().listFiles()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(2 * 21 + 17);
+            file.write(0xFF);
+        } finally {
+            file.close();
+        }
+        assertEquals(2, newJournal(TaskJournal.SyncMode.BATCH, 4096).recover().size());
+    }
+
+    @Test(expected = TaskException.class)
+    public void appendShouldFailWhenClosed() throws TaskException {
+        final TaskJournal<TestTask> journal = newJournal(TaskJournal.SyncMode.BATCH, 4096);
+        journal.recover();
+        journal.close();
+        journal.appendQueued(newTasks(1));
+    }
+
+    @Test(timeout = 60000)
+    @SuppressWarnings("unchecked")
+    public void runnerShouldRunRecoveredTasks() throws TaskException, InterruptedException {
+        // the inner runner never runs the tasks, like a JVM that stops
+        final QueuedTaskRunner<TestTask> crashedRunner = new QueuedTaskRunner<TestTask>(new Comparator<TestTask>() {
+            @Override
+            public int compare(final TestTask task1, final TestTask task2) {
+                return 0;
+            }
+        }, mock(TaskRunner.class));
+        crashedRunner.setJournal(newJournal(TaskJournal.SyncMode.PER_TASK, 4096));
+        crashedRunner.setNumberOfConcurrentTasks(1);
+        crashedRunner.executeAll(newTasks(3));
+        crashedRunner.getJournal().close();
+
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setJournal(newJournal(TaskJournal.SyncMode.PER_TASK, 4096));
+        runner.join();
+        assertEquals(0, runner.getJournal().getNumberOfTasks());
+        runner.dispose();
+        assertTrue(newJournal(TaskJournal.SyncMode.PER_TASK, 4096).recover().isEmpty());
+    }
+
+    @Test(timeout = 60000)
+    public void canceledTasksShouldNotBeRecovered() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setJournal(newJournal(TaskJournal.SyncMode.BATCH, 4096));
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        runner.schedule(task, 1, TimeUnit.HOURS);
+        final TestTask queued = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        runner.setNumberOfConcurrentTasks(0);
+        runner.execute(queued);
+        runner.cancel(queued);
+        runner.cancel(task);
+        runner.getJournal().close();
+        assertTrue(newJournal(TaskJournal.SyncMode.BATCH, 4096).recover().isEmpty());
+        runner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    @SuppressWarnings("unchecked")
+    public void tasksTheInnerRunnerRefusesShouldNotBeRecovered() throws TaskException, InterruptedException {
+        final TaskRunner<TestTask> innerRunner = mock(TaskRunner.class);
+        doThrow(new TaskException("refused")).when(innerRunner).execute(any(TestTask.class));
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>(new Comparator<TestTask>() {
+            @Override
+            public int compare(final TestTask task1, final TestTask task2) {
+                return 0;
+            }
+        }, innerRunner);
+        runner.setJournal(newJournal(TaskJournal.SyncMode.BATCH, 4096));
+        try {
+            runner.execute(new TestTask(new TaskResult(TaskResult.SUCCESS)));
+            fail("the inner runner should have refused the task");
+        } catch (final TaskException e) {
+            // expected
+        }
+        assertEquals(0, runner.getJournal().getNumberOfTasks());
+        runner.getJournal().close();
+        assertTrue(newJournal(TaskJournal.SyncMode.BATCH, 4096).recover().isEmpty());
+    }
+
+    @Test(timeout = 60000)
+    public void duplicateTasksShouldNotBeRecovered() throws TaskException, InterruptedException {
+        final QueuedTaskRunner<TestTask> runner = new QueuedTaskRunner<TestTask>();
+        runner.setJournal(newJournal(TaskJournal.SyncMode.BATCH, 4096));
+        runner.setNumberOfConcurrentTasks(0);
+        final TestTask queued = new EqualTestTask(1);
+        runner.execute(queued);
+        try {
+            runner.execute(new EqualTestTask(1));
+            fail("an equal task should have been refused");
+        } catch (final TaskException e) {
+            // expected
+        }
+        try {
+            runner.executeAll(Arrays.<TestTask>asList(new EqualTestTask(2), new EqualTestTask(1)));
+            fail("a batch with an equal task should have been refused");
+        } catch (final TaskException e) {
+            // expected
+        }
+        assertEquals(1, runner.getJournal().getNumberOfTasks());
+        runner.cancel(queued);
+        assertEquals(0, runner.getJournal().getNumberOfTasks());
+        runner.dispose();
+    }
+
+    private TaskJournal<TestTask> newJournal(final TaskJournal.SyncMode syncMode, final int segmentSize) {
+        return new TaskJournal<TestTask>(folder.getRoot(), new PrioritySerializer(), syncMode, segmentSize);
+    }
+
+    private static List<TestTask> newTasks(final int numberOfTasks) {
+        final List<TestTask> tasks = new ArrayList<TestTask>();
+        for (int i = 0; i < numberOfTasks; i++) {
+            tasks.add(new TestTask(new TaskResult(TaskResult.SUCCESS), i));
+        }
+        return tasks;
+    }
+
+    /**
+     * A task that is equal to all other tasks of the same priority.
+     */
+    private static class EqualTestTask extends TestTask {
+
+        EqualTestTask(final int priority) {
+            super(new TaskResult(TaskResult.SUCCESS), priority);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof EqualTestTask && ((EqualTestTask) other).getPriority() == getPriority();
+        }
+
+        @Override
+        public int hashCode() {
+            return getPriority();
+        }
+    }
+
+    /**
+     * Writes the priority of a {@link TestTask}.
+     */
+    private static class PrioritySerializer implements TaskSerializer<TestTask> {
+
+        @Override
+        public byte[] serialize(final TestTask task) {
+            return ByteBuffer.allocate(4).putInt(task.getPriority()).array();
+        }
+
+        @Override
+        public TestTask deserialize(final byte[] data) throws TaskException {
+            if (data.length != 4) {
+                throw new TaskException("invalid task: " + Arrays.toString(data));
+            }
+            return new TestTask(new TaskResult(TaskResult.SUCCESS), ByteBuffer.wrap(data).getInt());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for {@link ch.ymc.task.TaskMetrics}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class TaskMetricsTest {
+
+    private final TaskMetrics metrics = new TaskMetrics();
+
+    @Test
+    public void completedTaskShouldBeRecordedInAllHistograms() {
+        final TestTask task = new TestTask(new TaskResult(TaskResult.ERROR));
+        task.setQueuedTime(1000);
+        task.setStartTime(4000);
+        task.setCompletionTime(14000);
+        metrics.taskComplete(task, task.getTestResult());
+        assertEquals(1, metrics.getCompletedTasks());
+        assertEquals(1, metrics.getCompletedTasks(TaskResult.ERROR));
+        assertEquals(0, metrics.getCompletedTasks(TaskResult.SUCCESS));
+        assertEquals(3000, metrics.getQueueWait().getMax(TimeUnit.NANOSECONDS));
+        assertEquals(10000, metrics.getRunTime().getMax(TimeUnit.NANOSECONDS));
+        assertEquals(10000, metrics.getRunTime(TaskResult.ERROR).getMax(TimeUnit.NANOSECONDS));
+        assertEquals(0, metrics.getRunTime(TaskResult.SUCCESS).getCount());
+        assertEquals(13000, metrics.getEndToEnd().getMax(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void taskCanceledBeforeItStartedShouldOnlyCountForEndToEnd() {
+        final TestTask task = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        task.setQueuedTime(1000);
+        task.setCompletionTime(2000);
+        metrics.taskComplete(task, new TaskResult(TaskResult.CANCEL));
+        assertEquals(1, metrics.getCompletedTasks(TaskResult.CANCEL));
+        assertEquals(0, metrics.getQueueWait().getCount());
+        assertEquals(0, metrics.getRunTime().getCount());
+        assertEquals(1, metrics.getEndToEnd().getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStatusShouldBeRejected() {
+        metrics.getRunTime((byte) 0);
+    }
+}
@@ -7,7 +7,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test Class for {@link ch.ymc.task.AbstractTask}.
@@ -28,4 +32,31 @@ public class TaskTest {
     public void initialStateShouldBeInitialized() {
         assertEquals(TaskState.INITIALIZED, task.getState());
     }
+
+    @Test
+    public void compareAndSetStateShouldChangeExpectedState() {
+        assertTrue(task.compareAndSetState(TaskState.INITIALIZED, TaskState.RUNNING));
+        assertEquals(TaskState.RUNNING, task.getState());
+    }
+
+    @Test
+    public void compareAndSetStateShouldNotChangeUnexpectedState() {
+        task.setState(TaskState.COMPLETE);
+        assertFalse(task.compareAndSetState(TaskState.RUNNING, TaskState.CANCELING));
+        assertEquals(TaskState.COMPLETE, task.getState());
+    }
+
+    @Test
+    public void dependsOnShouldAddDependencies() {
+        final AbstractTask first = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        final AbstractTask second = new TestTask(new TaskResult(TaskResult.SUCCESS));
+        task.dependsOn(first);
+        task.dependsOn(second);
+        assertEquals(Arrays.asList(first, second), task.getDependencies());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void taskShouldNotDependOnItself() {
+        task.dependsOn(task);
+    }
 }
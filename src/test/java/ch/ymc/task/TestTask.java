@@ -17,6 +17,7 @@ public class TestTask extends AbstractTask {
     private transient final TaskResult result;
     private transient boolean canceled;
     private int priority = 0;
+    private Object partitionKey;
 
     public TestTask(final TaskResult result) {
         super();
@@ -60,4 +61,13 @@ public class TestTask extends AbstractTask {
         this.priority = priority;
     }
 
+    @Override
+    protected Object getPartitionKey() {
+        return partitionKey;
+    }
+
+    public void setPartitionKey(final Object partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
 }
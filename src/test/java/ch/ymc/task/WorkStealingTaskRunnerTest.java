@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 YMC AG. All rights reserved.
+ */
+package ch.ymc.task;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for {@link ch.ymc.task.WorkStealingTaskRunner}.
+ *
+ * @author nkuebler, YMC AG
+ * @since 2.1.0
+ */
+public class WorkStealingTaskRunnerTest {
+
+    private final WorkStealingTaskRunner<TestTask> taskRunner = new WorkStealingTaskRunner<TestTask>(2, "stealing-test");
+
+    @After
+    public void tearDown() throws TaskException, InterruptedException {
+        taskRunner.dispose();
+    }
+
+    @Test(timeout = 60000)
+    public void executedTasksShouldCompleteAndFireEvents() throws TaskException, InterruptedException {
+        @SuppressWarnings("unchecked")
+        final TaskEventListener<TestTask> listener = mock(TaskEventListener.class);
+        taskRunner.setTaskEventListener(listener);
+        final List<TestTask> tasks = new ArrayList<TestTask>();
+        for (int i = 0; i < 1000; i++) {
+            tasks.add(new TestTask(new TaskResult(TaskResult.SUCCESS)));
+        }
+        taskRunner.executeAll(tasks);
+        taskRunner.join(tasks);
+        for (final TestTask task : tasks) {
+            assertTrue(taskRunner.isComplete(task));
+            assertEquals(TaskResult.SUCCESS, task.getResult().getStatus());
+        }
+        verify(listener, times(1000)).taskComplete(any(TestTask.class), any(TaskResult.class));
+        assertEquals(0, taskRunner.getNumberOfExecutingTasks());
+    }
+
+    @Test(timeout = 60000)
+    public void workerJoiningSubtasksShouldRunThemItself() throws TaskException, InterruptedException {
+        final WorkStealingTaskRunner<TestTask> singleWorker = new WorkStealingTaskRunner<TestTask>(1, "stealing-test");
+        try {
+            final AtomicInteger completedSubtasks = new AtomicInteger();
+            final TestTask parent = new TestTask(new TaskResult(TaskResult.SUCCESS)) {
+                @Override
+                protected TaskResult run() {
+                    final List<TestTask> subtasks = new ArrayList<TestTask>();
+                    for (int i = 0; i < 10; i++) {
+                        subtasks.add(new TestTask(new TaskResult(TaskResult.SUCCESS)) {
+                            @Override
+                            protected TaskResult run() {
+                                completedSubtasks.incrementAndGet();
+                                return super.run();
+                            }
+                        });
+                    }
+                    try {
+                        singleWorker.executeAll(subtasks);
+                        singleWorker.join(subtasks);
+                    } catch (final Exception e) {
+                        return new TaskResult(TaskResult.ERROR, e);
+                    }
+                    return super.run();
+                }
+            };
+            singleWorker.execute(parent);
+            singleWorker.join(parent);
+            assertEquals(TaskResult.SUCCESS, parent.getResult().getStatus());
+            assertEquals(10, completedSubtasks.get());
+        } finally {
+            singleWorker.dispose();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void tasksAcceptedDuringShutdownShouldRunOrBeReturned() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            final WorkStealingExecutor executor = new WorkStealingExecutor(2, "shutdown-test", true);
+            final AtomicInteger accepted = new AtomicInteger();
+            final AtomicInteger ran = new AtomicInteger();
+            final Runnable counter = new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            };
+            final Thread submitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            executor.execute(counter);
+                            accepted.incrementAndGet();
+                        }
+                    } catch (final RejectedExecutionException e) {
+                        // the executor has been shut down
+                    }
+                }
+            });
+            submitter.start();
+            Thread.yield();
+            executor.shutdown();
+            submitter.join();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(accepted.get(), ran.get());
+        }
+    }
+
+    @Test(expected = TaskException.class)
+    public void cancelOfForeignTaskShouldThrowException() throws TaskException {
+        taskRunner.cancel(new TestTask(new TaskResult(TaskResult.SUCCESS)));
+    }
+
+    @Test(expected = TaskException.class)
+    public void joinOfTaskThatHasNotBeenStartedShouldThrowException() throws TaskException, InterruptedException {
+        taskRunner.join(new TestTask(new TaskResult(TaskResult.SUCCESS)));
+    }
+}